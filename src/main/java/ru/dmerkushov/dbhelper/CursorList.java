@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list view of the rows of a scrollable result set, reading the
+ * rows on demand. The rows are read by blocks: {@link ResultSet#absolute(int) }
+ * moves the cursor to the first row of the block, and the rest of the block
+ * is read with {@link ResultSet#next() }. The most recently read blocks are
+ * kept in a small cache, so the memory used is bounded by the cache, and not
+ * by the size of the result.<br>
+ * <br>
+ * The view keeps the statement and the cursor open, on the connection of
+ * its DbHelper, until it is closed. The rows are the values of all the
+ * columns of the result set. A failure to read the cursor is thrown as an
+ * IllegalStateException with the SQLException as its cause.
+ *
+ * @author Dmitriy Merkushov
+ * @see DbHelper#performDbQueryCursorList(java.lang.String, java.lang.Object[], int, int)
+ */
+public final class CursorList extends AbstractList<Object[]> implements RandomAccess, AutoCloseable {
+
+	/**
+	 * Default count of rows read at once
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 100;
+
+	/**
+	 * Default count of blocks kept in the cache
+	 */
+	public static final int DEFAULT_CACHED_BLOCKS = 16;
+
+	private final DbHelper dbHelper;
+	private final String sql;
+	private final ResultSet rs;
+	private final int blockSize;
+	private final int columnCount;
+	private final int size;
+	private final Map<Integer, Object[][]> blocks;
+
+	private long rowsRead = 0L;
+	private long blockMisses = 0L;
+	private boolean closed = false;
+
+	/**
+	 *
+	 * @param dbHelper the DbHelper that has opened the result set, to close
+	 * its statement
+	 * @param sql for logging
+	 * @param rs a scrollable result set
+	 * @param blockSize count of rows read at once
+	 * @param maxCachedBlocks count of blocks kept in the cache
+	 * @throws SQLException
+	 */
+	CursorList (DbHelper dbHelper, String sql, ResultSet rs, int blockSize, final int maxCachedBlocks) throws SQLException {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException ("blockSize must be positive: " + blockSize);
+		}
+		if (maxCachedBlocks < 1) {
+			throw new IllegalArgumentException ("maxCachedBlocks must be positive: " + maxCachedBlocks);
+		}
+
+		this.dbHelper = dbHelper;
+		this.sql = sql;
+		this.rs = rs;
+		this.blockSize = blockSize;
+		this.columnCount = rs.getMetaData ().getColumnCount ();
+		this.size = (rs.last () ? rs.getRow () : 0);
+		this.blocks = new LinkedHashMap<Integer, Object[][]> (maxCachedBlocks * 2, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<Integer, Object[][]> eldest) {
+				return size () > maxCachedBlocks;
+			}
+		};
+
+		rs.setFetchSize (Math.min (blockSize, Math.max (size, 1)));
+	}
+
+	@Override
+	public synchronized Object[] get (int index) {
+		if (closed) {
+			throw new IllegalStateException ("The list is closed");
+		}
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException ("Index: " + index + ", size: " + size);
+		}
+
+		int blockIndex = index / blockSize;
+		Object[][] block = blocks.get (blockIndex);
+		if (block == null) {
+			try {
+				block = readBlock (blockIndex);
+			} catch (SQLException ex) {
+				throw new IllegalStateException ("Received a SQLException when trying to read rows for SQL: \"" + sql + "\".", ex);
+			}
+			blocks.put (blockIndex, block);
+		}
+		return block[index - blockIndex * blockSize].clone ();
+	}
+
+	@Override
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * Get the count of rows read from the cursor so far. A row is read again
+	 * when its block has been evicted from the cache
+	 *
+	 * @return
+	 */
+	public synchronized long getRowsRead () {
+		return rowsRead;
+	}
+
+	/**
+	 * Get the count of blocks read from the cursor because they were not in
+	 * the cache
+	 *
+	 * @return
+	 */
+	public synchronized long getBlockMisses () {
+		return blockMisses;
+	}
+
+	/**
+	 * Close the cursor and its statement
+	 */
+	@Override
+	public synchronized void close () {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		blocks.clear ();
+		dbHelper.closeStatement (rs, sql, rowsRead);
+	}
+
+	private Object[][] readBlock (int blockIndex) throws SQLException {
+		int firstRow = blockIndex * blockSize;
+		int rowCount = Math.min (blockSize, size - firstRow);
+
+		Object[][] block = new Object[rowCount][];
+		boolean onRow = rs.absolute (firstRow + 1);
+		for (int i = 0; i < rowCount; i++) {
+			if (i > 0) {
+				onRow = rs.next ();
+			}
+			if (!onRow) {
+				throw new SQLException ("The cursor has ended at row " + (firstRow + i) + " of " + size);
+			}
+
+			Object[] row = new Object[columnCount];
+			for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++) {
+				row[columnIndex - 1] = rs.getObject (columnIndex);
+			}
+			block[i] = row;
+		}
+
+		blockMisses++;
+		rowsRead += rowCount;
+		return block;
+	}
+}
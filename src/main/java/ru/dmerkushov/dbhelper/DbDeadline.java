@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+/**
+ * A deadline bound to the current thread. Every {@link DbHelper} statement
+ * executed by the thread while the deadline is active gets a query timeout no
+ * longer than the time remaining.<br>
+ * <br>
+ * Deadlines nest: an inner deadline can only shorten the outer one. Use with
+ * try-with-resources:
+ * <pre>
+ * try (DbDeadline deadline = DbDeadline.start (500)) {
+ *     dbHelper.performDbQuery (sql, params);
+ * }
+ * </pre>
+ *
+ * @author Dmitriy Merkushov
+ */
+public final class DbDeadline implements AutoCloseable {
+
+	private static final ThreadLocal<DbDeadline> current = new ThreadLocal<> ();
+
+	private final long deadlineNanos;
+	private final DbDeadline previous;
+
+	private DbDeadline (long deadlineNanos, DbDeadline previous) {
+		this.deadlineNanos = deadlineNanos;
+		this.previous = previous;
+	}
+
+	/**
+	 * Start a deadline for the current thread
+	 *
+	 * @param timeoutMillis time from now, in milliseconds
+	 * @return the deadline, to be closed when the guarded work is done
+	 */
+	public static DbDeadline start (long timeoutMillis) {
+		DbDeadline previous = current.get ();
+
+		long deadlineNanos = System.nanoTime () + Math.max (timeoutMillis, 0L) * 1000000L;
+		if (previous != null && previous.deadlineNanos - deadlineNanos < 0) {
+			deadlineNanos = previous.deadlineNanos;
+		}
+
+		DbDeadline deadline = new DbDeadline (deadlineNanos, previous);
+		current.set (deadline);
+		return deadline;
+	}
+
+	/**
+	 * Get the deadline active for the current thread
+	 *
+	 * @return the deadline, or null if there is none
+	 */
+	public static DbDeadline current () {
+		return current.get ();
+	}
+
+	/**
+	 * Get the time remaining until the deadline
+	 *
+	 * @return milliseconds remaining, zero or negative if the deadline has expired
+	 */
+	public long remainingMillis () {
+		long remainingNanos = deadlineNanos - System.nanoTime ();
+		if (remainingNanos <= 0) {
+			return 0L;
+		}
+		return (remainingNanos + 999999L) / 1000000L;
+	}
+
+	/**
+	 * Check if the deadline has expired
+	 *
+	 * @return
+	 */
+	public boolean isExpired () {
+		return deadlineNanos - System.nanoTime () <= 0;
+	}
+
+	/**
+	 * Deactivate the deadline, restoring the one that was active before it
+	 */
+	@Override
+	public void close () {
+		if (current.get () == this) {
+			if (previous != null) {
+				current.set (previous);
+			} else {
+				current.remove ();
+			}
+		}
+	}
+}
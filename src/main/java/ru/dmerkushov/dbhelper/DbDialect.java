@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SQL dialects DbHelper generates statements for
+ *
+ * @author Dmitriy Merkushov
+ */
+public enum DbDialect {
+
+	INFORMIX,
+	POSTGRESQL,
+	MYSQL,
+	ORACLE,
+	SQLSERVER,
+	DB2,
+	H2,
+	DERBY,
+	HSQLDB,
+	/**
+	 * Standard SQL:2008, used when the database could not be recognized
+	 */
+	GENERIC;
+
+	/**
+	 * Recognize the dialect by the JDBC driver class name and the connection
+	 * URL
+	 *
+	 * @param driverName may be null
+	 * @param connectionUrl may be null
+	 * @return the dialect, {@link #GENERIC} if not recognized
+	 */
+	public static DbDialect detect (String driverName, String connectionUrl) {
+		String url = (connectionUrl != null ? connectionUrl.toLowerCase () : "");
+		String driver = (driverName != null ? driverName.toLowerCase () : "");
+
+		if (url.startsWith ("jdbc:informix") || driver.contains ("informix")) {
+			return INFORMIX;
+		} else if (url.startsWith ("jdbc:postgresql:") || driver.contains ("postgresql")) {
+			return POSTGRESQL;
+		} else if (url.startsWith ("jdbc:mysql:") || url.startsWith ("jdbc:mariadb:") || driver.contains ("mysql") || driver.contains ("mariadb")) {
+			return MYSQL;
+		} else if (url.startsWith ("jdbc:oracle:") || driver.contains ("oracle")) {
+			return ORACLE;
+		} else if (url.startsWith ("jdbc:sqlserver:") || url.startsWith ("jdbc:jtds:sqlserver:") || driver.contains ("sqlserver")) {
+			return SQLSERVER;
+		} else if (url.startsWith ("jdbc:db2:") || driver.contains ("db2")) {
+			return DB2;
+		} else if (url.startsWith ("jdbc:h2:") || driver.startsWith ("org.h2.")) {
+			return H2;
+		} else if (url.startsWith ("jdbc:derby:") || driver.contains ("derby")) {
+			return DERBY;
+		} else if (url.startsWith ("jdbc:hsqldb:") || driver.contains ("hsqldb")) {
+			return HSQLDB;
+		}
+		return GENERIC;
+	}
+
+	/**
+	 * Check if the driver returns the generated keys of every row of a batch
+	 * from {@link java.sql.Statement#getGeneratedKeys() }, not only of the
+	 * last one
+	 *
+	 * @return
+	 */
+	public boolean supportsBatchGeneratedKeys () {
+		switch (this) {
+			case POSTGRESQL:
+			case MYSQL:
+			case ORACLE:
+			case H2:
+			case HSQLDB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Check if {@link #upsert(java.lang.String, java.lang.String[], java.lang.String[]) }
+	 * can generate a statement for the dialect
+	 *
+	 * @return false for Derby, whose MERGE cannot take its source from
+	 * parameters
+	 */
+	public boolean supportsUpsert () {
+		return this != DERBY;
+	}
+
+	/**
+	 * Limit the number of rows returned by a SELECT statement. The standard
+	 * <code>FETCH FIRST</code> is used for Oracle, which requires Oracle 12c
+	 * or later
+	 *
+	 * @param selectSql a statement beginning with "SELECT "
+	 * @param maxRows
+	 * @return
+	 */
+	public String limitRows (String selectSql, int maxRows) {
+		if (!selectSql.regionMatches (true, 0, "SELECT ", 0, 7)) {
+			throw new IllegalArgumentException ("Not a SELECT statement: \"" + selectSql + "\"");
+		}
+
+		switch (this) {
+			case INFORMIX:
+				return "SELECT FIRST " + maxRows + " " + selectSql.substring (7);
+			case SQLSERVER:
+				return "SELECT TOP (" + maxRows + ") " + selectSql.substring (7);
+			case POSTGRESQL:
+			case MYSQL:
+			case H2:
+			case HSQLDB:
+				return selectSql + " LIMIT " + maxRows;
+			default:
+				return selectSql + " FETCH FIRST " + maxRows + " ROWS ONLY";
+		}
+	}
+
+	/**
+	 * Generate a statement inserting a row, or updating it if a row with the
+	 * same key exists: <code>INSERT ... ON CONFLICT</code> for PostgreSQL,
+	 * <code>INSERT ... ON DUPLICATE KEY UPDATE</code> for MySQL,
+	 * <code>MERGE ... KEY</code> for H2 and the standard <code>MERGE</code>
+	 * otherwise. Parameters are the values of <code>columns</code>, in that
+	 * order.<br>
+	 * <br>
+	 * The names are put into the SQL as is, so they must be checked by the
+	 * caller
+	 *
+	 * @param table
+	 * @param keyColumns the columns of the primary key or a unique constraint
+	 * @param columns all the columns to write, including the key columns
+	 * @return
+	 * @throws UnsupportedOperationException if the dialect does not
+	 * {@link #supportsUpsert() support} upserts
+	 */
+	public String upsert (String table, String[] keyColumns, String[] columns) {
+		List<String> updateColumns = new ArrayList<> (Arrays.asList (columns));
+		updateColumns.removeAll (Arrays.asList (keyColumns));
+
+		StringBuilder sql = new StringBuilder ();
+		switch (this) {
+			case POSTGRESQL:
+				appendInsert (sql, table, columns);
+				sql.append (" ON CONFLICT (");
+				appendList (sql, keyColumns, "");
+				if (updateColumns.isEmpty ()) {
+					sql.append (") DO NOTHING");
+				} else {
+					sql.append (") DO UPDATE SET ");
+					for (int i = 0; i < updateColumns.size (); i++) {
+						String column = updateColumns.get (i);
+						sql.append (i > 0 ? ", " : "").append (column).append (" = EXCLUDED.").append (column);
+					}
+				}
+				break;
+			case MYSQL:
+				appendInsert (sql, table, columns);
+				sql.append (" ON DUPLICATE KEY UPDATE ");
+				if (updateColumns.isEmpty ()) {
+					sql.append (keyColumns[0]).append (" = ").append (keyColumns[0]);
+				} else {
+					for (int i = 0; i < updateColumns.size (); i++) {
+						String column = updateColumns.get (i);
+						sql.append (i > 0 ? ", " : "").append (column).append (" = VALUES(").append (column).append (')');
+					}
+				}
+				break;
+			case H2:
+				sql.append ("MERGE INTO ").append (table).append (" (");
+				appendList (sql, columns, "");
+				sql.append (") KEY (");
+				appendList (sql, keyColumns, "");
+				sql.append (") VALUES (");
+				appendParameters (sql, columns.length);
+				sql.append (')');
+				break;
+			case DERBY:
+				throw new UnsupportedOperationException ("Upsert is not supported for " + this);
+			default:
+				sql.append ("MERGE INTO ").append (table).append (" tgt USING (");
+				switch (this) {
+					case ORACLE:
+					case SQLSERVER:
+					case INFORMIX:
+						sql.append ("SELECT ");
+						for (int i = 0; i < columns.length; i++) {
+							sql.append (i > 0 ? ", ? AS " : "? AS ").append (columns[i]);
+						}
+						if (this == ORACLE) {
+							sql.append (" FROM DUAL");
+						} else if (this == INFORMIX) {
+							sql.append (" FROM sysmaster:sysdual");
+						}
+						sql.append (") src");
+						break;
+					default:
+						sql.append ("VALUES (");
+						appendParameters (sql, columns.length);
+						sql.append (")) src (");
+						appendList (sql, columns, "");
+						sql.append (')');
+				}
+				sql.append (" ON (");
+				for (int i = 0; i < keyColumns.length; i++) {
+					sql.append (i > 0 ? " AND tgt." : "tgt.").append (keyColumns[i]).append (" = src.").append (keyColumns[i]);
+				}
+				sql.append (')');
+				if (!updateColumns.isEmpty ()) {
+					sql.append (" WHEN MATCHED THEN UPDATE SET ");
+					for (int i = 0; i < updateColumns.size (); i++) {
+						String column = updateColumns.get (i);
+						sql.append (i > 0 ? ", " : "").append (column).append (" = src.").append (column);
+					}
+				}
+				sql.append (" WHEN NOT MATCHED THEN INSERT (");
+				appendList (sql, columns, "");
+				sql.append (") VALUES (");
+				appendList (sql, columns, "src.");
+				sql.append (')');
+				if (this == SQLSERVER) {
+					sql.append (';');	// SQL Server requires MERGE to be terminated
+				}
+		}
+		return sql.toString ();
+	}
+
+	private static void appendInsert (StringBuilder sql, String table, String[] columns) {
+		sql.append ("INSERT INTO ").append (table).append (" (");
+		appendList (sql, columns, "");
+		sql.append (") VALUES (");
+		appendParameters (sql, columns.length);
+		sql.append (')');
+	}
+
+	private static void appendList (StringBuilder sql, String[] names, String prefix) {
+		for (int i = 0; i < names.length; i++) {
+			sql.append (i > 0 ? ", " : "").append (prefix).append (names[i]);
+		}
+	}
+
+	private static void appendParameters (StringBuilder sql, int count) {
+		for (int i = 0; i < count; i++) {
+			sql.append (i > 0 ? ", ?" : "?");
+		}
+	}
+}
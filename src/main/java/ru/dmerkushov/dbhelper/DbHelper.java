@@ -15,15 +15,32 @@
  */
 package ru.dmerkushov.dbhelper;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import ru.dmerkushov.loghelper.LoggerWrapper;
 
 /**
@@ -35,8 +52,26 @@ public class DbHelper {
 	Connection dbConnection = null;
 	String driverName = null;
 	String connectionUrl = null;
+	long defaultQueryTimeoutMillis = 0L;
+	DbDialect dialect = null;
+	StatementLeakDetector statementLeakDetector = new StatementLeakDetector ();
+	FetchSizeAdvisor fetchSizeAdvisor = new FetchSizeAdvisor ();
+	Map<String, PreparedStatement> preparedStatements = new HashMap<> ();
+	FailoverEndpoints failoverEndpoints = null;
+	boolean connectionBroken = false;
+	Connection transactionConnection = null;
+	Path spillDirectory = null;
+	SchemaMetadataCache schemaMetadataCache = new SchemaMetadataCache (this, SchemaMetadataCache.DEFAULT_TTL_MILLIS);
+	volatile StatementInterceptor[] interceptors = NO_INTERCEPTORS;
 	static LoggerWrapper loggerWrapper = null;
 
+	static final StatementInterceptor[] NO_INTERCEPTORS = new StatementInterceptor[0];
+
+	/**
+	 * Default count of keys checked by a single query of {@link #recordsExist(java.lang.String, java.lang.String, long[]) }
+	 */
+	public static final int RECORDS_EXIST_CHUNK_SIZE = 500;
+
 	/**
 	 *
 	 * @param driverName JDBC driver class name (i.e.,
@@ -52,6 +87,41 @@ public class DbHelper {
 		getLoggerWrapper ().exiting ();
 	}
 
+	/**
+	 * Create a DbHelper failing over between several databases
+	 *
+	 * @param driverName JDBC driver class name (i.e.,
+	 * "com.informix.jdbc.IfxDriver")
+	 * @param connectionUrls in the order of preference
+	 * @see FailoverEndpoints
+	 */
+	public DbHelper (String driverName, List<String> connectionUrls) {
+		this (driverName, new FailoverEndpoints (connectionUrls));
+	}
+
+	/**
+	 * Create a DbHelper failing over between several databases. The
+	 * endpoints may be shared by several DbHelper instances, so that they all
+	 * skip a failed database at once
+	 *
+	 * @param driverName JDBC driver class name (i.e.,
+	 * "com.informix.jdbc.IfxDriver")
+	 * @param failoverEndpoints
+	 */
+	public DbHelper (String driverName, FailoverEndpoints failoverEndpoints) {
+		getLoggerWrapper ().entering (driverName, failoverEndpoints);
+
+		if (failoverEndpoints == null) {
+			throw new NullPointerException ("failoverEndpoints");
+		}
+
+		this.driverName = driverName;
+		this.failoverEndpoints = failoverEndpoints;
+		this.connectionUrl = failoverEndpoints.getConnectionUrls ().get (0);
+
+		getLoggerWrapper ().exiting ();
+	}
+
 	/**
 	 * Get the {@link ru.dmerkushov.loghelper.LoggerWrapper LoggerWrapper} instance
 	 *
@@ -79,6 +149,102 @@ public class DbHelper {
 		DbHelper.loggerWrapper = loggerWrapper;
 	}
 
+	/**
+	 * Get the endpoints this DbHelper fails over between
+	 *
+	 * @return the endpoints, or null if it has a single connection URL
+	 */
+	public FailoverEndpoints getFailoverEndpoints () {
+		return failoverEndpoints;
+	}
+
+	/**
+	 * Get the SQL dialect of the database. Unless set explicitly, it is
+	 * recognized by the driver name and the connection URL
+	 *
+	 * @return
+	 */
+	public DbDialect getDialect () {
+		if (dialect == null) {
+			dialect = DbDialect.detect (driverName, connectionUrl);
+		}
+		return dialect;
+	}
+
+	/**
+	 * Set the SQL dialect of the database
+	 *
+	 * @param dialect null to recognize it by the driver name and the connection URL
+	 */
+	public void setDialect (DbDialect dialect) {
+		this.dialect = dialect;
+	}
+
+	/**
+	 * Get the advisor choosing the fetch size of queries. Use it to set the
+	 * memory budget of a round trip or to set fetch sizes manually
+	 *
+	 * @return
+	 */
+	public FetchSizeAdvisor getFetchSizeAdvisor () {
+		return fetchSizeAdvisor;
+	}
+
+	/**
+	 * Get the query timeout used when no timeout is given for a call
+	 *
+	 * @return timeout in milliseconds, 0 means no timeout
+	 */
+	public long getDefaultQueryTimeout () {
+		return defaultQueryTimeoutMillis;
+	}
+
+	/**
+	 * Set the query timeout used when no timeout is given for a call. The
+	 * timeout is passed to {@link Statement#setQueryTimeout(int)} and is also
+	 * enforced by a watchdog calling {@link Statement#cancel()}. A
+	 * {@link DbDeadline} active for the current thread may shorten it further
+	 *
+	 * @param timeoutMillis timeout in milliseconds, 0 means no timeout
+	 */
+	public void setDefaultQueryTimeout (long timeoutMillis) {
+		getLoggerWrapper ().entering (timeoutMillis);
+
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException ("timeoutMillis is negative: " + timeoutMillis);
+		}
+		this.defaultQueryTimeoutMillis = timeoutMillis;
+
+		getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Get the cache of the columns and primary keys of the tables
+	 *
+	 * @return
+	 */
+	public SchemaMetadataCache getSchemaMetadataCache () {
+		return schemaMetadataCache;
+	}
+
+	/**
+	 * Get the directory where {@link SpillingList}s create their files
+	 *
+	 * @return null for the default temporary-file directory
+	 */
+	public Path getSpillDirectory () {
+		return spillDirectory;
+	}
+
+	/**
+	 * Set the directory where {@link SpillingList}s create their files
+	 *
+	 * @param spillDirectory null for the default temporary-file directory
+	 */
+	public void setSpillDirectory (Path spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
 	/**
 	 * Perform a query to the database
 	 *
@@ -97,11 +263,14 @@ public class DbHelper {
 	}
 
 	/**
-	 * Perform a query to the database
+	 * Perform a query to the database. The statement of the result set stays
+	 * open until the caller closes it (<code>rs.getStatement ().close ()</code>),
+	 * see {@link #performDbQueryHandle(java.lang.String, java.lang.Object[]) }
+	 * for a handle doing it with try-with-resources
 	 *
 	 * @param sql SQL code, where question marks (?) are placeholders for
 	 * parameters
-	 * @param sqlParams Query parameters. Supported types are: {@link String}, {@link Boolean}, {@link Long}, {@link Integer}, {@link Double}, {@link Float}, {@link java.sql.Time}, {@link java.sql.Timestamp}, {@link java.sql.Date}
+	 * @param sqlParams Query parameters. Supported types are: {@link String}, {@link Boolean}, {@link Long}, {@link Integer}, {@link Double}, {@link Float}, {@link java.math.BigDecimal}, {@link java.sql.Time}, {@link java.sql.Timestamp}, {@link java.sql.Date}, and for BLOB/CLOB columns <code>byte[]</code> and streams, see {@link StreamParameter}
 	 * @return
 	 * @throws ru.dmerkushov.dbhelper.DbHelperException
 	 * @throws java.lang.IllegalArgumentException If one or more of the params is not of supported type
@@ -109,6 +278,65 @@ public class DbHelper {
 	public ResultSet performDbQuery (String sql, Object[] sqlParams) throws DbHelperException {
 		getLoggerWrapper ().entering (sql, sqlParams);
 
+		ResultSet resultSet = performDbQuery (sql, sqlParams, defaultQueryTimeoutMillis);
+
+		getLoggerWrapper ().exiting (resultSet);
+
+		return resultSet;
+	}
+
+	/**
+	 * Perform a query to the database with a query timeout
+	 *
+	 * @param sql SQL code, where question marks (?) are placeholders for
+	 * parameters
+	 * @param sqlParams Query parameters. Supported types are: {@link String}, {@link Boolean}, {@link Long}, {@link Integer}, {@link Double}, {@link Float}, {@link java.math.BigDecimal}, {@link java.sql.Time}, {@link java.sql.Timestamp}, {@link java.sql.Date}, and for BLOB/CLOB columns <code>byte[]</code> and streams, see {@link StreamParameter}
+	 * @param queryTimeoutMillis timeout in milliseconds, 0 means no timeout. Overrides the {@link #setDefaultQueryTimeout(long) default timeout}
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @throws ru.dmerkushov.dbhelper.DbHelperTimeoutException If the query has been cancelled because of the timeout or the thread's {@link DbDeadline}
+	 * @throws java.lang.IllegalArgumentException If one or more of the params is not of supported type
+	 */
+	public ResultSet performDbQuery (String sql, Object[] sqlParams, long queryTimeoutMillis) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, queryTimeoutMillis);
+
+		ResultSet resultSet = executeQuery (sql, sqlParams, queryTimeoutMillis, ResultSet.TYPE_SCROLL_INSENSITIVE, 0);
+
+		getLoggerWrapper ().exiting (resultSet);
+
+		return resultSet;
+	}
+
+	/**
+	 * Execute a query
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @param queryTimeoutMillis 0 means no timeout
+	 * @param resultSetType {@link ResultSet#TYPE_SCROLL_INSENSITIVE} or {@link ResultSet#TYPE_FORWARD_ONLY}
+	 * @param maxRows limit of rows to fetch, 0 means no limit
+	 * @return
+	 * @throws DbHelperException
+	 */
+	ResultSet executeQuery (String sql, Object[] sqlParams, long queryTimeoutMillis, int resultSetType, int maxRows) throws DbHelperException {
+		StatementInterceptor[] chain = interceptors;
+		if (chain.length == 0) {
+			return executeQuery (sql, sqlParams, queryTimeoutMillis, resultSetType, maxRows, null);
+		}
+
+		ExecutionContext context = new ExecutionContext (this, chain, ExecutionContext.Kind.QUERY, sql, sqlParams, null);
+		try {
+			context.beforePrepare ();
+			return executeQuery (context.getSql (), sqlParams, queryTimeoutMillis, resultSetType, maxRows, context);
+		} catch (DbHelperException | RuntimeException ex) {
+			context.onError (ex);
+			throw ex;
+		}
+	}
+
+	private ResultSet executeQuery (String sql, Object[] sqlParams, long queryTimeoutMillis, int resultSetType, int maxRows, ExecutionContext context) throws DbHelperException {
+		long timeoutMillis = effectiveQueryTimeout (sql, queryTimeoutMillis);
+
 		ResultSet toReturn = null;
 		PreparedStatement ps = null;
 
@@ -124,152 +352,126 @@ public class DbHelper {
 		if (dbConnection != null) {
 			getLoggerWrapper ().info ("Preparing a statement for SQL: \"" + sql + "\"");
 			try {
-				ps = dbConnection.prepareStatement (sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+				ps = prepareStatement (sql, resultSetType);
 			} catch (SQLException ex) {
 				throw new DbHelperException ("Received a SQLException when trying to prepare statement for SQL: \"" + sql + "\".", ex);
 			}
 
 			getLoggerWrapper ().info ("PreparedStatement for SQL: \"" + sql + "\" prepared");
 
+			List<Closeable> openedStreams = new ArrayList<> ();
 			try {
-				if (sqlParams != null) {
-
-					getLoggerWrapper ().info ("Running through parameters for SQL: \"" + sql + "\"");
-
-					for (int paramIndex = 0; paramIndex < sqlParams.length; paramIndex++) {
-						Object param = sqlParams[paramIndex];
-
-						if (param == null) {
-
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is null");
-							try {
-								ps.setObject (paramIndex + 1, null);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a null parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.lang.String) {
-
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a String: " + (String) param);
-							try {
-								ps.setString (paramIndex + 1, (String) param);					// i+1, because the first parameter for PreparedStatement.setX() functions is #1
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a String parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.lang.Boolean) {
-
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Boolean: " + String.valueOf (param));
-
-							try {
-								if (ps.getConnection ().getMetaData ().getDriverName ().contains ("Informix")) {	// Informix JDBC driver has no direct support for setBoolean()
-									getLoggerWrapper ().info ("Database type is Informix, must use strings \"T\"/\"F\" for boolean");
-									ps.setString (paramIndex + 1, (Boolean) param ? "t" : "f");
-								} else {
-									ps.setBoolean (paramIndex + 1, (Boolean) param);
-								}
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a Boolean parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.lang.Long) {
-
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Long: " + String.valueOf (param));
-
-							try {
-								ps.setLong (paramIndex + 1, (Long) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a Long parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.lang.Integer) {
-
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is an Integer: " + String.valueOf (param));
-
-							try {
-								ps.setInt (paramIndex + 1, (Integer) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set an Integer parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.lang.Double) {
-
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Double: " + String.valueOf (param));
-
-							try {
-								ps.setDouble (paramIndex + 1, (Double) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a Double parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.lang.Float) {
-
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Float: " + String.valueOf (param));
-
-							try {
-								ps.setFloat (paramIndex + 1, (Float) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a Float parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.sql.Timestamp) {
-
-							SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Timestamp: " + sdf.format ((java.sql.Timestamp) param));
-
-							try {
-								ps.setTimestamp (paramIndex + 1, (java.sql.Timestamp) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.sql.Time) {
-
-							SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Time: " + sdf.format ((java.sql.Time) param));
-
-							try {
-								ps.setTime (paramIndex + 1, (java.sql.Time) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
-
-						} else if (param instanceof java.sql.Date) {
+				if (context != null) {
+					context.beforeBind ();
+					sqlParams = context.getParameters ();
+				}
 
-							SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Date: " + sdf.format ((java.sql.Date) param));
+				setStatementParameters (ps, sql, sqlParams, openedStreams);
 
-							try {
-								ps.setDate (paramIndex + 1, (java.sql.Date) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+				if (maxRows > 0) {
+					try {
+						ps.setMaxRows (maxRows);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set max rows for SQL: \"" + sql + "\".", ex);
+					}
+				}
 
-						} else {
-							IllegalArgumentException iae = new IllegalArgumentException ("Illegal class of parameter #" + String.valueOf (paramIndex).trim () + ": " + (param != null ? param.getClass ().getName () : "null") + ".\n SQL is \"" + sql + "\".\n Supported classes are: String, Boolean, Long, Integer, Double, Float, and java.sql.Date");
-							throw iae;
-						}
+				int fetchSize = fetchSizeAdvisor.adviseFetchSize (sql);
+				if (maxRows > 0 && (fetchSize <= 0 || fetchSize > maxRows)) {
+					fetchSize = maxRows;
+				}
+				if (fetchSize > 0) {
+					try {
+						ps.setFetchSize (fetchSize);
+					} catch (SQLException ex) {
+						getLoggerWrapper ().warning ("Could not set fetch size of " + fetchSize + " for SQL: \"" + sql + "\": " + ex.getMessage ());
 					}
 				}
 
 				getLoggerWrapper ().info ("Executing query for SQL: \"" + sql + "\"");
 
+				if (context != null) {
+					context.beforeExecute ();
+				}
+
+				setQueryTimeout (ps, sql, timeoutMillis);
+				StatementWatchdog watchdog = StatementWatchdog.arm (ps, timeoutMillis);
 				try {
 					toReturn = ps.executeQuery ();
 				} catch (SQLException ex) {
+					checkConnectionFailure (ex);
+					if (watchdog.disarm () || ex instanceof SQLTimeoutException) {
+						throw new DbHelperTimeoutException ("Query timed out after " + timeoutMillis + " ms for SQL: \"" + sql + "\".", ex);
+					}
 					throw new DbHelperException ("Received a SQLException when trying to execute query for SQL: \"" + sql + "\".", ex);
+				} finally {
+					watchdog.disarm ();
+				}
+
+				statementLeakDetector.track (ps, sql);
+				if (fetchSizeAdvisor.needsRowWidth (sql)) {
+					fetchSizeAdvisor.recordRowWidth (sql, toReturn);
+				}
+
+				if (context != null) {
+					ResultSet executed = toReturn;
+					toReturn = null;	// So that the statement is closed if an interceptor fails
+					context.afterExecute ();
+					toReturn = InterceptedResult.wrap (executed, ps, context);
 				}
 
 			} finally {
+				closeStreams (openedStreams, sql);
+				if (toReturn == null) {
+					// The statement is only left open for the caller along with its result set
+					closeStatement (ps, sql);
+				}
 			}
 
 		}
 
-		getLoggerWrapper ().exiting (toReturn);
-
 		return toReturn;
 	}
 
+	/**
+	 * Perform a query to the database, getting a handle that closes the
+	 * result set and its statement when closed
+	 *
+	 * @param sql SQL code, where question marks (?) are placeholders for
+	 * parameters
+	 * @param sqlParams Query parameters. Supported types are the same as for {@link #performDbQuery(java.lang.String, java.lang.Object[]) }
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public DbQueryHandle performDbQueryHandle (String sql, Object[] sqlParams) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams);
+
+		DbQueryHandle handle = performDbQueryHandle (sql, sqlParams, defaultQueryTimeoutMillis);
+
+		getLoggerWrapper ().exiting (handle);
+		return handle;
+	}
+
+	/**
+	 * Perform a query to the database with a query timeout, getting a handle
+	 * that closes the result set and its statement when closed
+	 *
+	 * @param sql SQL code, where question marks (?) are placeholders for
+	 * parameters
+	 * @param sqlParams Query parameters. Supported types are the same as for {@link #performDbQuery(java.lang.String, java.lang.Object[]) }
+	 * @param queryTimeoutMillis timeout in milliseconds, 0 means no timeout
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public DbQueryHandle performDbQueryHandle (String sql, Object[] sqlParams, long queryTimeoutMillis) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, queryTimeoutMillis);
+
+		DbQueryHandle handle = new DbQueryHandle (this, performDbQuery (sql, sqlParams, queryTimeoutMillis), sql);
+
+		getLoggerWrapper ().exiting (handle);
+		return handle;
+	}
+
 	/**
 	 * <p>
 	 * Get the value of the designated column in the first row
@@ -307,20 +509,24 @@ public class DbHelper {
 
 		ResultSet rs = this.performDbQuery (sql, sqlParams);
 
-		boolean success;
-		try {
-			success = rs.next ();
-		} catch (SQLException ex) {
-			throw new DbHelperException (ex);
-		}
-
 		Object result = null;
-		if (success) {
+		try {
+			boolean success;
 			try {
-				result = rs.getObject (columnLabel);
+				success = rs.next ();
 			} catch (SQLException ex) {
 				throw new DbHelperException (ex);
 			}
+
+			if (success) {
+				try {
+					result = rs.getObject (columnLabel);
+				} catch (SQLException ex) {
+					throw new DbHelperException (ex);
+				}
+			}
+		} finally {
+			closeStatement (rs, sql);
 		}
 
 		getLoggerWrapper ().exiting (result);
@@ -364,20 +570,24 @@ public class DbHelper {
 
 		ResultSet rs = this.performDbQuery (sql, sqlParams);
 
-		boolean success;
-		try {
-			success = rs.next ();
-		} catch (SQLException ex) {
-			throw new DbHelperException (ex);
-		}
-
 		Object result = null;
-		if (success) {
+		try {
+			boolean success;
 			try {
-				result = rs.getObject (columnIndex);
+				success = rs.next ();
 			} catch (SQLException ex) {
 				throw new DbHelperException (ex);
 			}
+
+			if (success) {
+				try {
+					result = rs.getObject (columnIndex);
+				} catch (SQLException ex) {
+					throw new DbHelperException (ex);
+				}
+			}
+		} finally {
+			closeStatement (rs, sql);
 		}
 
 		getLoggerWrapper ().exiting (result);
@@ -442,29 +652,37 @@ public class DbHelper {
 	public List<Object> performDbQueryList (String sql, Object[] sqlParams, String columnLabel) throws DbHelperException {
 		getLoggerWrapper ().entering (sql, sqlParams, columnLabel);
 
-		List<Object> result = new ArrayList<> ();
+		List<Object> result = performDbQueryList (sql, sqlParams, columnLabel, null);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Perform a query and get a single column as a list, deduplicating the
+	 * string values
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @param columnLabel
+	 * @param dictionary may be null not to deduplicate
+	 * @return List of results, or an empty list (not null) when there were no results
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public List<Object> performDbQueryList (String sql, Object[] sqlParams, String columnLabel, StringDictionary dictionary) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, columnLabel, dictionary);
 
 		ResultSet rs = this.performDbQuery (sql, sqlParams);
 
-		boolean hasNext;
+		int columnIndex;
 		try {
-			hasNext = rs.next ();
+			columnIndex = rs.findColumn (columnLabel);
 		} catch (SQLException ex) {
+			closeStatement (rs, sql);
 			throw new DbHelperException (ex);
 		}
 
-		while (hasNext) {
-			try {
-				result.add (rs.getObject (columnLabel));
-			} catch (SQLException ex) {
-				throw new DbHelperException (ex);
-			}
-			try {
-				hasNext = rs.next ();
-			} catch (SQLException ex) {
-				throw new DbHelperException (ex);
-			}
-		}
+		List<Object> result = readColumn (rs, sql, columnIndex, dictionary);
 
 		getLoggerWrapper ().exiting (result);
 		return result;
@@ -482,61 +700,411 @@ public class DbHelper {
 	public List<Object> performDbQueryList (String sql, Object[] sqlParams, int columnIndex) throws DbHelperException {
 		getLoggerWrapper ().entering (sql, sqlParams, columnIndex);
 
-		List<Object> result = new ArrayList<> ();
-
-		ResultSet rs = this.performDbQuery (sql, sqlParams);
-
-		boolean hasNext;
-		try {
-			hasNext = rs.next ();
-		} catch (SQLException ex) {
-			throw new DbHelperException (ex);
-		}
-
-		while (hasNext) {
-			try {
-				result.add (rs.getObject (columnIndex));
-			} catch (SQLException ex) {
-				throw new DbHelperException (ex);
-			}
-			try {
-				hasNext = rs.next ();
-			} catch (SQLException ex) {
-				throw new DbHelperException (ex);
-			}
-		}
+		List<Object> result = performDbQueryList (sql, sqlParams, columnIndex, null);
 
 		getLoggerWrapper ().exiting (result);
 		return result;
 	}
 
 	/**
-	 * Check if a record exists
+	 * Perform a query and get a single column as a list, deduplicating the
+	 * string values
 	 *
 	 * @param sql
-	 * @param params
-	 * @return
+	 * @param sqlParams
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @param dictionary may be null not to deduplicate
+	 * @return List of results, or an empty list (not null) when there were no results
 	 * @throws ru.dmerkushov.dbhelper.DbHelperException
-	 * @throws SQLException
 	 */
-	public boolean recordExists (String sql, Object[] params) throws DbHelperException, SQLException {
-		getLoggerWrapper ().entering (sql, params);
+	public List<Object> performDbQueryList (String sql, Object[] sqlParams, int columnIndex, StringDictionary dictionary) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, columnIndex, dictionary);
 
-		boolean exists;
-		try (ResultSet existsRs = performDbQuery (sql, params)) {
-			exists = existsRs.next ();
+		ResultSet rs = this.performDbQuery (sql, sqlParams);
+		List<Object> result = readColumn (rs, sql, columnIndex, dictionary);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Perform a query and get a read-only view of its rows, read from the
+	 * cursor on demand, {@link CursorList#DEFAULT_BLOCK_SIZE} rows at once.
+	 * The view must be closed to close the statement
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @see CursorList
+	 */
+	public CursorList performDbQueryCursorList (String sql, Object[] sqlParams) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams);
+
+		CursorList result = performDbQueryCursorList (sql, sqlParams, CursorList.DEFAULT_BLOCK_SIZE, CursorList.DEFAULT_CACHED_BLOCKS);
+
+		getLoggerWrapper ().exiting (result.size ());
+		return result;
+	}
+
+	/**
+	 * Perform a query and get a read-only view of its rows, read from the
+	 * cursor on demand. The view must be closed to close the statement
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @param blockSize count of rows read at once
+	 * @param maxCachedBlocks count of blocks of rows kept in memory
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @see CursorList
+	 */
+	public CursorList performDbQueryCursorList (String sql, Object[] sqlParams, int blockSize, int maxCachedBlocks) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, blockSize, maxCachedBlocks);
+
+		ResultSet rs = this.performDbQuery (sql, sqlParams);
+
+		CursorList result;
+		try {
+			result = new CursorList (this, sql, rs, blockSize, maxCachedBlocks);
+		} catch (SQLException ex) {
+			closeStatement (rs, sql);
+			throw new DbHelperException ("Received a SQLException when trying to scroll the results for SQL: \"" + sql + "\".", ex);
+		} catch (RuntimeException ex) {
+			closeStatement (rs, sql);
+			throw ex;
+		}
+
+		getLoggerWrapper ().exiting (result.size ());
+		return result;
+	}
+
+	/**
+	 * Perform a query and get a single column as a list, keeping the values
+	 * in memory up to a budget and spilling the rest into a temporary file.
+	 * The list must be closed to delete the file
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @param columnLabel
+	 * @param memoryBudgetBytes estimated heap size of the values to keep in
+	 * memory
+	 * @return List of results, empty (not null) when there were no results
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also if a value cannot
+	 * be written to the spill file
+	 * @see SpillingList
+	 */
+	public SpillingList performDbQuerySpillingList (String sql, Object[] sqlParams, String columnLabel, long memoryBudgetBytes) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, columnLabel, memoryBudgetBytes);
+
+		ResultSet rs = executeQuery (sql, sqlParams, defaultQueryTimeoutMillis, ResultSet.TYPE_FORWARD_ONLY, 0);
+
+		int columnIndex;
+		try {
+			columnIndex = rs.findColumn (columnLabel);
+		} catch (SQLException ex) {
+			closeStatement (rs, sql);
+			throw new DbHelperException (ex);
+		}
+
+		SpillingList result = readColumn (rs, sql, columnIndex, memoryBudgetBytes);
+
+		getLoggerWrapper ().exiting (result.size ());
+		return result;
+	}
+
+	/**
+	 * Perform a query and get a single column as a list, keeping the values
+	 * in memory up to a budget and spilling the rest into a temporary file.
+	 * The list must be closed to delete the file
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @param memoryBudgetBytes estimated heap size of the values to keep in
+	 * memory
+	 * @return List of results, empty (not null) when there were no results
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also if a value cannot
+	 * be written to the spill file
+	 * @see SpillingList
+	 */
+	public SpillingList performDbQuerySpillingList (String sql, Object[] sqlParams, int columnIndex, long memoryBudgetBytes) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, columnIndex, memoryBudgetBytes);
+
+		ResultSet rs = executeQuery (sql, sqlParams, defaultQueryTimeoutMillis, ResultSet.TYPE_FORWARD_ONLY, 0);
+		SpillingList result = readColumn (rs, sql, columnIndex, memoryBudgetBytes);
+
+		getLoggerWrapper ().exiting (result.size ());
+		return result;
+	}
+
+	/**
+	 * Read a column of all the rows of a result set into a spilling list, and
+	 * close its statement. The result set must be forward-only: the drivers
+	 * of PostgreSQL and Oracle keep the whole result of a scrollable cursor
+	 * on the heap
+	 */
+	private SpillingList readColumn (ResultSet rs, String sql, int columnIndex, long memoryBudgetBytes) throws DbHelperException {
+		SpillingList result = new SpillingList (memoryBudgetBytes, spillDirectory);
+
+		boolean complete = false;
+		try {
+			while (rs.next ()) {
+				result.append (rs.getObject (columnIndex));
+			}
+			result.seal ();
+			complete = true;
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to read the results for SQL: \"" + sql + "\".", ex);
+		} catch (IOException ex) {
+			throw new DbHelperException ("Received an IOException when trying to spill the results for SQL: \"" + sql + "\".", ex);
+		} finally {
+			closeStatement (rs, sql, result.size ());
+			if (!complete) {
+				result.close ();
+			}
+		}
+
+		fetchSizeAdvisor.recordRowCount (sql, result.size ());
+
+		return result;
+	}
+
+	/**
+	 * Read a column of all the rows of a result set, and close its statement
+	 */
+	private List<Object> readColumn (ResultSet rs, String sql, int columnIndex, StringDictionary dictionary) throws DbHelperException {
+		List<Object> result = new ArrayList<> ();
+
+		try {
+			boolean hasNext;
+			try {
+				hasNext = rs.next ();
+			} catch (SQLException ex) {
+				throw new DbHelperException (ex);
+			}
+
+			while (hasNext) {
+				try {
+					Object value = rs.getObject (columnIndex);
+					result.add (dictionary != null ? dictionary.dedupValue (columnIndex, value) : value);
+				} catch (SQLException ex) {
+					throw new DbHelperException (ex);
+				}
+				try {
+					hasNext = rs.next ();
+				} catch (SQLException ex) {
+					throw new DbHelperException (ex);
+				}
+			}
+		} finally {
+			closeStatement (rs, sql, result.size ());
+		}
+
+		fetchSizeAdvisor.recordRowCount (sql, result.size ());
+
+		return result;
+	}
+
+	/**
+	 * Perform a query and get all the rows, with the values of every row in
+	 * an array
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @return List of rows, or an empty list (not null) when there were no results
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public List<Object[]> performDbQueryRows (String sql, Object[] sqlParams) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams);
+
+		List<Object[]> result = performDbQueryRows (sql, sqlParams, null);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Perform a query and get all the rows, with the values of every row in
+	 * an array, deduplicating the string values
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @param dictionary may be null not to deduplicate
+	 * @return List of rows, or an empty list (not null) when there were no results
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public List<Object[]> performDbQueryRows (String sql, Object[] sqlParams, StringDictionary dictionary) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, dictionary);
+
+		List<Object[]> result = new ArrayList<> ();
+
+		ResultSet rs = this.performDbQuery (sql, sqlParams);
+
+		try {
+			int columnCount = rs.getMetaData ().getColumnCount ();
+			while (rs.next ()) {
+				Object[] row = new Object[columnCount];
+				for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++) {
+					Object value = rs.getObject (columnIndex);
+					row[columnIndex - 1] = (dictionary != null ? dictionary.dedupValue (columnIndex, value) : value);
+				}
+				result.add (row);
+			}
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to read rows for SQL: \"" + sql + "\".", ex);
+		} finally {
+			closeStatement (rs, sql, result.size ());
+		}
+
+		fetchSizeAdvisor.recordRowCount (sql, result.size ());
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Check if a record exists. Fetches at most one row through a
+	 * forward-only cursor
+	 *
+	 * @param sql
+	 * @param params
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @throws SQLException
+	 */
+	public boolean recordExists (String sql, Object[] params) throws DbHelperException, SQLException {
+		getLoggerWrapper ().entering (sql, params);
+
+		boolean exists;
+		ResultSet existsRs = executeQuery (sql, params, defaultQueryTimeoutMillis, ResultSet.TYPE_FORWARD_ONLY, 1);
+		try {
+			exists = existsRs.next ();
+		} finally {
+			closeStatement (existsRs, sql);
 		}
 
 		getLoggerWrapper ().exiting (exists);
 		return exists;
 	}
 
+	/**
+	 * Check which of the keys exist in a table, with set-based queries of
+	 * {@link #RECORDS_EXIST_CHUNK_SIZE} keys each
+	 *
+	 * @param table
+	 * @param keyColumn an integer column
+	 * @param keys
+	 * @return a set where bit <code>i</code> is set if <code>keys[i]</code> exists
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public BitSet recordsExist (String table, String keyColumn, long[] keys) throws DbHelperException {
+		getLoggerWrapper ().entering (table, keyColumn, keys);
+
+		BitSet exist = recordsExist (table, keyColumn, keys, RECORDS_EXIST_CHUNK_SIZE);
+
+		getLoggerWrapper ().exiting (exist);
+		return exist;
+	}
+
+	/**
+	 * Check which of the keys exist in a table, with set-based queries of
+	 * <code>chunkSize</code> keys each. Every query has exactly
+	 * <code>chunkSize</code> parameters, the last chunk is padded by
+	 * repeating a key, so all the queries share the same SQL
+	 *
+	 * @param table
+	 * @param keyColumn an integer column
+	 * @param keys
+	 * @param chunkSize count of keys per query (mind the database's limit of an IN list)
+	 * @return a set where bit <code>i</code> is set if <code>keys[i]</code> exists
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public BitSet recordsExist (String table, String keyColumn, long[] keys, int chunkSize) throws DbHelperException {
+		getLoggerWrapper ().entering (table, keyColumn, keys, chunkSize);
+
+		SqlIdentifiers.check (table);
+		SqlIdentifiers.check (keyColumn);
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException ("chunkSize must be positive: " + chunkSize);
+		}
+
+		BitSet exist = new BitSet (keys.length);
+
+		long[] uniqueKeys = keys.clone ();
+		Arrays.sort (uniqueKeys);
+		int uniqueCount = 0;
+		for (int i = 0; i < uniqueKeys.length; i++) {
+			if (i == 0 || uniqueKeys[i] != uniqueKeys[uniqueCount - 1]) {
+				uniqueKeys[uniqueCount++] = uniqueKeys[i];
+			}
+		}
+
+		if (uniqueCount > 0) {
+			int paramCount = Math.min (chunkSize, uniqueCount);
+			StringBuilder sqlBuilder = new StringBuilder ("SELECT ").append (keyColumn).append (" FROM ").append (table).append (" WHERE ").append (keyColumn).append (" IN (");
+			for (int i = 0; i < paramCount; i++) {
+				sqlBuilder.append (i > 0 ? ", ?" : "?");
+			}
+			String sql = sqlBuilder.append (')').toString ();
+
+			BitSet uniqueExist = new BitSet (uniqueCount);
+			Object[] sqlParams = new Object[paramCount];
+			for (int chunkStart = 0; chunkStart < uniqueCount; chunkStart += paramCount) {
+				for (int i = 0; i < paramCount; i++) {
+					sqlParams[i] = uniqueKeys[Math.min (chunkStart + i, uniqueCount - 1)];
+				}
+
+				ResultSet rs = executeQuery (sql, sqlParams, defaultQueryTimeoutMillis, ResultSet.TYPE_FORWARD_ONLY, 0);
+				try {
+					while (rs.next ()) {
+						int uniqueIndex = Arrays.binarySearch (uniqueKeys, 0, uniqueCount, rs.getLong (1));
+						if (uniqueIndex >= 0) {
+							uniqueExist.set (uniqueIndex);
+						}
+					}
+				} catch (SQLException ex) {
+					throw new DbHelperException ("Received a SQLException when trying to read keys for SQL: \"" + sql + "\".", ex);
+				} finally {
+					closeStatement (rs, sql);
+				}
+			}
+
+			for (int i = 0; i < keys.length; i++) {
+				if (uniqueExist.get (Arrays.binarySearch (uniqueKeys, 0, uniqueCount, keys[i]))) {
+					exist.set (i);
+				}
+			}
+		}
+
+		getLoggerWrapper ().exiting (exist);
+		return exist;
+	}
+
+	/**
+	 * Create a statement with typed parameter binding, which is prepared once
+	 * and reused, and binds numbers without boxing them. It must be closed
+	 * when no longer needed
+	 *
+	 * @param sql SQL code, where question marks (?) are placeholders for
+	 * parameters
+	 * @return
+	 */
+	public TypedStatement createTypedStatement (String sql) {
+		getLoggerWrapper ().entering (sql);
+
+		TypedStatement typedStatement = new TypedStatement (this, sql);
+
+		getLoggerWrapper ().exiting (typedStatement);
+		return typedStatement;
+	}
+
 	/**
 	 * Perform an update to the database
 	 *
 	 * @param sql SQL code, where question marks (?) are placeholders for
 	 * parameters
-	 * @param sqlParams Query parameters. Supported types are: {@link String}, {@link Boolean}, {@link Long}, {@link Integer}, {@link Double}, {@link Float}, {@link java.sql.Time}, {@link java.sql.Timestamp}, {@link java.sql.Date}
+	 * @param sqlParams Query parameters. Supported types are: {@link String}, {@link Boolean}, {@link Long}, {@link Integer}, {@link Double}, {@link Float}, {@link java.math.BigDecimal}, {@link java.sql.Time}, {@link java.sql.Timestamp}, {@link java.sql.Date}, and for BLOB/CLOB columns <code>byte[]</code> and streams, see {@link StreamParameter}
 	 * @return either (1) the row count for SQL Data Manipulation Language (DML)
 	 * statements or (2) 0 for SQL statements that return nothing
 	 * @throws ru.dmerkushov.dbhelper.DbHelperException
@@ -545,6 +1113,51 @@ public class DbHelper {
 	public int performDbUpdate (String sql, Object... sqlParams) throws DbHelperException {
 		getLoggerWrapper ().entering (sql, sqlParams);
 
+		int toReturn = performDbUpdate (sql, sqlParams, defaultQueryTimeoutMillis);
+
+		getLoggerWrapper ().exiting (toReturn);
+
+		return toReturn;
+	}
+
+	/**
+	 * Perform an update to the database with a query timeout
+	 *
+	 * @param sql SQL code, where question marks (?) are placeholders for
+	 * parameters
+	 * @param sqlParams Query parameters. Supported types are: {@link String}, {@link Boolean}, {@link Long}, {@link Integer}, {@link Double}, {@link Float}, {@link java.math.BigDecimal}, {@link java.sql.Time}, {@link java.sql.Timestamp}, {@link java.sql.Date}, and for BLOB/CLOB columns <code>byte[]</code> and streams, see {@link StreamParameter}
+	 * @param queryTimeoutMillis timeout in milliseconds, 0 means no timeout. Overrides the {@link #setDefaultQueryTimeout(long) default timeout}
+	 * @return either (1) the row count for SQL Data Manipulation Language (DML)
+	 * statements or (2) 0 for SQL statements that return nothing
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @throws ru.dmerkushov.dbhelper.DbHelperTimeoutException If the update has been cancelled because of the timeout or the thread's {@link DbDeadline}
+	 * @throws IllegalArgumentException If one or more of the params is not of supported class
+	 */
+	public int performDbUpdate (String sql, Object[] sqlParams, long queryTimeoutMillis) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams, queryTimeoutMillis);
+
+		int toReturn;
+		StatementInterceptor[] chain = interceptors;
+		if (chain.length == 0) {
+			toReturn = executeUpdate (sql, sqlParams, queryTimeoutMillis, null);
+		} else {
+			ExecutionContext context = new ExecutionContext (this, chain, ExecutionContext.Kind.UPDATE, sql, sqlParams, null);
+			try {
+				context.beforePrepare ();
+				toReturn = executeUpdate (context.getSql (), sqlParams, queryTimeoutMillis, context);
+			} catch (DbHelperException | RuntimeException ex) {
+				context.onError (ex);
+				throw ex;
+			}
+		}
+
+		getLoggerWrapper ().exiting (toReturn);
+		return toReturn;
+	}
+
+	private int executeUpdate (String sql, Object[] sqlParams, long queryTimeoutMillis, ExecutionContext context) throws DbHelperException {
+		long timeoutMillis = effectiveQueryTimeout (sql, queryTimeoutMillis);
+
 		Integer toReturn = null;
 		PreparedStatement ps = null;
 
@@ -563,152 +1176,1151 @@ public class DbHelper {
 		if (dbConnection != null) {
 			getLoggerWrapper ().info ("Preparing a statement for SQL: \"" + sql + "\"");
 			try {
-				ps = dbConnection.prepareStatement (sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+				ps = prepareStatement (sql, ResultSet.TYPE_SCROLL_INSENSITIVE);
 			} catch (SQLException ex) {
 				throw new DbHelperException ("Received a SQLException when trying to prepare statement for SQL: \"" + sql + "\".", ex);
 			}
 
 			getLoggerWrapper ().info ("PreparedStatement for SQL: \"" + sql + "\" prepared");
 
+			List<Closeable> openedStreams = new ArrayList<> ();
 			try {
-				if (sqlParams != null) {
+				if (context != null) {
+					context.beforeBind ();
+					sqlParams = context.getParameters ();
+				}
 
-					getLoggerWrapper ().info ("Running through parameters for SQL: \"" + sql + "\"");
+				setStatementParameters (ps, sql, sqlParams, openedStreams);
 
-					for (int paramIndex = 0; paramIndex < sqlParams.length; paramIndex++) {
-						Object param = sqlParams[paramIndex];
+				getLoggerWrapper ().info ("Executing update for SQL: \"" + sql + "\"");
 
-						if (param == null) {
+				if (context != null) {
+					context.beforeExecute ();
+				}
 
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a null");
-							try {
-								ps.setObject (paramIndex + 1, null);					// i+1, because the first parameter for PreparedStatement.setX() functions is #1
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a String parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+				setQueryTimeout (ps, sql, timeoutMillis);
+				StatementWatchdog watchdog = StatementWatchdog.arm (ps, timeoutMillis);
+				try {
+					toReturn = ps.executeUpdate ();
+				} catch (SQLException ex) {
+					checkConnectionFailure (ex);
+					if (watchdog.disarm () || ex instanceof SQLTimeoutException) {
+						throw new DbHelperTimeoutException ("Update timed out after " + timeoutMillis + " ms for SQL: \"" + sql + "\".", ex);
+					}
+					throw new DbHelperException ("Received a SQLException when trying to execute query for SQL: \"" + sql + "\".", ex);
+				} finally {
+					watchdog.disarm ();
+				}
 
-						} else if (param instanceof java.lang.String) {
+				if (context != null) {
+					context.setRowCount (toReturn);
+					context.afterExecute ();
+				}
 
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a String: " + (String) param);
-							try {
-								ps.setString (paramIndex + 1, (String) param);					// i+1, because the first parameter for PreparedStatement.setX() functions is #1
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a String parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+			} finally {
+				closeStreams (openedStreams, sql);
+				closeStatement (ps, sql);
+			}
 
-						} else if (param instanceof java.lang.Boolean) {
+		}
 
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Boolean: " + String.valueOf (param));
+		return toReturn;
+	}
 
-							try {
-								if (ps.getConnection ().getMetaData ().getDriverName ().contains ("Informix")) {	// Informix JDBC driver has no direct support for setBoolean()
-									getLoggerWrapper ().info ("Database type is Informix, must use strings \"T\"/\"F\" for boolean");
-									ps.setString (paramIndex + 1, (Boolean) param ? "t" : "f");
-								} else {
-									ps.setBoolean (paramIndex + 1, (Boolean) param);
-								}
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a Boolean parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+	/**
+	 * Insert a row and get its generated key, using
+	 * {@link Statement#RETURN_GENERATED_KEYS}. The driver decides which
+	 * column is returned: usually the identity (serial, auto-increment)
+	 * column; PostgreSQL returns all the columns of the row, so the key must
+	 * be the first one. Use {@link #performDbInsertReturningKeys(java.lang.String, java.lang.String[], java.lang.Object[]) }
+	 * to name the key column (required on Oracle)
+	 *
+	 * @param sql INSERT statement, where question marks (?) are placeholders for
+	 * parameters
+	 * @param sqlParams Query parameters. Supported types are the same as for {@link #performDbUpdate(java.lang.String, java.lang.Object[]) }
+	 * @return the generated key, or null if the driver returned none
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public Long performDbInsertReturningKeys (String sql, Object... sqlParams) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, sqlParams);
 
-						} else if (param instanceof java.lang.Long) {
+		Long key = performDbInsertReturningKeys (sql, null, sqlParams);
 
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Long: " + String.valueOf (param));
+		getLoggerWrapper ().exiting (key);
+		return key;
+	}
 
-							try {
-								ps.setLong (paramIndex + 1, (Long) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a Long parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+	/**
+	 * Insert a row and get the generated key from the named column
+	 *
+	 * @param sql INSERT statement, where question marks (?) are placeholders for
+	 * parameters
+	 * @param keyColumns the columns to return, the key must be the first one. Null to let the driver decide
+	 * @param sqlParams Query parameters. Supported types are the same as for {@link #performDbUpdate(java.lang.String, java.lang.Object[]) }
+	 * @return the generated key, or null if the driver returned none
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public Long performDbInsertReturningKeys (String sql, String[] keyColumns, Object[] sqlParams) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, keyColumns, sqlParams);
 
-						} else if (param instanceof java.lang.Integer) {
+		long[] keys = insertReturningKeys (sql, keyColumns, Collections.singletonList (sqlParams), false);
+		Long key = (keys.length > 0 ? keys[0] : null);
 
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is an Integer: " + String.valueOf (param));
+		getLoggerWrapper ().exiting (key);
+		return key;
+	}
 
-							try {
-								ps.setInt (paramIndex + 1, (Integer) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set an Integer parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+	/**
+	 * Insert a batch of rows and get their generated keys. If the driver
+	 * returns the keys of a whole batch (see {@link DbDialect#supportsBatchGeneratedKeys() }),
+	 * the rows are sent in one round trip, else they are inserted one by one
+	 * reusing the same prepared statement
+	 *
+	 * @param sql INSERT statement, where question marks (?) are placeholders for
+	 * parameters
+	 * @param rows Query parameters for every row. Supported types are the same as for {@link #performDbUpdate(java.lang.String, java.lang.Object[]) }
+	 * @return the generated keys, in the order of the rows
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also if the driver has not returned a key for every row
+	 */
+	public long[] performDbBatchInsertReturningKeys (String sql, List<Object[]> rows) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, rows);
 
-						} else if (param instanceof java.lang.Double) {
+		long[] keys = performDbBatchInsertReturningKeys (sql, null, rows);
 
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Double: " + String.valueOf (param));
+		getLoggerWrapper ().exiting (keys);
+		return keys;
+	}
+
+	/**
+	 * Insert a batch of rows and get their generated keys from the named
+	 * column
+	 *
+	 * @param sql INSERT statement, where question marks (?) are placeholders for
+	 * parameters
+	 * @param keyColumns the columns to return, the key must be the first one. Null to let the driver decide
+	 * @param rows Query parameters for every row. Supported types are the same as for {@link #performDbUpdate(java.lang.String, java.lang.Object[]) }
+	 * @return the generated keys, in the order of the rows
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also if the driver has not returned a key for every row
+	 * @see #performDbBatchInsertReturningKeys(java.lang.String, java.util.List)
+	 */
+	public long[] performDbBatchInsertReturningKeys (String sql, String[] keyColumns, List<Object[]> rows) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, keyColumns, rows);
+
+		if (rows == null) {
+			throw new DbHelperException ("Rows provided are null");
+		}
+
+		long[] keys;
+		if (rows.isEmpty ()) {
+			keys = new long[0];
+		} else {
+			keys = insertReturningKeys (sql, keyColumns, rows, getDialect ().supportsBatchGeneratedKeys ());
+			if (keys.length != rows.size ()) {
+				throw new DbHelperException ("Got " + keys.length + " generated keys for " + rows.size () + " rows inserted by SQL: \"" + sql + "\"");
+			}
+		}
+
+		getLoggerWrapper ().exiting (keys);
+		return keys;
+	}
+
+	private long[] insertReturningKeys (String sql, String[] keyColumns, List<Object[]> rows, boolean batch) throws DbHelperException {
+		StatementInterceptor[] chain = interceptors;
+		if (chain.length == 0) {
+			return executeInsertReturningKeys (sql, keyColumns, rows, batch, null);
+		}
+
+		ExecutionContext context = new ExecutionContext (this, chain, ExecutionContext.Kind.INSERT_RETURNING_KEYS, sql, (rows.size () == 1 ? rows.get (0) : null), rows);
+		try {
+			context.beforePrepare ();
+			return executeInsertReturningKeys (context.getSql (), keyColumns, rows, batch, context);
+		} catch (DbHelperException | RuntimeException ex) {
+			context.onError (ex);
+			throw ex;
+		}
+	}
+
+	private long[] executeInsertReturningKeys (String sql, String[] keyColumns, List<Object[]> rows, boolean batch, ExecutionContext context) throws DbHelperException {
+		long timeoutMillis = effectiveQueryTimeout (sql, defaultQueryTimeoutMillis);
+
+		openDbConnection ();
+
+		if (dbConnection == null) {
+			throw new DbHelperException ("Database connection is null");
+		}
+		if (sql == null) {
+			throw new DbHelperException ("SQL provided is null");
+		}
+
+		getLoggerWrapper ().info ("Preparing a statement returning generated keys for SQL: \"" + sql + "\"");
+		PreparedStatement ps;
+		try {
+			if (keyColumns != null) {
+				ps = dbConnection.prepareStatement (sql, keyColumns);
+			} else {
+				ps = dbConnection.prepareStatement (sql, Statement.RETURN_GENERATED_KEYS);
+			}
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to prepare statement for SQL: \"" + sql + "\".", ex);
+		}
+
+		long[] keys = new long[rows.size ()];
+		int keyCount = 0;
+
+		List<Closeable> openedStreams = new ArrayList<> ();
+		try {
+			if (context != null) {
+				context.beforeBind ();
+				rows = context.getBatchParameters ();
+				if (rows.size () != keys.length) {
+					keys = new long[rows.size ()];
+				}
+			}
+
+			setQueryTimeout (ps, sql, timeoutMillis);
+			StatementWatchdog watchdog = StatementWatchdog.arm (ps, timeoutMillis);
+			try {
+				if (context != null) {
+					context.beforeExecute ();
+				}
+				if (batch) {
+					for (Object[] sqlParams : rows) {
+						setStatementParameters (ps, sql, sqlParams, openedStreams);
+						ps.addBatch ();
+					}
+					getLoggerWrapper ().info ("Executing batch of " + rows.size () + " inserts for SQL: \"" + sql + "\"");
+					ps.executeBatch ();
+					keyCount = readGeneratedKeys (ps, keys, keyCount);
+				} else {
+					for (Object[] sqlParams : rows) {
+						setStatementParameters (ps, sql, sqlParams, openedStreams);
+						getLoggerWrapper ().info ("Executing insert for SQL: \"" + sql + "\"");
+						ps.executeUpdate ();
+						closeStreams (openedStreams, sql);
+						keyCount = readGeneratedKeys (ps, keys, keyCount);
+					}
+				}
+			} catch (SQLException ex) {
+				checkConnectionFailure (ex);
+				if (watchdog.disarm () || ex instanceof SQLTimeoutException) {
+					throw new DbHelperTimeoutException ("Insert timed out after " + timeoutMillis + " ms for SQL: \"" + sql + "\".", ex);
+				}
+				throw new DbHelperException ("Received a SQLException when trying to execute insert for SQL: \"" + sql + "\".", ex);
+			} finally {
+				watchdog.disarm ();
+			}
+
+			if (context != null) {
+				context.setRowCount (keyCount);
+				context.afterExecute ();
+			}
+		} finally {
+			closeStreams (openedStreams, sql);
+			closeStatement (ps, sql);
+		}
+
+		return (keyCount == keys.length ? keys : Arrays.copyOf (keys, keyCount));
+	}
+
+	private int readGeneratedKeys (PreparedStatement ps, long[] keys, int keyCount) throws SQLException {
+		try (ResultSet keysRs = ps.getGeneratedKeys ()) {
+			while (keysRs.next () && keyCount < keys.length) {
+				keys[keyCount++] = keysRs.getLong (1);
+			}
+		}
+		return keyCount;
+	}
+	
+	/**
+	 * Perform a batch of updates to the database in one round trip
+	 *
+	 * @param sql SQL code, where question marks (?) are placeholders for
+	 * parameters
+	 * @param rows Query parameters for every statement of the batch. Supported types are the same as for {@link #performDbUpdate(java.lang.String, java.lang.Object[]) }
+	 * @return the update counts, in the order of the rows. The driver may
+	 * return {@link Statement#SUCCESS_NO_INFO} instead of a count
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public int[] performDbBatchUpdate (String sql, List<Object[]> rows) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, rows);
+
+		if (rows == null) {
+			throw new DbHelperException ("Rows provided are null");
+		}
+
+		int[] toReturn;
+		StatementInterceptor[] chain = interceptors;
+		if (rows.isEmpty ()) {
+			toReturn = new int[0];
+		} else if (chain.length == 0) {
+			toReturn = executeBatchUpdate (sql, rows, null);
+		} else {
+			ExecutionContext context = new ExecutionContext (this, chain, ExecutionContext.Kind.BATCH_UPDATE, sql, null, rows);
+			try {
+				context.beforePrepare ();
+				toReturn = executeBatchUpdate (context.getSql (), rows, context);
+			} catch (DbHelperException | RuntimeException ex) {
+				context.onError (ex);
+				throw ex;
+			}
+		}
+
+		getLoggerWrapper ().exiting (toReturn);
+		return toReturn;
+	}
+
+	private int[] executeBatchUpdate (String sql, List<Object[]> rows, ExecutionContext context) throws DbHelperException {
+		long timeoutMillis = effectiveQueryTimeout (sql, defaultQueryTimeoutMillis);
+
+		openDbConnection ();
+
+		if (dbConnection == null) {
+			throw new DbHelperException ("Database connection is null");
+		}
+		if (sql == null) {
+			throw new DbHelperException ("SQL provided is null");
+		}
+
+		getLoggerWrapper ().info ("Preparing a statement for SQL: \"" + sql + "\"");
+		PreparedStatement ps;
+		try {
+			ps = prepareStatement (sql, ResultSet.TYPE_SCROLL_INSENSITIVE);
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to prepare statement for SQL: \"" + sql + "\".", ex);
+		}
+
+		int[] toReturn;
+		List<Closeable> openedStreams = new ArrayList<> ();
+		try {
+			if (context != null) {
+				context.beforeBind ();
+				rows = context.getBatchParameters ();
+			}
 
-							try {
-								ps.setDouble (paramIndex + 1, (Double) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a Double parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+			setQueryTimeout (ps, sql, timeoutMillis);
+			StatementWatchdog watchdog = StatementWatchdog.arm (ps, timeoutMillis);
+			try {
+				for (Object[] sqlParams : rows) {
+					setStatementParameters (ps, sql, sqlParams, openedStreams);
+					ps.addBatch ();
+				}
+				getLoggerWrapper ().info ("Executing batch of " + rows.size () + " updates for SQL: \"" + sql + "\"");
+				if (context != null) {
+					context.beforeExecute ();
+				}
+				toReturn = ps.executeBatch ();
+			} catch (SQLException ex) {
+				checkConnectionFailure (ex);
+				if (watchdog.disarm () || ex instanceof SQLTimeoutException) {
+					throw new DbHelperTimeoutException ("Batch update timed out after " + timeoutMillis + " ms for SQL: \"" + sql + "\".", ex);
+				}
+				throw new DbHelperException ("Received a SQLException when trying to execute batch update for SQL: \"" + sql + "\".", ex);
+			} finally {
+				watchdog.disarm ();
+			}
+
+			if (context != null) {
+				long rowCount = 0L;
+				for (int count : toReturn) {
+					rowCount += Math.max (count, 0);
+				}
+				context.setRowCount (rowCount);
+				context.afterExecute ();
+			}
+		} finally {
+			closeStreams (openedStreams, sql);
+			closeStatement (ps, sql);
+		}
+
+		return toReturn;
+	}
+
+	/**
+	 * Insert a row, or update it if a row with the same key exists, in a
+	 * single statement native to the database's dialect (see {@link DbDialect#upsert(java.lang.String, java.lang.String[], java.lang.String[]) }).
+	 * The SQL is generated once per table, key and set of columns, and cached
+	 *
+	 * @param table
+	 * @param keyColumns the columns of the primary key or a unique constraint,
+	 * which must all have values
+	 * @param values column values by column name. Supported types are the same as for {@link #performDbUpdate(java.lang.String, java.lang.Object[]) }
+	 * @return the row count reported by the driver (MySQL reports 2 for an
+	 * updated row)
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also if the dialect
+	 * has no upsert statement
+	 * @throws IllegalArgumentException if a table or column name is not valid
+	 */
+	public int upsert (String table, String[] keyColumns, Map<String, ?> values) throws DbHelperException {
+		getLoggerWrapper ().entering (table, keyColumns, values);
+
+		if (values == null) {
+			throw new DbHelperException ("Values provided are null");
+		}
+
+		UpsertStatement statement = UpsertStatement.get (upsertDialect (), table, keyColumns, values.keySet ());
+		int toReturn = performDbUpdate (statement.getSql (), statement.toParameterArray (values), defaultQueryTimeoutMillis);
+
+		getLoggerWrapper ().exiting (toReturn);
+		return toReturn;
+	}
+
+	/**
+	 * Insert a row, or update it if a row with the same primary key exists,
+	 * see {@link #upsert(java.lang.String, java.lang.String[], java.util.Map) }.
+	 * The primary key is taken from the {@link #getSchemaMetadataCache() schema metadata cache}
+	 *
+	 * @param table
+	 * @param values column values by column name, including the primary key
+	 * @return the row count reported by the driver
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also if the table has
+	 * no primary key
+	 */
+	public int upsert (String table, Map<String, ?> values) throws DbHelperException {
+		getLoggerWrapper ().entering (table, values);
+
+		if (values == null) {
+			throw new DbHelperException ("Values provided are null");
+		}
+
+		int toReturn = upsert (table, primaryKeyColumns (table, values.keySet ()), values);
+
+		getLoggerWrapper ().exiting (toReturn);
+		return toReturn;
+	}
+
+	/**
+	 * Insert or update a batch of rows by their primary key, see
+	 * {@link #upsertBatch(java.lang.String, java.lang.String[], java.util.List) }.
+	 * The primary key is taken from the {@link #getSchemaMetadataCache() schema metadata cache}
+	 *
+	 * @param table
+	 * @param rows column values of every row by column name
+	 * @return the row counts reported by the driver, in the order of the rows
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also if the table has
+	 * no primary key
+	 */
+	public int[] upsertBatch (String table, List<? extends Map<String, ?>> rows) throws DbHelperException {
+		getLoggerWrapper ().entering (table, rows);
+
+		if (rows == null) {
+			throw new DbHelperException ("Rows provided are null");
+		}
+
+		int[] toReturn;
+		if (rows.isEmpty ()) {
+			toReturn = new int[0];
+		} else {
+			toReturn = upsertBatch (table, primaryKeyColumns (table, rows.get (0).keySet ()), rows);
+		}
+
+		getLoggerWrapper ().exiting (toReturn);
+		return toReturn;
+	}
+
+	/**
+	 * Get the dialect, checking that it has an upsert statement
+	 */
+	private DbDialect upsertDialect () throws DbHelperException {
+		DbDialect dialect = getDialect ();
+		if (!dialect.supportsUpsert ()) {
+			throw new DbHelperException ("Upsert is not supported for " + dialect);
+		}
+		return dialect;
+	}
+
+	/**
+	 * Get the primary key of a table, spelled as in the column names given
+	 */
+	private String[] primaryKeyColumns (String table, Collection<String> columns) throws DbHelperException {
+		String[] keyColumns = schemaMetadataCache.getPrimaryKey (table);
+		if (keyColumns.length == 0) {
+			throw new DbHelperException ("Table " + table + " has no primary key");
+		}
+
+		for (int i = 0; i < keyColumns.length; i++) {
+			for (String column : columns) {
+				if (column.equalsIgnoreCase (keyColumns[i])) {
+					keyColumns[i] = column;
+					break;
+				}
+			}
+		}
+		return keyColumns;
+	}
+
+	/**
+	 * Insert or update a batch of rows, see {@link #upsert(java.lang.String, java.lang.String[], java.util.Map) }.
+	 * Rows with the same set of columns are sent in one round trip, so a
+	 * batch of uniform rows is a single round trip
+	 *
+	 * @param table
+	 * @param keyColumns the columns of the primary key or a unique constraint,
+	 * which must all have values in every row
+	 * @param rows column values of every row by column name
+	 * @return the row counts reported by the driver, in the order of the rows
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also if the dialect
+	 * has no upsert statement
+	 * @throws IllegalArgumentException if a table or column name is not valid
+	 */
+	public int[] upsertBatch (String table, String[] keyColumns, List<? extends Map<String, ?>> rows) throws DbHelperException {
+		getLoggerWrapper ().entering (table, keyColumns, rows);
+
+		if (rows == null) {
+			throw new DbHelperException ("Rows provided are null");
+		}
+
+		DbDialect dialect = upsertDialect ();
+		Map<UpsertStatement, List<Integer>> rowIndexesByStatement = new LinkedHashMap<> ();
+		for (int i = 0; i < rows.size (); i++) {
+			UpsertStatement statement = UpsertStatement.get (dialect, table, keyColumns, rows.get (i).keySet ());
+			List<Integer> rowIndexes = rowIndexesByStatement.get (statement);
+			if (rowIndexes == null) {
+				rowIndexes = new ArrayList<> ();
+				rowIndexesByStatement.put (statement, rowIndexes);
+			}
+			rowIndexes.add (i);
+		}
+
+		int[] toReturn = new int[rows.size ()];
+		for (Map.Entry<UpsertStatement, List<Integer>> entry : rowIndexesByStatement.entrySet ()) {
+			UpsertStatement statement = entry.getKey ();
+			List<Object[]> batch = new ArrayList<> (entry.getValue ().size ());
+			for (int rowIndex : entry.getValue ()) {
+				batch.add (statement.toParameterArray (rows.get (rowIndex)));
+			}
+
+			int[] counts = performDbBatchUpdate (statement.getSql (), batch);
+			for (int i = 0; i < counts.length && i < entry.getValue ().size (); i++) {
+				toReturn[entry.getValue ().get (i)] = counts[i];
+			}
+		}
+
+		getLoggerWrapper ().exiting (toReturn);
+		return toReturn;
+	}
+
+	/**
+	 * Perform a query to the database, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name. Supported types are the same as for {@link #performDbQuery(java.lang.String, java.lang.Object[]) }. Use {@link NamedParameterSql#beanParameters(java.lang.Object) } to take them from a JavaBean
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public ResultSet performDbQueryNamed (String sql, Map<String, ?> namedParams) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams);
+
+		ResultSet resultSet = performDbQueryNamed (sql, namedParams, defaultQueryTimeoutMillis);
+
+		getLoggerWrapper ().exiting (resultSet);
+		return resultSet;
+	}
+
+	/**
+	 * Perform a query to the database with a query timeout, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @param queryTimeoutMillis timeout in milliseconds, 0 means no timeout
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public ResultSet performDbQueryNamed (String sql, Map<String, ?> namedParams, long queryTimeoutMillis) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams, queryTimeoutMillis);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		ResultSet resultSet = performDbQuery (compiled.getJdbcSql (), compiled.toParameterArray (namedParams), queryTimeoutMillis);
+
+		getLoggerWrapper ().exiting (resultSet);
+		return resultSet;
+	}
+
+	/**
+	 * Get the value of the designated column in the first row of the query
+	 * result, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @param columnLabel
+	 * @return the column value, or null if the query produced no result
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @see #performDbQuerySingleResult(java.lang.String, java.lang.Object[], java.lang.String)
+	 */
+	public Object performDbQuerySingleResultNamed (String sql, Map<String, ?> namedParams, String columnLabel) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams, columnLabel);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		Object result = performDbQuerySingleResult (compiled.getJdbcSql (), compiled.toParameterArray (namedParams), columnLabel);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Get the value of the designated column in the first row of the query
+	 * result, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @return the column value, or null if the query produced no result
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @see #performDbQuerySingleResult(java.lang.String, java.lang.Object[], int)
+	 */
+	public Object performDbQuerySingleResultNamed (String sql, Map<String, ?> namedParams, int columnIndex) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams, columnIndex);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		Object result = performDbQuerySingleResult (compiled.getJdbcSql (), compiled.toParameterArray (namedParams), columnIndex);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Perform a query with a single result checking its type, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @param columnLabel
+	 * @param clazz the class of which the result must be an instance, else an exception will be thrown
+	 * @return an {@link java.lang.Object} that can be converted to the given class, or null if the query produced no result
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @see #performDbQuerySingleResultCheckType(java.lang.String, java.lang.Object[], java.lang.String, java.lang.Class)
+	 */
+	public Object performDbQuerySingleResultCheckTypeNamed (String sql, Map<String, ?> namedParams, String columnLabel, Class<?> clazz) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams, columnLabel, clazz);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		Object result = performDbQuerySingleResultCheckType (compiled.getJdbcSql (), compiled.toParameterArray (namedParams), columnLabel, clazz);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Perform a query with a single result checking its type, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @param clazz the class of which the result must be an instance, else an exception will be thrown
+	 * @return an {@link java.lang.Object} that can be converted to the given class, or null if the query produced no result
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @see #performDbQuerySingleResultCheckType(java.lang.String, java.lang.Object[], int, java.lang.Class)
+	 */
+	public Object performDbQuerySingleResultCheckTypeNamed (String sql, Map<String, ?> namedParams, int columnIndex, Class<?> clazz) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams, columnIndex, clazz);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		Object result = performDbQuerySingleResultCheckType (compiled.getJdbcSql (), compiled.toParameterArray (namedParams), columnIndex, clazz);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Perform a query and get a single column as a list, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @param columnLabel
+	 * @return List of results, or an empty list (not null) when there were no results
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public List<Object> performDbQueryListNamed (String sql, Map<String, ?> namedParams, String columnLabel) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams, columnLabel);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		List<Object> result = performDbQueryList (compiled.getJdbcSql (), compiled.toParameterArray (namedParams), columnLabel);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Perform a query and get a single column as a list, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @return List of results, or an empty list (not null) when there were no results
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public List<Object> performDbQueryListNamed (String sql, Map<String, ?> namedParams, int columnIndex) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams, columnIndex);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		List<Object> result = performDbQueryList (compiled.getJdbcSql (), compiled.toParameterArray (namedParams), columnIndex);
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Check if a record exists, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @return
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @throws SQLException
+	 */
+	public boolean recordExistsNamed (String sql, Map<String, ?> namedParams) throws DbHelperException, SQLException {
+		getLoggerWrapper ().entering (sql, namedParams);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		boolean exists = recordExists (compiled.getJdbcSql (), compiled.toParameterArray (namedParams));
+
+		getLoggerWrapper ().exiting (exists);
+		return exists;
+	}
+
+	/**
+	 * Perform an update to the database, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @return either (1) the row count for SQL Data Manipulation Language (DML)
+	 * statements or (2) 0 for SQL statements that return nothing
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public int performDbUpdateNamed (String sql, Map<String, ?> namedParams) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams);
+
+		int toReturn = performDbUpdateNamed (sql, namedParams, defaultQueryTimeoutMillis);
+
+		getLoggerWrapper ().exiting (toReturn);
+		return toReturn;
+	}
+
+	/**
+	 * Perform an update to the database with a query timeout, with named parameters
+	 *
+	 * @param sql SQL code, where <code>:name</code> are placeholders for
+	 * parameters. See {@link NamedParameterSql}
+	 * @param namedParams Parameter values by name
+	 * @param queryTimeoutMillis timeout in milliseconds, 0 means no timeout
+	 * @return either (1) the row count for SQL Data Manipulation Language (DML)
+	 * statements or (2) 0 for SQL statements that return nothing
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 */
+	public int performDbUpdateNamed (String sql, Map<String, ?> namedParams, long queryTimeoutMillis) throws DbHelperException {
+		getLoggerWrapper ().entering (sql, namedParams, queryTimeoutMillis);
+
+		NamedParameterSql compiled = compileNamed (sql);
+		int toReturn = performDbUpdate (compiled.getJdbcSql (), compiled.toParameterArray (namedParams), queryTimeoutMillis);
+
+		getLoggerWrapper ().exiting (toReturn);
+		return toReturn;
+	}
+
+	private NamedParameterSql compileNamed (String sql) throws DbHelperException {
+		if (sql == null) {
+			throw new DbHelperException ("SQL provided is null");
+		}
+		return NamedParameterSql.compile (sql);
+	}
+
+	/**
+	 * Set the parameters of a prepared statement
+	 *
+	 * @param ps
+	 * @param sql SQL code of the statement, for logging
+	 * @param sqlParams Query parameters, may be null. Supported types are: {@link String}, {@link Boolean}, {@link Long}, {@link Integer}, {@link Double}, {@link Float}, {@link java.math.BigDecimal}, {@link java.sql.Time}, {@link java.sql.Timestamp}, {@link java.sql.Date},
+	 * and for BLOB/CLOB columns <code>byte[]</code>, {@link StreamParameter}, {@link InputStream}, {@link Reader}, {@link ReadableByteChannel}, {@link Path}
+	 * @param openedStreams streams opened by the binding (for {@link Path} parameters) are added here, the caller must close them with {@link #closeStreams(java.util.List, java.lang.String) } after executing the statement
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @throws IllegalArgumentException If one or more of the params is not of supported class
+	 */
+	void setStatementParameters (PreparedStatement ps, String sql, Object[] sqlParams, List<Closeable> openedStreams) throws DbHelperException {
+		if (sqlParams != null) {
+
+			getLoggerWrapper ().info ("Running through parameters for SQL: \"" + sql + "\"");
+
+			for (int paramIndex = 0; paramIndex < sqlParams.length; paramIndex++) {
+				Object param = sqlParams[paramIndex];
+
+				if (param == null) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is null");
+					try {
+						ps.setObject (paramIndex + 1, null);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a null parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.lang.String) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a String: " + (String) param);
+					try {
+						ps.setString (paramIndex + 1, (String) param);					// i+1, because the first parameter for PreparedStatement.setX() functions is #1
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a String parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.lang.Boolean) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Boolean: " + String.valueOf (param));
+
+					try {
+						if (ps.getConnection ().getMetaData ().getDriverName ().contains ("Informix")) {	// Informix JDBC driver has no direct support for setBoolean()
+							getLoggerWrapper ().info ("Database type is Informix, must use strings \"T\"/\"F\" for boolean");
+							ps.setString (paramIndex + 1, (Boolean) param ? "t" : "f");
+						} else {
+							ps.setBoolean (paramIndex + 1, (Boolean) param);
+						}
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a Boolean parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.lang.Long) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Long: " + String.valueOf (param));
+
+					try {
+						ps.setLong (paramIndex + 1, (Long) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a Long parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.lang.Integer) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is an Integer: " + String.valueOf (param));
+
+					try {
+						ps.setInt (paramIndex + 1, (Integer) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set an Integer parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.lang.Double) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Double: " + String.valueOf (param));
+
+					try {
+						ps.setDouble (paramIndex + 1, (Double) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a Double parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.lang.Float) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Float: " + String.valueOf (param));
+
+					try {
+						ps.setFloat (paramIndex + 1, (Float) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a Float parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.sql.Timestamp) {
+
+					SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Timestamp: " + sdf.format ((java.sql.Timestamp) param));
+
+					try {
+						ps.setTimestamp (paramIndex + 1, (java.sql.Timestamp) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.sql.Time) {
+
+					SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Time: " + sdf.format ((java.sql.Time) param));
+
+					try {
+						ps.setTime (paramIndex + 1, (java.sql.Time) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.sql.Date) {
+
+					SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Date: " + sdf.format ((java.sql.Date) param));
+
+					try {
+						ps.setDate (paramIndex + 1, (java.sql.Date) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof java.math.BigDecimal) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a BigDecimal: " + String.valueOf (param));
+
+					try {
+						ps.setBigDecimal (paramIndex + 1, (java.math.BigDecimal) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a BigDecimal parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof byte[]) {
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a byte array of length " + ((byte[]) param).length);
+
+					try {
+						ps.setBytes (paramIndex + 1, (byte[]) param);
+					} catch (SQLException ex) {
+						throw new DbHelperException ("Received a SQLException when trying to set a byte array parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else if (param instanceof StreamParameter || param instanceof InputStream || param instanceof Reader || param instanceof ReadableByteChannel || param instanceof Path) {
+
+					StreamParameter streamParam;
+					if (param instanceof StreamParameter) {
+						streamParam = (StreamParameter) param;
+					} else if (param instanceof InputStream) {
+						streamParam = StreamParameter.binary ((InputStream) param, StreamParameter.UNKNOWN_LENGTH);
+					} else if (param instanceof Reader) {
+						streamParam = StreamParameter.character ((Reader) param, StreamParameter.UNKNOWN_LENGTH);
+					} else if (param instanceof ReadableByteChannel) {
+						streamParam = StreamParameter.binary ((ReadableByteChannel) param, StreamParameter.UNKNOWN_LENGTH);
+					} else {
+						streamParam = StreamParameter.binary ((Path) param);
+					}
+
+					getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a " + streamParam);
+
+					try {
+						Closeable opened = streamParam.bind (ps, paramIndex + 1);
+						if (opened != null) {
+							openedStreams.add (opened);
+						}
+					} catch (SQLException | IOException ex) {
+						throw new DbHelperException ("Received an exception when trying to set a stream parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
+					}
+
+				} else {
+					IllegalArgumentException iae = new IllegalArgumentException ("Illegal class of parameter #" + String.valueOf (paramIndex).trim () + ": " + (param != null ? param.getClass ().getName () : "null") + ".\n SQL is \"" + sql + "\".\n Supported classes are: String, Boolean, Long, Integer, Double, Float, BigDecimal, java.sql.Date, java.sql.Time, java.sql.Timestamp, byte[], StreamParameter, InputStream, Reader, ReadableByteChannel, and Path");
+					throw iae;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close the statement of a result set got from {@link #performDbQuery(java.lang.String, java.lang.Object[]) },
+	 * which closes the result set as well. Failures are logged, not thrown
+	 *
+	 * @param rs may be null
+	 * @param sql SQL code of the statement, for logging
+	 */
+	void closeStatement (ResultSet rs, String sql) {
+		if (rs == null) {
+			return;
+		}
 
-						} else if (param instanceof java.lang.Float) {
+		Statement statement;
+		try {
+			statement = rs.getStatement ();
+		} catch (SQLException ex) {
+			statement = null;
+		}
 
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a Float: " + String.valueOf (param));
+		if (statement != null) {
+			closeStatement (statement, sql);
+		} else {
+			try {
+				rs.close ();
+			} catch (SQLException ex) {
+				getLoggerWrapper ().warning ("Received a SQLException when trying to close result set for SQL: \"" + sql + "\": " + ex.getMessage ());
+			}
+		}
+	}
 
-							try {
-								ps.setFloat (paramIndex + 1, (Float) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a Float parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+	/**
+	 * Close a statement. Failures are logged, not thrown
+	 *
+	 * @param statement may be null
+	 * @param sql SQL code of the statement, for logging
+	 */
+	void closeStatement (Statement statement, String sql) {
+		if (statement == null) {
+			return;
+		}
 
-						} else if (param instanceof java.sql.Timestamp) {
+		InterceptedResult intercepted = InterceptedResult.of (statement);
+		statementLeakDetector.untrack (intercepted != null ? intercepted.getStatement () : statement);
+		try {
+			statement.close ();
+		} catch (SQLException ex) {
+			getLoggerWrapper ().warning ("Received a SQLException when trying to close statement for SQL: \"" + sql + "\": " + ex.getMessage ());
+		}
 
-							SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Timestamp: " + sdf.format ((java.sql.Timestamp) param));
+		if (intercepted != null) {
+			intercepted.consumed ();	// Even if the close has failed
+		}
+	}
 
-							try {
-								ps.setTimestamp (paramIndex + 1, (java.sql.Timestamp) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+	/**
+	 * Close the statement of a result set, like {@link #closeStatement(java.sql.ResultSet, java.lang.String) },
+	 * reporting the number of rows read from it to the interceptors
+	 *
+	 * @param rs may be null
+	 * @param sql SQL code of the statement, for logging
+	 * @param rowCount
+	 */
+	void closeStatement (ResultSet rs, String sql, long rowCount) {
+		InterceptedResult intercepted = InterceptedResult.of (rs);
+		if (intercepted != null) {
+			intercepted.getContext ().setRowCount (rowCount);
+		}
+		closeStatement (rs, sql);
+	}
 
-						} else if (param instanceof java.sql.Time) {
+	/**
+	 * Add an interceptor to the end of the chain called around every
+	 * statement of this DbHelper
+	 *
+	 * @param interceptor
+	 * @see StatementInterceptor
+	 */
+	public synchronized void addInterceptor (StatementInterceptor interceptor) {
+		if (interceptor == null) {
+			throw new NullPointerException ("interceptor");
+		}
 
-							SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Time: " + sdf.format ((java.sql.Time) param));
+		StatementInterceptor[] chain = Arrays.copyOf (interceptors, interceptors.length + 1);
+		chain[chain.length - 1] = interceptor;
+		interceptors = chain;
+	}
 
-							try {
-								ps.setTime (paramIndex + 1, (java.sql.Time) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+	/**
+	 * Remove an interceptor from the chain
+	 *
+	 * @param interceptor
+	 * @return true if the interceptor has been in the chain
+	 */
+	public synchronized boolean removeInterceptor (StatementInterceptor interceptor) {
+		List<StatementInterceptor> chain = new ArrayList<> (Arrays.asList (interceptors));
+		if (!chain.remove (interceptor)) {
+			return false;
+		}
+		interceptors = (chain.isEmpty () ? NO_INTERCEPTORS : chain.toArray (new StatementInterceptor[chain.size ()]));
+		return true;
+	}
 
-						} else if (param instanceof java.sql.Date) {
+	/**
+	 * Get the interceptors called around every statement, in the order they
+	 * are called
+	 *
+	 * @return a copy of the chain
+	 */
+	public List<StatementInterceptor> getInterceptors () {
+		return new ArrayList<> (Arrays.asList (interceptors));
+	}
 
-							SimpleDateFormat sdf = new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-							getLoggerWrapper ().info ("Parameter for SQL: \"" + sql + "\" #" + String.valueOf (paramIndex).trim () + " is a java.sql.Date: " + sdf.format ((java.sql.Date) param));
+	/**
+	 * Get the detector of statements that have been left open by the callers
+	 * of {@link #performDbQuery(java.lang.String, java.lang.Object[]) }.
+	 * It is disabled unless {@link StatementLeakDetector#setEnabled(boolean) enabled}
+	 *
+	 * @return
+	 */
+	public StatementLeakDetector getStatementLeakDetector () {
+		return statementLeakDetector;
+	}
 
-							try {
-								ps.setDate (paramIndex + 1, (java.sql.Date) param);
-							} catch (SQLException ex) {
-								throw new DbHelperException ("Received a SQLException when trying to set a java.sql.Date parameter #" + String.valueOf (paramIndex).trim () + " for SQL: \"" + sql + "\".", ex);
-							}
+	/**
+	 * Close the streams opened when binding parameters. Failures are logged,
+	 * not thrown
+	 *
+	 * @param openedStreams
+	 * @param sql SQL code of the statement, for logging
+	 */
+	void closeStreams (List<Closeable> openedStreams, String sql) {
+		for (Closeable stream : openedStreams) {
+			try {
+				stream.close ();
+			} catch (IOException ex) {
+				getLoggerWrapper ().warning ("Received an IOException when trying to close a parameter stream for SQL: \"" + sql + "\": " + ex.getMessage ());
+			}
+		}
+		openedStreams.clear ();
+	}
 
-						} else {
-							IllegalArgumentException iae = new IllegalArgumentException ("Illegal class of parameter #" + String.valueOf (paramIndex).trim () + ": " + (param != null ? param.getClass ().getName () : "null") + ".\n SQL is \"" + sql + "\".\n Supported classes are: String, Boolean, Long, Integer, Double, Float, java.sql.Date, java.sql.Time, and java.sql.Timestamp");
-							throw iae;
-						}
-					}
-				}
+	/**
+	 * Check if a SQLException means the connection is lost. If so, the
+	 * connection is re-created on the next call, and its endpoint is reported
+	 * as failed when failing over
+	 *
+	 * @param ex
+	 */
+	void checkConnectionFailure (SQLException ex) {
+		String sqlState = ex.getSQLState ();
+		if (ex instanceof SQLNonTransientConnectionException || ex instanceof SQLTransientConnectionException || (sqlState != null && sqlState.startsWith ("08"))) {
+			getLoggerWrapper ().warning ("Lost the connection to " + connectionUrl + ": " + ex.getMessage ());
+			connectionBroken = true;
+			if (failoverEndpoints != null) {
+				failoverEndpoints.recordFailure (connectionUrl);
+			}
+		}
+	}
 
-				getLoggerWrapper ().info ("Executing update for SQL: \"" + sql + "\"");
+	/**
+	 * Compute the timeout for a statement from the timeout requested and the
+	 * current thread's {@link DbDeadline}
+	 *
+	 * @param sql
+	 * @param queryTimeoutMillis 0 means no timeout
+	 * @return timeout in milliseconds, 0 means no timeout
+	 * @throws DbHelperTimeoutException if the thread's deadline has already expired
+	 */
+	long effectiveQueryTimeout (String sql, long queryTimeoutMillis) throws DbHelperTimeoutException {
+		if (queryTimeoutMillis < 0) {
+			throw new IllegalArgumentException ("queryTimeoutMillis is negative: " + queryTimeoutMillis);
+		}
 
-				try {
-					toReturn = ps.executeUpdate ();
-				} catch (SQLException ex) {
-					throw new DbHelperException ("Received a SQLException when trying to execute query for SQL: \"" + sql + "\".", ex);
-				}
+		long timeoutMillis = queryTimeoutMillis;
 
-			} finally {
+		DbDeadline deadline = DbDeadline.current ();
+		if (deadline != null) {
+			long remainingMillis = deadline.remainingMillis ();
+			if (remainingMillis <= 0) {
+				throw new DbHelperTimeoutException ("Deadline expired before executing SQL: \"" + sql + "\"");
+			}
+			if (timeoutMillis == 0 || remainingMillis < timeoutMillis) {
+				timeoutMillis = remainingMillis;
 			}
-
 		}
 
-		getLoggerWrapper ().exiting (toReturn);
+		return timeoutMillis;
+	}
 
-		return toReturn;
+	/**
+	 * Pass the timeout to the driver, rounding it up to whole seconds
+	 *
+	 * @param ps
+	 * @param sql
+	 * @param timeoutMillis 0 means no timeout
+	 */
+	void setQueryTimeout (Statement ps, String sql, long timeoutMillis) {
+		if (timeoutMillis <= 0) {
+			return;
+		}
+
+		int timeoutSeconds = (int) Math.min ((timeoutMillis + 999L) / 1000L, Integer.MAX_VALUE);
+		try {
+			ps.setQueryTimeout (timeoutSeconds);
+		} catch (SQLException ex) {
+			// Some drivers do not support query timeouts, the watchdog will cancel the statement anyway
+			getLoggerWrapper ().warning ("Could not set query timeout of " + timeoutSeconds + " s for SQL: \"" + sql + "\": " + ex.getMessage ());
+		}
 	}
-	
+
 	/**
 	 * Create a DB connection, NOT forcing the re-creation if it is considered OK
 	 * @throws DbHelperException 
@@ -740,7 +2352,7 @@ public class DbHelper {
 		/**
 		 * A flag to indicate whether we really need to open a new connection
 		 */
-		boolean needOpenDbConnection = forceRecreation;
+		boolean needOpenDbConnection = forceRecreation || connectionBroken;
 
 		if (dbConnection == null) {
 			needOpenDbConnection = true;
@@ -767,61 +2379,178 @@ public class DbHelper {
 				}
 			}
 			if (needOpenDbConnection) {
+				closePreparedStatements ();
 				try {
 					dbConnection.close ();	// If the connection is closed, nothing will happen; if opened, should close it first before re-opening
 				} catch (SQLException ex) {
-					throw new DbHelperException (ex);
+					if (!connectionBroken) {
+						throw new DbHelperException (ex);
+					}
+					getLoggerWrapper ().finer ("Could not close the lost connection: " + ex.getMessage ());
 				}
 			}
 		}
 
+		if (needOpenDbConnection && transactionConnection != null) {
+			// A new connection would silently run the rest of the transaction in autocommit mode
+			throw new DbHelperException ("The connection has been lost during a transaction");
+		}
+
 		if (needOpenDbConnection) {
 			getLoggerWrapper ().info ("Need to open a connection");
 
-			try {
-				Class.forName (driverName);
-			} catch (ClassNotFoundException ex) {
-				throw new DbHelperException ("Received a ClassNotFoundException when trying to initialize a class for the database driver: " + driverName, ex);
-			}
+			closePreparedStatements ();
+
+			loadDriver ();
+			dbConnection = null;
+			dbConnection = createConnection ();
+			connectionBroken = false;
+			initSession (dbConnection);
+		} else {
+			getLoggerWrapper ().info ("Do not need to open a connection");
+		}
+
+		getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Load the driver, open the connection and prepare the statements given,
+	 * so the first calls do not pay for it
+	 *
+	 * @param sqlManifest SQL code of the statements to prepare
+	 * @return how long every step took
+	 * @throws DbHelperException if the driver cannot be loaded
+	 * @see DbHelperWarmUp
+	 */
+	public WarmUpReport warmUp (Collection<String> sqlManifest) throws DbHelperException {
+		getLoggerWrapper ().entering (sqlManifest);
+
+		WarmUpReport report = new DbHelperWarmUp (sqlManifest).warmUp (Collections.singletonList (this));
+
+		getLoggerWrapper ().exiting (report);
+		return report;
+	}
+
+	/**
+	 * Load the JDBC driver class
+	 *
+	 * @throws DbHelperException
+	 */
+	void loadDriver () throws DbHelperException {
+		try {
+			Class.forName (driverName);
+		} catch (ClassNotFoundException ex) {
+			throw new DbHelperException ("Received a ClassNotFoundException when trying to initialize a class for the database driver: " + driverName, ex);
+		}
+
+		getLoggerWrapper ().finer ("Found class for driver name: " + driverName);
+	}
+
+	/**
+	 * Get a new connection from the driver
+	 *
+	 * @return
+	 * @throws DbHelperException
+	 */
+	Connection createConnection () throws DbHelperException {
+		if (failoverEndpoints != null) {
+			return failoverEndpoints.connect (this);
+		}
+
+		Connection connection;
+		try {
+			connection = DriverManager.getConnection (connectionUrl);
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to get a connection.", ex);
+		}
+
+		getLoggerWrapper ().finer ("Got a connection from the driver");
 
-			getLoggerWrapper ().finer ("Found class for driver name: " + driverName);
+		return connection;
+	}
+
+	/**
+	 * Initialize the session of a new connection: set autocommit on, and set
+	 * the DIRTY READ isolation mode for Informix
+	 *
+	 * @param connection
+	 * @throws DbHelperException
+	 */
+	void initSession (Connection connection) throws DbHelperException {
+		try {
+			connection.setAutoCommit (true);
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to set autocommit on", ex);
+		}
 
+		getLoggerWrapper ().info ("Autocommit is set to true");
+
+		if (driverName.equals ("com.informix.jdbc.IfxDriver")) {
+			getLoggerWrapper ().info ("Informix driver. Need to set DIRTY READ mode");
+			Statement stmt = null;
 			try {
-				dbConnection = DriverManager.getConnection (connectionUrl);
+				stmt = connection.createStatement ();
 			} catch (SQLException ex) {
-				throw new DbHelperException ("Received a SQLException when trying to get a connection.", ex);
+				throw new DbHelperException (ex);
 			}
-
-			getLoggerWrapper ().finer ("Got a connection from the driver");
-
 			try {
-				dbConnection.setAutoCommit (true);
+				stmt.execute ("set isolation to dirty read");
 			} catch (SQLException ex) {
-				throw new DbHelperException ("Received a SQLException when trying to set autocommit on", ex);
+				throw new DbHelperException (ex);
+			} finally {
+				closeStatement (stmt, "set isolation to dirty read");
 			}
+			getLoggerWrapper ().info ("DIRTY READ mode set");
+		}
+	}
 
-			getLoggerWrapper ().info ("Autocommit is set to true");
+	/**
+	 * Prepare a statement the way {@link #performDbQuery(java.lang.String, java.lang.Object[]) }
+	 * and {@link #performDbUpdate(java.lang.String, java.lang.Object[]) } do,
+	 * and keep it for the first of them executing the same SQL. That call
+	 * closes it, so only one prepare is saved. The connection must be open
+	 *
+	 * @param sql
+	 * @throws DbHelperException
+	 */
+	void prePrepareStatement (String sql) throws DbHelperException {
+		if (preparedStatements.containsKey (sql)) {
+			return;
+		}
 
-			if (driverName.equals ("com.informix.jdbc.IfxDriver")) {
-				getLoggerWrapper ().info ("Informix driver. Need to set DIRTY READ mode");
-				Statement stmt = null;
-				try {
-					stmt = dbConnection.createStatement ();
-				} catch (SQLException ex) {
-					throw new DbHelperException (ex);
-				}
-				try {
-					stmt.execute ("set isolation to dirty read");
-				} catch (SQLException ex) {
-					throw new DbHelperException (ex);
-				}
-				getLoggerWrapper ().info ("DIRTY READ mode set");
+		PreparedStatement ps;
+		try {
+			ps = dbConnection.prepareStatement (sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to prepare statement for SQL: \"" + sql + "\".", ex);
+		}
+		preparedStatements.put (sql, ps);
+	}
+
+	/**
+	 * Get a read-only statement for the SQL, either pre-prepared or a new one
+	 *
+	 * @param sql
+	 * @param resultSetType
+	 * @return
+	 * @throws SQLException
+	 */
+	private PreparedStatement prepareStatement (String sql, int resultSetType) throws SQLException {
+		if (resultSetType == ResultSet.TYPE_SCROLL_INSENSITIVE) {
+			PreparedStatement ps = preparedStatements.remove (sql);
+			if (ps != null) {
+				getLoggerWrapper ().finer ("Using a pre-prepared statement for SQL: \"" + sql + "\"");
+				return ps;
 			}
-		} else {
-			getLoggerWrapper ().info ("Do not need to open a connection");
 		}
+		return dbConnection.prepareStatement (sql, resultSetType, ResultSet.CONCUR_READ_ONLY);
+	}
 
-		getLoggerWrapper ().exiting ();
+	private void closePreparedStatements () {
+		for (Map.Entry<String, PreparedStatement> entry : preparedStatements.entrySet ()) {
+			closeStatement (entry.getValue (), entry.getKey ());
+		}
+		preparedStatements.clear ();
 	}
 
 	/**
@@ -904,6 +2633,224 @@ public class DbHelper {
 		getLoggerWrapper ().exiting ();
 	}
 
+	/**
+	 * Run a transaction, retrying it on deadlocks and serialization failures
+	 * as decided by {@link TransactionRetryPolicy#DEFAULT}
+	 *
+	 * @param <T>
+	 * @param callback
+	 * @return the result of the callback
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException
+	 * @see #inTransaction(ru.dmerkushov.dbhelper.TransactionRetryPolicy, ru.dmerkushov.dbhelper.TransactionCallback)
+	 */
+	public <T> T inTransaction (TransactionCallback<T> callback) throws DbHelperException {
+		return inTransaction (TransactionRetryPolicy.DEFAULT, callback);
+	}
+
+	/**
+	 * Run a transaction on the connection of the DbHelper. Autocommit is
+	 * turned off and restored when the transaction is over. The transaction
+	 * is committed if the callback returns, and rolled back if it throws
+	 * anything, errors included.<br>
+	 * <br>
+	 * The DbHelper must not be used by other threads during the
+	 * transaction: its other methods are not synchronized, and whatever they
+	 * execute on the connection would become part of the transaction.<br>
+	 * <br>
+	 * When the transaction fails with a retryable exception, or the
+	 * connection is lost before the commit, the callback is run again after
+	 * a backoff, up to the attempts of the retry policy and within the
+	 * thread's {@link DbDeadline}. A failed commit is not retried if the
+	 * connection is lost, since the transaction may have been committed.<br>
+	 * <br>
+	 * Called from within a transaction of the same DbHelper, the callback
+	 * runs in a savepoint instead: it is rolled back to the savepoint if it
+	 * throws, and never retried on its own. Retryable exceptions should be
+	 * let through to the outermost transaction, as some databases roll back
+	 * the whole transaction on a deadlock.
+	 *
+	 * @param <T>
+	 * @param retryPolicy
+	 * @param callback
+	 * @return the result of the callback
+	 * @throws ru.dmerkushov.dbhelper.DbHelperException also wrapping the
+	 * checked exceptions of the callback. Its runtime exceptions are thrown
+	 * as they are
+	 */
+	public <T> T inTransaction (TransactionRetryPolicy retryPolicy, TransactionCallback<T> callback) throws DbHelperException {
+		getLoggerWrapper ().entering (retryPolicy, callback);
+
+		if (retryPolicy == null) {
+			throw new NullPointerException ("retryPolicy");
+		}
+		if (callback == null) {
+			throw new NullPointerException ("callback");
+		}
+
+		T result;
+		synchronized (this) {
+			if (transactionConnection != null) {
+				result = inSavepoint (callback);
+			} else {
+				result = inNewTransaction (retryPolicy, callback);
+			}
+		}
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	private <T> T inNewTransaction (TransactionRetryPolicy retryPolicy, TransactionCallback<T> callback) throws DbHelperException {
+		for (int attempt = 1;; attempt++) {
+			openDbConnection ();
+			Connection connection = dbConnection;
+
+			boolean autoCommit;
+			try {
+				autoCommit = connection.getAutoCommit ();
+				if (autoCommit) {
+					connection.setAutoCommit (false);
+				}
+			} catch (SQLException ex) {
+				checkConnectionFailure (ex);
+				throw new DbHelperException ("Received a SQLException when trying to begin a transaction.", ex);
+			}
+
+			T result = null;
+			Exception failure = null;
+			boolean committing = false;
+			boolean committed = false;
+			transactionConnection = connection;
+			try {
+				result = callback.doInTransaction (this);
+				if (connectionBroken || dbConnection != connection) {
+					throw new DbHelperException ("The connection has been lost during a transaction");
+				}
+				committing = true;
+				connection.commit ();
+				committed = true;
+			} catch (Exception ex) {
+				failure = ex;
+			} finally {
+				// Errors are not caught, but must roll back as well
+				transactionConnection = null;
+				endTransaction (connection, autoCommit, !committed);
+			}
+
+			if (failure == null) {
+				return result;
+			}
+
+			SQLException sqlException = findSQLException (failure);
+			if (committing && sqlException != null) {
+				checkConnectionFailure (sqlException);
+			}
+			boolean connectionLost = (connectionBroken || dbConnection != connection);
+			boolean retryable;
+			if (committing) {
+				retryable = !connectionLost && sqlException != null && retryPolicy.isRetryable (sqlException);
+			} else {
+				retryable = connectionLost || (sqlException != null && retryPolicy.isRetryable (sqlException));
+			}
+
+			if (!retryable || attempt >= retryPolicy.getMaxAttempts ()) {
+				throw transactionFailure (failure);
+			}
+
+			long delayMillis = retryPolicy.backoffMillis (attempt);
+			DbDeadline deadline = DbDeadline.current ();
+			if (deadline != null && deadline.remainingMillis () <= delayMillis) {
+				throw transactionFailure (failure);
+			}
+
+			getLoggerWrapper ().warning ("Retrying the transaction in " + delayMillis + " ms, attempt " + (attempt + 1) + " of " + retryPolicy.getMaxAttempts () + ", after: " + failure.getMessage ());
+			try {
+				Thread.sleep (delayMillis);
+			} catch (InterruptedException ex) {
+				Thread.currentThread ().interrupt ();
+				throw new DbHelperException ("Interrupted while waiting to retry a transaction", failure);
+			}
+		}
+	}
+
+	private <T> T inSavepoint (TransactionCallback<T> callback) throws DbHelperException {
+		Connection connection = transactionConnection;
+
+		Savepoint savepoint;
+		try {
+			savepoint = connection.setSavepoint ();
+		} catch (SQLException ex) {
+			checkConnectionFailure (ex);
+			throw new DbHelperException ("Received a SQLException when trying to set a savepoint.", ex);
+		}
+
+		T result;
+		boolean completed = false;
+		try {
+			result = callback.doInTransaction (this);
+			completed = true;
+		} catch (Exception ex) {
+			throw transactionFailure (ex);
+		} finally {
+			if (!completed && !connectionBroken && dbConnection == connection) {
+				try {
+					connection.rollback (savepoint);
+				} catch (SQLException ex) {
+					getLoggerWrapper ().warning ("Received a SQLException when trying to rollback to a savepoint: " + ex.getMessage ());
+				}
+			}
+		}
+
+		try {
+			connection.releaseSavepoint (savepoint);
+		} catch (SQLException ex) {
+			// Not supported by some drivers; the savepoint is released with the transaction anyway
+			getLoggerWrapper ().finer ("Could not release a savepoint: " + ex.getMessage ());
+		}
+		return result;
+	}
+
+	private void endTransaction (Connection connection, boolean autoCommit, boolean rollback) {
+		if (connectionBroken || dbConnection != connection) {
+			return;
+		}
+
+		if (rollback) {
+			try {
+				connection.rollback ();
+			} catch (SQLException ex) {
+				getLoggerWrapper ().warning ("Received a SQLException when trying to rollback transaction: " + ex.getMessage ());
+			}
+		}
+		if (autoCommit) {
+			try {
+				connection.setAutoCommit (true);
+			} catch (SQLException ex) {
+				getLoggerWrapper ().warning ("Received a SQLException when trying to restore autocommit: " + ex.getMessage ());
+			}
+		}
+	}
+
+	private static SQLException findSQLException (Throwable failure) {
+		int depth = 0;
+		for (Throwable cause = failure; cause != null && depth < 16; cause = cause.getCause (), depth++) {
+			if (cause instanceof SQLException) {
+				return (SQLException) cause;
+			}
+		}
+		return null;
+	}
+
+	private static DbHelperException transactionFailure (Exception failure) {
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof DbHelperException) {
+			return (DbHelperException) failure;
+		}
+		return new DbHelperException ("The transaction has failed", failure);
+	}
+
 	/**
 	 * Release the connection
 	 *
@@ -913,12 +2860,14 @@ public class DbHelper {
 		getLoggerWrapper ().entering ();
 
 		if (dbConnection != null) {
+			closePreparedStatements ();
 			try {
 				dbConnection.close ();
 			} catch (SQLException ex) {
 				throw new DbHelperException ("Received a SQLException when trying to close the connection.", ex);
 			}
 			dbConnection = null;
+			statementLeakDetector.clear ();
 		}
 
 		getLoggerWrapper ().exiting ();
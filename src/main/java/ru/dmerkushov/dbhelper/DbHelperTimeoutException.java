@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+/**
+ * Thrown when a statement has been cancelled because its query timeout or the
+ * current thread's {@link DbDeadline deadline} has expired
+ *
+ * @author Dmitriy Merkushov
+ */
+public class DbHelperTimeoutException extends DbHelperException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates a new instance of <code>DbHelperTimeoutException</code> without detail message.
+	 */
+	public DbHelperTimeoutException () {
+	}
+
+	/**
+	 * Constructs an instance of <code>DbHelperTimeoutException</code> with the specified detail message.
+	 * @param msg the detail message.
+	 */
+	public DbHelperTimeoutException (String msg) {
+		super (msg);
+	}
+
+	/**
+	 * Constructs an instance of <code>DbHelperTimeoutException</code> with the specified cause.
+	 * @param cause the cause (which is saved for later retrieval by the Exception.getCause() method). (A null value is permitted, and indicates that the cause is nonexistent or unknown.)
+	 */
+	public DbHelperTimeoutException (Throwable cause) {
+		super (cause);
+	}
+
+	/**
+	 * Constructs an instance of <code>DbHelperTimeoutException</code> with the specified detail message and cause.
+	 * @param msg the detail message.
+	 * @param cause the cause (which is saved for later retrieval by the Exception.getCause() method). (A null value is permitted, and indicates that the cause is nonexistent or unknown.)
+	 */
+	public DbHelperTimeoutException (String msg, Throwable cause) {
+		super (msg, cause);
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up {@link DbHelper} instances at application startup, so the first
+ * requests do not pay for it: loads the JDBC driver, opens the connections,
+ * initializes their sessions and prepares the statements listed in a
+ * manifest. The instances are warmed up in parallel, each one on its own
+ * thread, since a connection cannot be used by several threads at once.<br>
+ * <br>
+ * A pre-prepared statement is used by the first
+ * {@link DbHelper#performDbQuery(java.lang.String, java.lang.Object[]) } or
+ * {@link DbHelper#performDbUpdate(java.lang.String, java.lang.Object[]) }
+ * call with exactly the same SQL, which closes it as usual: the warm-up saves
+ * one prepare per statement, and the later calls prepare their statements
+ * again. What stays warm is the driver, the connection and its session, and
+ * whatever the database itself keeps of the first prepare (like a cached
+ * plan).
+ *
+ * @author Dmitriy Merkushov
+ */
+public class DbHelperWarmUp {
+
+	private final List<String> sqlManifest;
+
+	/**
+	 *
+	 * @param sqlManifest SQL code of the statements to prepare
+	 */
+	public DbHelperWarmUp (Collection<String> sqlManifest) {
+		if (sqlManifest == null) {
+			throw new NullPointerException ("sqlManifest");
+		}
+		this.sqlManifest = new ArrayList<> (new LinkedHashSet<> (sqlManifest));
+	}
+
+	/**
+	 * Read a manifest file: a statement per line, empty lines and lines
+	 * beginning with # or -- are skipped
+	 *
+	 * @param manifestFile UTF-8 text file
+	 * @return
+	 * @throws DbHelperException
+	 */
+	public static List<String> readManifest (Path manifestFile) throws DbHelperException {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines (manifestFile, StandardCharsets.UTF_8);
+		} catch (IOException ex) {
+			throw new DbHelperException ("Received an IOException when trying to read the warm-up manifest " + manifestFile, ex);
+		}
+
+		List<String> sqls = new ArrayList<> ();
+		for (String line : lines) {
+			String sql = line.trim ();
+			if (!sql.isEmpty () && !sql.startsWith ("#") && !sql.startsWith ("--")) {
+				sqls.add (sql);
+			}
+		}
+		return sqls;
+	}
+
+	/**
+	 * Warm up DbHelper instances, in parallel
+	 *
+	 * @param dbHelpers
+	 * @return
+	 * @throws DbHelperException if the driver cannot be loaded. Failures to connect or to prepare statements are reported in the result
+	 */
+	public WarmUpReport warmUp (List<DbHelper> dbHelpers) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (dbHelpers);
+
+		if (dbHelpers == null || dbHelpers.isEmpty ()) {
+			throw new IllegalArgumentException ("No DbHelper instances to warm up");
+		}
+
+		long startNanos = System.nanoTime ();
+
+		for (DbHelper dbHelper : dbHelpers) {
+			dbHelper.loadDriver ();
+		}
+		long driverLoadMillis = millisSince (startNanos);
+
+		List<WarmUpReport.ConnectionReport> connectionReports = new ArrayList<> ();
+
+		ExecutorService executor = Executors.newFixedThreadPool (dbHelpers.size (), new ThreadFactory () {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread (Runnable r) {
+				Thread thread = new Thread (r, "DbHelper warm-up #" + (count++));
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<WarmUpReport.ConnectionReport>> futures = new ArrayList<> ();
+			for (final DbHelper dbHelper : dbHelpers) {
+				futures.add (executor.submit (new Callable<WarmUpReport.ConnectionReport> () {
+					@Override
+					public WarmUpReport.ConnectionReport call () {
+						return warmUpConnection (dbHelper);
+					}
+				}));
+			}
+			for (Future<WarmUpReport.ConnectionReport> future : futures) {
+				try {
+					connectionReports.add (future.get ());
+				} catch (ExecutionException ex) {
+					throw new DbHelperException ("Warm-up failed", ex.getCause ());
+				} catch (InterruptedException ex) {
+					Thread.currentThread ().interrupt ();
+					throw new DbHelperException ("Interrupted while warming up", ex);
+				}
+			}
+		} finally {
+			executor.shutdownNow ();
+		}
+
+		WarmUpReport report = new WarmUpReport (driverLoadMillis, millisSince (startNanos), connectionReports);
+		DbHelper.getLoggerWrapper ().info (report.toString ());
+
+		DbHelper.getLoggerWrapper ().exiting (report);
+		return report;
+	}
+
+	private WarmUpReport.ConnectionReport warmUpConnection (DbHelper dbHelper) {
+		WarmUpReport.ConnectionReport report = new WarmUpReport.ConnectionReport ();
+
+		try {
+			long stepNanos = System.nanoTime ();
+			if (dbHelper.dbConnection == null) {
+				Connection connection = dbHelper.createConnection ();
+				report.connectMillis = millisSince (stepNanos);
+
+				stepNanos = System.nanoTime ();
+				try {
+					dbHelper.initSession (connection);
+				} catch (DbHelperException ex) {
+					try {
+						connection.close ();
+					} catch (SQLException ex1) {
+						// The session init failure is what matters
+					}
+					throw ex;
+				}
+				report.sessionInitMillis = millisSince (stepNanos);
+
+				dbHelper.dbConnection = connection;
+			} else {
+				dbHelper.openDbConnection ();
+				report.connectMillis = millisSince (stepNanos);
+			}
+		} catch (DbHelperException ex) {
+			DbHelper.getLoggerWrapper ().warning ("Could not open a connection during warm-up: " + ex.getMessage ());
+			report.failure = ex;
+			return report;
+		}
+
+		for (String sql : sqlManifest) {
+			long stepNanos = System.nanoTime ();
+			try {
+				dbHelper.prePrepareStatement (sql);
+				report.prepareMillis.put (sql, millisSince (stepNanos));
+			} catch (DbHelperException ex) {
+				DbHelper.getLoggerWrapper ().warning ("Could not prepare statement during warm-up: " + ex.getMessage ());
+				report.prepareFailures.put (sql, ex);
+			}
+		}
+
+		return report;
+	}
+
+	private static long millisSince (long startNanos) {
+		return TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - startNanos);
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.ResultSet;
+
+/**
+ * A query result that releases its result set and statement when closed. Use
+ * with try-with-resources:
+ * <pre>
+ * try (DbQueryHandle handle = dbHelper.performDbQueryHandle (sql, params)) {
+ *     ResultSet rs = handle.getResultSet ();
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author Dmitriy Merkushov
+ */
+public class DbQueryHandle implements AutoCloseable {
+
+	private final DbHelper dbHelper;
+	private final ResultSet resultSet;
+	private final String sql;
+	private boolean closed = false;
+
+	DbQueryHandle (DbHelper dbHelper, ResultSet resultSet, String sql) {
+		this.dbHelper = dbHelper;
+		this.resultSet = resultSet;
+		this.sql = sql;
+	}
+
+	/**
+	 * Get the result set of the query
+	 *
+	 * @return
+	 */
+	public ResultSet getResultSet () {
+		return resultSet;
+	}
+
+	/**
+	 * Check if the handle has been closed
+	 *
+	 * @return
+	 */
+	public boolean isClosed () {
+		return closed;
+	}
+
+	/**
+	 * Close the result set and the statement. Calling it more than once has
+	 * no effect
+	 */
+	@Override
+	public void close () {
+		if (!closed) {
+			closed = true;
+			dbHelper.closeStatement (resultSet, sql);
+		}
+	}
+}
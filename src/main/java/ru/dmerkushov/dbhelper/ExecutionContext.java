@@ -0,0 +1,299 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The execution of a statement, as seen by the {@link StatementInterceptor}s.
+ * The SQL and the parameters may be changed by the interceptors before the
+ * statement is prepared and bound; the attributes carry the interceptors'
+ * own data (like a tracing span) from one call to the next.
+ *
+ * @author Dmitriy Merkushov
+ */
+public final class ExecutionContext {
+
+	/**
+	 * Kinds of statements
+	 */
+	public enum Kind {
+
+		/**
+		 * A query, returning a result set
+		 */
+		QUERY,
+		/**
+		 * A single update
+		 */
+		UPDATE,
+		/**
+		 * A batch of updates, see {@link ExecutionContext#getBatchParameters() }
+		 */
+		BATCH_UPDATE,
+		/**
+		 * One insert or a batch of inserts returning generated keys, see
+		 * {@link ExecutionContext#getBatchParameters() }
+		 */
+		INSERT_RETURNING_KEYS,
+		/**
+		 * An execution of a {@link TypedStatement}. Its SQL cannot be
+		 * changed, and its parameters are not available
+		 */
+		TYPED
+	}
+
+	private final DbHelper dbHelper;
+	private final StatementInterceptor[] chain;
+	private final Kind kind;
+	private final String originalSql;
+	private String sql;
+	private Object[] parameters;
+	private List<Object[]> batchParameters;
+	private final long startNanos;
+	private long executeStartNanos = 0L;
+	private long executeEndNanos = 0L;
+	private long endNanos = 0L;
+	private long rowCount = -1L;
+	private Exception exception = null;
+	private Map<String, Object> attributes = null;
+
+	ExecutionContext (DbHelper dbHelper, StatementInterceptor[] chain, Kind kind, String sql, Object[] parameters, List<Object[]> batchParameters) {
+		this.dbHelper = dbHelper;
+		this.chain = chain;
+		this.kind = kind;
+		this.originalSql = sql;
+		this.sql = sql;
+		this.parameters = parameters;
+		this.batchParameters = batchParameters;
+		this.startNanos = System.nanoTime ();
+	}
+
+	/**
+	 * Get the DbHelper executing the statement
+	 *
+	 * @return
+	 */
+	public DbHelper getDbHelper () {
+		return dbHelper;
+	}
+
+	/**
+	 * Get the kind of the statement
+	 *
+	 * @return
+	 */
+	public Kind getKind () {
+		return kind;
+	}
+
+	/**
+	 * Get the SQL as the caller has given it
+	 *
+	 * @return
+	 */
+	public String getOriginalSql () {
+		return originalSql;
+	}
+
+	/**
+	 * Get the SQL to execute
+	 *
+	 * @return
+	 */
+	public String getSql () {
+		return sql;
+	}
+
+	/**
+	 * Replace the SQL to execute. Only takes effect in
+	 * {@link StatementInterceptor#beforePrepare(ru.dmerkushov.dbhelper.ExecutionContext) }
+	 *
+	 * @param sql
+	 */
+	public void setSql (String sql) {
+		if (sql == null) {
+			throw new NullPointerException ("sql");
+		}
+		this.sql = sql;
+	}
+
+	/**
+	 * Get the parameters of a single statement
+	 *
+	 * @return may be null
+	 */
+	public Object[] getParameters () {
+		return parameters;
+	}
+
+	/**
+	 * Replace the parameters of a single statement. Only takes effect up to
+	 * {@link StatementInterceptor#beforeBind(ru.dmerkushov.dbhelper.ExecutionContext) }
+	 *
+	 * @param parameters
+	 */
+	public void setParameters (Object[] parameters) {
+		this.parameters = parameters;
+	}
+
+	/**
+	 * Get the parameters of every row of a batch
+	 *
+	 * @return null if the statement is not a batch
+	 */
+	public List<Object[]> getBatchParameters () {
+		return batchParameters;
+	}
+
+	/**
+	 * Replace the parameters of the rows of a batch. Only takes effect up to
+	 * {@link StatementInterceptor#beforeBind(ru.dmerkushov.dbhelper.ExecutionContext) }
+	 *
+	 * @param batchParameters
+	 */
+	public void setBatchParameters (List<Object[]> batchParameters) {
+		if (batchParameters == null) {
+			throw new NullPointerException ("batchParameters");
+		}
+		this.batchParameters = batchParameters;
+	}
+
+	/**
+	 * Get the time the execution has taken so far, or in total once it is
+	 * over, from before the statement was prepared
+	 *
+	 * @return in nanoseconds
+	 */
+	public long getElapsedNanos () {
+		return (endNanos != 0L ? endNanos : System.nanoTime ()) - startNanos;
+	}
+
+	/**
+	 * Get the time the database has taken to execute the statement
+	 *
+	 * @return in nanoseconds, 0 if it has not been executed yet
+	 */
+	public long getExecutionNanos () {
+		if (executeStartNanos == 0L) {
+			return 0L;
+		}
+		return (executeEndNanos != 0L ? executeEndNanos : System.nanoTime ()) - executeStartNanos;
+	}
+
+	/**
+	 * Get the count of rows updated, or read from the result of a query
+	 *
+	 * @return -1 if not known
+	 */
+	public long getRowCount () {
+		return rowCount;
+	}
+
+	/**
+	 * Get the exception the statement has failed with
+	 *
+	 * @return null unless in {@link StatementInterceptor#onError(ru.dmerkushov.dbhelper.ExecutionContext) }
+	 */
+	public Exception getException () {
+		return exception;
+	}
+
+	/**
+	 * Get an attribute set by an interceptor
+	 *
+	 * @param name
+	 * @return null if not set
+	 */
+	public Object getAttribute (String name) {
+		return (attributes != null ? attributes.get (name) : null);
+	}
+
+	/**
+	 * Set an attribute, to pass data to the later calls of the interceptors
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void setAttribute (String name, Object value) {
+		if (attributes == null) {
+			attributes = new HashMap<> ();
+		}
+		attributes.put (name, value);
+	}
+
+	void setRowCount (long rowCount) {
+		this.rowCount = rowCount;
+	}
+
+	void beforePrepare () throws DbHelperException {
+		for (StatementInterceptor interceptor : chain) {
+			interceptor.beforePrepare (this);
+		}
+	}
+
+	void beforeBind () throws DbHelperException {
+		for (StatementInterceptor interceptor : chain) {
+			interceptor.beforeBind (this);
+		}
+	}
+
+	void beforeExecute () throws DbHelperException {
+		for (StatementInterceptor interceptor : chain) {
+			interceptor.beforeExecute (this);
+		}
+		executeStartNanos = System.nanoTime ();
+	}
+
+	void afterExecute () throws DbHelperException {
+		executeEndNanos = System.nanoTime ();
+		if (kind != Kind.QUERY) {
+			endNanos = executeEndNanos;
+		}
+		for (StatementInterceptor interceptor : chain) {
+			interceptor.afterExecute (this);
+		}
+	}
+
+	void afterResultConsumed () {
+		endNanos = System.nanoTime ();
+		for (StatementInterceptor interceptor : chain) {
+			try {
+				interceptor.afterResultConsumed (this);
+			} catch (RuntimeException ex) {
+				DbHelper.getLoggerWrapper ().warning ("Interceptor " + interceptor + " has failed after the result was consumed for SQL: \"" + sql + "\": " + ex);
+			}
+		}
+	}
+
+	void onError (Exception exception) {
+		if (executeStartNanos != 0L && executeEndNanos == 0L) {
+			executeEndNanos = System.nanoTime ();
+		}
+		endNanos = System.nanoTime ();
+		this.exception = exception;
+		for (StatementInterceptor interceptor : chain) {
+			try {
+				interceptor.onError (this);
+			} catch (RuntimeException ex) {
+				DbHelper.getLoggerWrapper ().warning ("Interceptor " + interceptor + " has failed on error for SQL: \"" + sql + "\": " + ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An ordered list of connection URLs to fail over between, each guarded by a
+ * circuit breaker.<br>
+ * <br>
+ * A failed connection attempt opens the breaker of the endpoint for a
+ * backoff period that doubles with every consecutive failure, up to a
+ * maximum. While the breaker is open the endpoint is skipped; when the
+ * period is over, one attempt is let through. When all the breakers are
+ * open, {@link DbHelper} fails at once with a
+ * {@link DbHelperUnavailableException} instead of waiting for connection
+ * timeouts.<br>
+ * <br>
+ * An optional background health probe tries the endpoints with open
+ * breakers and closes the breaker of an endpoint that answers, so the
+ * callers get back to it without paying for failed attempts.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class FailoverEndpoints {
+
+	/**
+	 * Time a health probe waits for a connection to prove valid
+	 */
+	static final int PROBE_VALID_TIMEOUT_SECONDS = 2;
+
+	private static final ScheduledThreadPoolExecutor prober;
+
+	static {
+		prober = new ScheduledThreadPoolExecutor (1, new ThreadFactory () {
+			@Override
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r, "DbHelper health prober");
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+		prober.setRemoveOnCancelPolicy (true);
+	}
+
+	private final List<Endpoint> endpoints;
+	private volatile long initialBackoffMillis = 100L;
+	private volatile long maxBackoffMillis = 30000L;
+	private ScheduledFuture<?> probing = null;
+
+	/**
+	 *
+	 * @param connectionUrls in the order of preference
+	 */
+	public FailoverEndpoints (List<String> connectionUrls) {
+		if (connectionUrls == null || connectionUrls.isEmpty ()) {
+			throw new IllegalArgumentException ("At least one connection URL must be given");
+		}
+
+		List<Endpoint> endpointList = new ArrayList<> ();
+		for (String connectionUrl : connectionUrls) {
+			if (connectionUrl == null) {
+				throw new NullPointerException ("connectionUrl");
+			}
+			endpointList.add (new Endpoint (connectionUrl));
+		}
+		this.endpoints = Collections.unmodifiableList (endpointList);
+	}
+
+	/**
+	 * Set the backoff of the circuit breakers
+	 *
+	 * @param initialBackoffMillis time the breaker stays open after the first failure
+	 * @param maxBackoffMillis limit of the time the breaker stays open
+	 */
+	public void setBackoff (long initialBackoffMillis, long maxBackoffMillis) {
+		if (initialBackoffMillis <= 0 || maxBackoffMillis < initialBackoffMillis) {
+			throw new IllegalArgumentException ("Illegal backoff: " + initialBackoffMillis + ".." + maxBackoffMillis);
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Get the connection URLs
+	 *
+	 * @return in the order of preference
+	 */
+	public List<String> getConnectionUrls () {
+		List<String> connectionUrls = new ArrayList<> ();
+		for (Endpoint endpoint : endpoints) {
+			connectionUrls.add (endpoint.connectionUrl);
+		}
+		return connectionUrls;
+	}
+
+	/**
+	 * Check if the circuit breaker of an endpoint is closed
+	 *
+	 * @param connectionUrl
+	 * @return
+	 */
+	public boolean isHealthy (String connectionUrl) {
+		Endpoint endpoint = find (connectionUrl);
+		return endpoint != null && endpoint.isHealthy ();
+	}
+
+	/**
+	 * Start probing the endpoints with open circuit breakers in the
+	 * background. The JDBC driver must have been loaded, which DbHelper does
+	 * when it opens its first connection
+	 *
+	 * @param intervalMillis
+	 */
+	public synchronized void startHealthProbing (long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException ("intervalMillis must be positive: " + intervalMillis);
+		}
+
+		stopHealthProbing ();
+		probing = prober.scheduleWithFixedDelay (new Runnable () {
+			@Override
+			public void run () {
+				probe ();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop probing the endpoints
+	 */
+	public synchronized void stopHealthProbing () {
+		if (probing != null) {
+			probing.cancel (false);
+			probing = null;
+		}
+	}
+
+	/**
+	 * Connect to the first endpoint, in the order of preference, whose
+	 * circuit breaker lets an attempt through
+	 *
+	 * @param dbHelper its connection URL is set to the one of the endpoint connected to
+	 * @return
+	 * @throws DbHelperUnavailableException if no endpoint could be connected to
+	 */
+	Connection connect (DbHelper dbHelper) throws DbHelperUnavailableException {
+		SQLException lastFailure = null;
+		boolean attempted = false;
+
+		for (Endpoint endpoint : endpoints) {
+			if (!endpoint.tryAcquireAttempt ()) {
+				continue;
+			}
+			attempted = true;
+
+			boolean recorded = false;
+			try {
+				Connection connection = DriverManager.getConnection (endpoint.connectionUrl);
+				endpoint.recordSuccess ();
+				recorded = true;
+				dbHelper.connectionUrl = endpoint.connectionUrl;
+				DbHelper.getLoggerWrapper ().info ("Connected to " + endpoint.connectionUrl);
+				return connection;
+			} catch (SQLException ex) {
+				long backoffMillis = endpoint.recordFailure ();
+				recorded = true;
+				DbHelper.getLoggerWrapper ().warning ("Could not connect to " + endpoint.connectionUrl + ", will not retry for " + backoffMillis + " ms: " + ex.getMessage ());
+				lastFailure = ex;
+			} finally {
+				if (!recorded) {
+					// A driver failing with an unchecked exception must not leave the attempt in progress forever
+					endpoint.recordFailure ();
+				}
+			}
+		}
+
+		if (!attempted) {
+			throw new DbHelperUnavailableException ("No database endpoint is available, next attempt in " + millisToNextAttempt () + " ms");
+		}
+		throw new DbHelperUnavailableException ("Could not connect to any database endpoint", lastFailure);
+	}
+
+	/**
+	 * Open the circuit breaker of an endpoint whose connection has failed
+	 *
+	 * @param connectionUrl
+	 */
+	void recordFailure (String connectionUrl) {
+		Endpoint endpoint = find (connectionUrl);
+		if (endpoint != null) {
+			endpoint.recordFailure ();
+		}
+	}
+
+	/**
+	 * Try every endpoint with an open circuit breaker once. A probe that
+	 * succeeds closes the breaker; a probe that fails leaves the breaker and
+	 * its backoff as they are, so the probes do not escalate the backoff of
+	 * the callers
+	 */
+	void probe () {
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.isHealthy ()) {
+				continue;
+			}
+
+			try (Connection connection = DriverManager.getConnection (endpoint.connectionUrl)) {
+				if (connection.isValid (PROBE_VALID_TIMEOUT_SECONDS)) {
+					endpoint.closeBreaker ();
+					DbHelper.getLoggerWrapper ().info ("Health probe: " + endpoint.connectionUrl + " is back");
+				}
+			} catch (SQLException | RuntimeException ex) {
+				DbHelper.getLoggerWrapper ().finer ("Health probe: " + endpoint.connectionUrl + " is down: " + ex.getMessage ());
+			}
+		}
+	}
+
+	private long millisToNextAttempt () {
+		long min = Long.MAX_VALUE;
+		for (Endpoint endpoint : endpoints) {
+			min = Math.min (min, endpoint.millisToNextAttempt ());
+		}
+		return min;
+	}
+
+	private Endpoint find (String connectionUrl) {
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.connectionUrl.equals (connectionUrl)) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+
+	private final class Endpoint {
+
+		final String connectionUrl;
+		private int consecutiveFailures = 0;
+		private long nextAttemptNanos = 0L;
+		private boolean attemptInProgress = false;
+
+		Endpoint (String connectionUrl) {
+			this.connectionUrl = connectionUrl;
+		}
+
+		synchronized boolean isHealthy () {
+			return consecutiveFailures == 0;
+		}
+
+		/**
+		 * Let an attempt through if the breaker is closed, or if it is open
+		 * but the backoff is over and no other attempt is in progress
+		 */
+		synchronized boolean tryAcquireAttempt () {
+			if (consecutiveFailures == 0) {
+				return true;
+			}
+			if (attemptInProgress || System.nanoTime () - nextAttemptNanos < 0) {
+				return false;
+			}
+			attemptInProgress = true;
+			return true;
+		}
+
+		synchronized void recordSuccess () {
+			consecutiveFailures = 0;
+			attemptInProgress = false;
+		}
+
+		/**
+		 * Close the breaker after a successful probe, leaving an attempt in
+		 * progress to its caller
+		 */
+		synchronized void closeBreaker () {
+			consecutiveFailures = 0;
+		}
+
+		synchronized long recordFailure () {
+			consecutiveFailures++;
+			attemptInProgress = false;
+
+			long backoffMillis = initialBackoffMillis;
+			for (int i = 1; i < consecutiveFailures && backoffMillis < maxBackoffMillis; i++) {
+				backoffMillis *= 2;
+			}
+			backoffMillis = Math.min (backoffMillis, maxBackoffMillis);
+
+			nextAttemptNanos = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (backoffMillis);
+			return backoffMillis;
+		}
+
+		synchronized long millisToNextAttempt () {
+			if (consecutiveFailures == 0) {
+				return 0L;
+			}
+			return Math.max (0L, TimeUnit.NANOSECONDS.toMillis (nextAttemptNanos - System.nanoTime ()));
+		}
+	}
+}
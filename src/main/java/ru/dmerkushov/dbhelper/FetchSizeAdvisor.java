@@ -0,0 +1,289 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses the fetch size for every query {@link DbHelper} executes, so that
+ * a round trip to the database transfers about a configured amount of
+ * memory. Learns per SQL string the width of a row (estimated from the
+ * result set metadata) and the typical count of rows (observed by the
+ * methods that read the whole result).<br>
+ * <br>
+ * Fetch sizes set manually, per SQL or globally, take precedence.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class FetchSizeAdvisor {
+
+	/**
+	 * When statistics are kept for more SQL strings than that, they are
+	 * forgotten, so SQL generated on the fly cannot exhaust the heap
+	 */
+	static final int MAX_STATISTICS_SIZE = 4096;
+
+	/**
+	 * Row width assumed before the first execution of a SQL
+	 */
+	static final int DEFAULT_ROW_BYTES = 512;
+
+	/**
+	 * Weight of a new row count observation in the running average
+	 */
+	static final double ROW_COUNT_WEIGHT = 0.2;
+
+	private volatile long memoryBudget = 1024L * 1024L;
+	private volatile int minFetchSize = 10;
+	private volatile int maxFetchSize = 10000;
+	private volatile int defaultFetchSize = 0;
+
+	private final ConcurrentMap<String, Integer> fetchSizes = new ConcurrentHashMap<> ();
+	private final ConcurrentMap<String, SqlStatistics> statistics = new ConcurrentHashMap<> ();
+
+	/**
+	 * Get the memory to be transferred by a round trip
+	 *
+	 * @return bytes, 0 means the fetch size is not adapted
+	 */
+	public long getMemoryBudget () {
+		return memoryBudget;
+	}
+
+	/**
+	 * Set the memory to be transferred by a round trip
+	 *
+	 * @param memoryBudget bytes, 0 to leave the fetch size to the driver unless set manually
+	 */
+	public void setMemoryBudget (long memoryBudget) {
+		if (memoryBudget < 0) {
+			throw new IllegalArgumentException ("memoryBudget is negative: " + memoryBudget);
+		}
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Set the bounds of the fetch size chosen adaptively
+	 *
+	 * @param minFetchSize
+	 * @param maxFetchSize
+	 */
+	public void setFetchSizeBounds (int minFetchSize, int maxFetchSize) {
+		if (minFetchSize <= 0 || maxFetchSize < minFetchSize) {
+			throw new IllegalArgumentException ("Illegal fetch size bounds: " + minFetchSize + ".." + maxFetchSize);
+		}
+		this.minFetchSize = minFetchSize;
+		this.maxFetchSize = maxFetchSize;
+	}
+
+	/**
+	 * Get the fetch size used for all the queries that have no fetch size
+	 * set for them
+	 *
+	 * @return 0 if the fetch size is chosen adaptively
+	 */
+	public int getDefaultFetchSize () {
+		return defaultFetchSize;
+	}
+
+	/**
+	 * Set the fetch size used for all the queries that have no fetch size
+	 * set for them
+	 *
+	 * @param defaultFetchSize 0 to choose the fetch size adaptively
+	 */
+	public void setDefaultFetchSize (int defaultFetchSize) {
+		if (defaultFetchSize < 0) {
+			throw new IllegalArgumentException ("defaultFetchSize is negative: " + defaultFetchSize);
+		}
+		this.defaultFetchSize = defaultFetchSize;
+	}
+
+	/**
+	 * Set the fetch size for a query
+	 *
+	 * @param sql SQL code exactly as passed to DbHelper
+	 * @param fetchSize 0 to choose the fetch size adaptively
+	 */
+	public void setFetchSize (String sql, int fetchSize) {
+		if (fetchSize < 0) {
+			throw new IllegalArgumentException ("fetchSize is negative: " + fetchSize);
+		}
+		if (fetchSize == 0) {
+			fetchSizes.remove (sql);
+		} else {
+			fetchSizes.put (sql, fetchSize);
+		}
+	}
+
+	/**
+	 * Forget the statistics learned
+	 */
+	public void clearStatistics () {
+		statistics.clear ();
+	}
+
+	/**
+	 * Choose the fetch size for a query
+	 *
+	 * @param sql
+	 * @return the fetch size, or 0 to leave it to the driver
+	 */
+	public int adviseFetchSize (String sql) {
+		Integer fetchSize = fetchSizes.get (sql);
+		if (fetchSize != null) {
+			return fetchSize;
+		}
+		if (defaultFetchSize > 0) {
+			return defaultFetchSize;
+		}
+
+		long budget = memoryBudget;
+		if (budget <= 0) {
+			return 0;
+		}
+
+		SqlStatistics sqlStatistics = statistics.get (sql);
+		int rowBytes = (sqlStatistics != null && sqlStatistics.rowBytes > 0 ? sqlStatistics.rowBytes : DEFAULT_ROW_BYTES);
+
+		long advised = budget / rowBytes;
+		if (sqlStatistics != null && sqlStatistics.rowCount >= 0) {
+			// No need to ask for more rows than the query usually returns: one round trip will do
+			advised = Math.min (advised, (long) Math.ceil (sqlStatistics.rowCount) + 1);
+		}
+
+		return (int) Math.max (minFetchSize, Math.min (maxFetchSize, advised));
+	}
+
+	/**
+	 * Check if the row width of a query is still to be estimated
+	 *
+	 * @param sql
+	 * @return
+	 */
+	boolean needsRowWidth (String sql) {
+		if (memoryBudget <= 0) {
+			return false;
+		}
+		SqlStatistics sqlStatistics = statistics.get (sql);
+		return sqlStatistics == null || sqlStatistics.rowBytes <= 0;
+	}
+
+	/**
+	 * Estimate the row width of a query from its result set metadata
+	 *
+	 * @param sql
+	 * @param rs
+	 */
+	void recordRowWidth (String sql, ResultSet rs) {
+		int rowBytes = 16;
+		try {
+			ResultSetMetaData rsMeta = rs.getMetaData ();
+			int columnCount = rsMeta.getColumnCount ();
+			for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++) {
+				rowBytes += estimateColumnBytes (rsMeta, columnIndex);
+			}
+		} catch (SQLException ex) {
+			DbHelper.getLoggerWrapper ().warning ("Could not estimate row width for SQL: \"" + sql + "\": " + ex.getMessage ());
+			return;
+		}
+
+		getStatistics (sql).rowBytes = rowBytes;
+	}
+
+	/**
+	 * Record the count of rows a query has returned
+	 *
+	 * @param sql
+	 * @param rowCount
+	 */
+	void recordRowCount (String sql, long rowCount) {
+		if (memoryBudget <= 0) {
+			return;
+		}
+
+		SqlStatistics sqlStatistics = getStatistics (sql);
+		double previous = sqlStatistics.rowCount;
+		sqlStatistics.rowCount = (previous < 0 ? rowCount : previous + ROW_COUNT_WEIGHT * (rowCount - previous));
+	}
+
+	private SqlStatistics getStatistics (String sql) {
+		SqlStatistics sqlStatistics = statistics.get (sql);
+		if (sqlStatistics == null) {
+			if (statistics.size () >= MAX_STATISTICS_SIZE) {
+				statistics.clear ();
+			}
+			sqlStatistics = new SqlStatistics ();
+			SqlStatistics existing = statistics.putIfAbsent (sql, sqlStatistics);
+			if (existing != null) {
+				sqlStatistics = existing;
+			}
+		}
+		return sqlStatistics;
+	}
+
+	private static int estimateColumnBytes (ResultSetMetaData rsMeta, int columnIndex) throws SQLException {
+		switch (rsMeta.getColumnType (columnIndex)) {
+			case Types.BIT:
+			case Types.BOOLEAN:
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return 8;
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+			case Types.DATE:
+			case Types.TIME:
+			case Types.TIMESTAMP:
+				return 16;
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.BINARY:
+			case Types.VARBINARY:
+				return Math.max (1, Math.min (rsMeta.getColumnDisplaySize (columnIndex), 4000));
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+				return 2 * Math.max (1, Math.min (rsMeta.getColumnDisplaySize (columnIndex), 4000));
+			case Types.BLOB:
+			case Types.CLOB:
+			case Types.NCLOB:
+				// Usually fetched as a locator
+				return 64;
+			case Types.LONGVARCHAR:
+			case Types.LONGNVARCHAR:
+			case Types.LONGVARBINARY:
+				return 4000;
+			default:
+				return 32;
+		}
+	}
+
+	private static final class SqlStatistics {
+
+		volatile int rowBytes = 0;
+		volatile double rowCount = -1.0;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * Watermarks stored in local files, one file per sync:
+ * <code>&lt;syncName&gt;.watermark</code> in the given directory. A new
+ * watermark is written to a temporary file, forced to the disk, and then
+ * moved over the previous one, so a crash never leaves a partly written
+ * watermark
+ *
+ * @author Dmitriy Merkushov
+ */
+public class FileWatermarkStore implements WatermarkStore {
+
+	private static final Pattern SYNC_NAME = Pattern.compile ("[A-Za-z0-9_.-]+");
+
+	private final Path directory;
+
+	/**
+	 *
+	 * @param directory created if it does not exist
+	 */
+	public FileWatermarkStore (Path directory) {
+		if (directory == null) {
+			throw new NullPointerException ("directory");
+		}
+		this.directory = directory;
+	}
+
+	@Override
+	public String load (String syncName) throws DbHelperException {
+		Path file = watermarkFile (syncName);
+		try {
+			return new String (Files.readAllBytes (file), StandardCharsets.UTF_8).trim ();
+		} catch (NoSuchFileException ex) {
+			return null;
+		} catch (IOException ex) {
+			throw new DbHelperException ("Received an IOException when trying to read the watermark file " + file, ex);
+		}
+	}
+
+	@Override
+	public void save (String syncName, String watermark) throws DbHelperException {
+		Path file = watermarkFile (syncName);
+		Path tempFile = null;
+		try {
+			Files.createDirectories (directory);
+			tempFile = Files.createTempFile (directory, syncName, ".tmp");
+			try (FileChannel channel = FileChannel.open (tempFile, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap (watermark.getBytes (StandardCharsets.UTF_8));
+				while (buffer.hasRemaining ()) {
+					channel.write (buffer);
+				}
+				channel.force (true);
+			}
+			try {
+				Files.move (tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move (tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			tempFile = null;
+		} catch (IOException ex) {
+			throw new DbHelperException ("Received an IOException when trying to write the watermark file " + file, ex);
+		} finally {
+			if (tempFile != null) {
+				try {
+					Files.deleteIfExists (tempFile);
+				} catch (IOException ex) {
+					DbHelper.getLoggerWrapper ().warning ("Could not delete the temporary watermark file " + tempFile + ": " + ex.getMessage ());
+				}
+			}
+		}
+	}
+
+	private Path watermarkFile (String syncName) {
+		if (syncName == null || !SYNC_NAME.matcher (syncName).matches ()) {
+			throw new IllegalArgumentException ("Not a valid sync name for a file name: " + syncName);
+		}
+		return directory.resolve (syncName + ".watermark");
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.List;
+
+/**
+ * Incremental polling of a query for rows past a watermark. The watermark is
+ * the value of one or more columns that grow monotonically with every
+ * change, like a generated ID or a modification timestamp (followed by an ID
+ * to tell apart the rows with equal timestamps).<br>
+ * <br>
+ * Every {@link #poll(java.lang.Object[], ru.dmerkushov.dbhelper.IncrementalSync.BatchConsumer) poll}
+ * fetches the rows past the watermark in batches, with
+ * {@link KeysetPagination}, so its cost depends on the count of the new rows
+ * and not on the size of the table. After the consumer has taken a batch,
+ * the watermark is saved to the {@link WatermarkStore}. If the consumer or
+ * the process fails, the batch is delivered again by the next poll, so the
+ * consumer must tolerate getting a batch twice.<br>
+ * <br>
+ * Rows that get a watermark value lower than the saved one are never seen:
+ * a timestamp must be set at commit time, not at the start of a long
+ * transaction, for the sync not to miss rows.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class IncrementalSync {
+
+	/**
+	 * Takes the batches of new rows
+	 */
+	public interface BatchConsumer {
+
+		/**
+		 * Take a batch of new rows. When this method returns, the watermark
+		 * is moved past the batch
+		 *
+		 * @param rows the rows of the query, in the order of the watermark
+		 * @throws Exception to stop the poll without moving the watermark
+		 */
+		void consume (List<Object[]> rows) throws Exception;
+	}
+
+	private final String syncName;
+	private final KeysetPagination pagination;
+	private final WatermarkStore watermarkStore;
+
+	/**
+	 *
+	 * @param dbHelper
+	 * @param syncName the name the watermark is saved under
+	 * @param baseQuery SQL code of the query to poll, where question marks (?)
+	 * are placeholders for parameters. It must not contain an ORDER BY clause,
+	 * see {@link KeysetPagination}
+	 * @param watermarkColumns the ordered watermark columns, named as in the
+	 * select list of the query
+	 * @param batchSize maximum count of rows handed to the consumer at once
+	 * @param watermarkStore
+	 */
+	public IncrementalSync (DbHelper dbHelper, String syncName, String baseQuery, String[] watermarkColumns, int batchSize, WatermarkStore watermarkStore) {
+		DbHelper.getLoggerWrapper ().entering (dbHelper, syncName, baseQuery, watermarkColumns, batchSize, watermarkStore);
+
+		if (syncName == null) {
+			throw new NullPointerException ("syncName");
+		}
+		if (watermarkStore == null) {
+			throw new NullPointerException ("watermarkStore");
+		}
+
+		this.syncName = syncName;
+		this.pagination = new KeysetPagination (dbHelper, baseQuery, watermarkColumns, batchSize);
+		this.watermarkStore = watermarkStore;
+
+		DbHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Get the name the watermark is saved under
+	 *
+	 * @return
+	 */
+	public String getSyncName () {
+		return syncName;
+	}
+
+	/**
+	 * Get the saved watermark
+	 *
+	 * @return the values of the watermark columns, or null if the sync has not
+	 * seen any rows yet
+	 * @throws DbHelperException
+	 */
+	public Object[] getWatermark () throws DbHelperException {
+		String token = watermarkStore.load (syncName);
+		return (token != null ? KeysetPage.decodeContinuationToken (token) : null);
+	}
+
+	/**
+	 * Save a watermark, for example to start a new sync from the current
+	 * end of the table instead of its beginning
+	 *
+	 * @param watermarkValues the values of the watermark columns
+	 * @throws DbHelperException
+	 */
+	public void setWatermark (Object[] watermarkValues) throws DbHelperException {
+		watermarkStore.save (syncName, KeysetPage.encodeContinuationToken (watermarkValues));
+	}
+
+	/**
+	 * Fetch all the rows past the watermark, batch by batch, and hand them to
+	 * the consumer, moving the watermark after every batch
+	 *
+	 * @param baseParams parameters of the base query, may be null
+	 * @param consumer
+	 * @return count of rows consumed
+	 * @throws DbHelperException also if the consumer has failed; the
+	 * watermark is then left before the failed batch
+	 */
+	public int poll (Object[] baseParams, BatchConsumer consumer) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (baseParams, consumer);
+
+		if (consumer == null) {
+			throw new NullPointerException ("consumer");
+		}
+
+		int rowCount = 0;
+		String watermark = watermarkStore.load (syncName);
+		KeysetPage batch;
+		do {
+			batch = (watermark == null ? pagination.fetchFirstPage (baseParams) : pagination.fetchPage (baseParams, watermark));
+			if (batch.getRows ().isEmpty ()) {
+				break;
+			}
+
+			try {
+				consumer.consume (batch.getRows ());
+			} catch (DbHelperException | RuntimeException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new DbHelperException ("The consumer of sync " + syncName + " has failed", ex);
+			}
+
+			// Not the continuation token, which is null for the last batch
+			watermark = KeysetPage.encodeContinuationToken (batch.getLastKeyValues ());
+			watermarkStore.save (syncName, watermark);
+			rowCount += batch.getRows ().size ();
+		} while (batch.hasMore ());
+
+		DbHelper.getLoggerWrapper ().info ("Sync " + syncName + " consumed " + rowCount + " rows");
+
+		DbHelper.getLoggerWrapper ().exiting (rowCount);
+		return rowCount;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * The result set of an intercepted query, and its statement, as returned to
+ * the caller. Both are proxies of the objects of the driver: closing either
+ * of them calls {@link StatementInterceptor#afterResultConsumed(ru.dmerkushov.dbhelper.ExecutionContext) }
+ * once, however the caller closes the result. Everything else is delegated;
+ * the objects of the driver are reachable with <code>unwrap</code>.<br>
+ * <br>
+ * Only queries executed while there are interceptors are wrapped.
+ *
+ * @author Dmitriy Merkushov
+ */
+final class InterceptedResult implements InvocationHandler {
+
+	private final ResultSet resultSet;
+	private final PreparedStatement statement;
+	private final ExecutionContext context;
+	private final ResultSet resultSetProxy;
+	private final PreparedStatement statementProxy;
+	private boolean consumed = false;
+
+	private InterceptedResult (ResultSet resultSet, PreparedStatement statement, ExecutionContext context) {
+		this.resultSet = resultSet;
+		this.statement = statement;
+		this.context = context;
+
+		ClassLoader classLoader = InterceptedResult.class.getClassLoader ();
+		this.resultSetProxy = (ResultSet) Proxy.newProxyInstance (classLoader, new Class<?>[] {ResultSet.class}, this);
+		this.statementProxy = (PreparedStatement) Proxy.newProxyInstance (classLoader, new Class<?>[] {PreparedStatement.class}, this);
+	}
+
+	/**
+	 * Wrap the result set of an intercepted query
+	 *
+	 * @param resultSet
+	 * @param statement the statement of the result set
+	 * @param context
+	 * @return the proxy of the result set
+	 */
+	static ResultSet wrap (ResultSet resultSet, PreparedStatement statement, ExecutionContext context) {
+		return new InterceptedResult (resultSet, statement, context).resultSetProxy;
+	}
+
+	/**
+	 * Get the intercepted result of a result set or statement
+	 *
+	 * @param object
+	 * @return null if the object is not a proxy of an intercepted result
+	 */
+	static InterceptedResult of (Object object) {
+		if (object != null && Proxy.isProxyClass (object.getClass ())) {
+			InvocationHandler handler = Proxy.getInvocationHandler (object);
+			if (handler instanceof InterceptedResult) {
+				return (InterceptedResult) handler;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the statement of the driver
+	 *
+	 * @return
+	 */
+	Statement getStatement () {
+		return statement;
+	}
+
+	/**
+	 * Get the context of the execution
+	 *
+	 * @return
+	 */
+	ExecutionContext getContext () {
+		return context;
+	}
+
+	/**
+	 * Call the interceptors once the result has been closed, only the first
+	 * time
+	 */
+	synchronized void consumed () {
+		if (!consumed) {
+			consumed = true;
+			context.afterResultConsumed ();
+		}
+	}
+
+	@Override
+	public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName ();
+		if (method.getDeclaringClass () == Object.class) {
+			switch (name) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode (proxy);
+				default:
+					return name + " of " + (proxy == resultSetProxy ? resultSet : statement);
+			}
+		}
+
+		if (proxy == resultSetProxy && name.equals ("getStatement") && method.getParameterTypes ().length == 0) {
+			return statementProxy;
+		}
+
+		Object target = (proxy == resultSetProxy ? resultSet : statement);
+		Object result;
+		try {
+			result = method.invoke (target, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause ();
+		}
+
+		if (name.equals ("close") && method.getParameterTypes ().length == 0) {
+			consumed ();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of rows returned by {@link KeysetPagination}
+ *
+ * @author Dmitriy Merkushov
+ */
+public class KeysetPage {
+
+	private final List<Object[]> rows;
+	private final Object[] lastKeyValues;
+	private final boolean hasMore;
+
+	KeysetPage (List<Object[]> rows, Object[] lastKeyValues, boolean hasMore) {
+		this.rows = Collections.unmodifiableList (rows);
+		this.lastKeyValues = lastKeyValues;
+		this.hasMore = hasMore;
+	}
+
+	/**
+	 * Get the rows of the page
+	 *
+	 * @return the rows, each one holding the column values in the order of the base query's select list
+	 */
+	public List<Object[]> getRows () {
+		return rows;
+	}
+
+	/**
+	 * Check if there are rows after this page
+	 *
+	 * @return
+	 */
+	public boolean hasMore () {
+		return hasMore;
+	}
+
+	/**
+	 * Get the key column values of the last row of the page
+	 *
+	 * @return the values, or null if the page is empty
+	 */
+	public Object[] getLastKeyValues () {
+		return (lastKeyValues != null ? lastKeyValues.clone () : null);
+	}
+
+	/**
+	 * Get the token to fetch the next page with
+	 *
+	 * @return the token, or null if this is the last page
+	 * @throws DbHelperException if a key value is of unsupported type
+	 */
+	public String getContinuationToken () throws DbHelperException {
+		if (!hasMore) {
+			return null;
+		}
+		return encodeContinuationToken (lastKeyValues);
+	}
+
+	/**
+	 * Encode key values to a string. Supported types are: {@link String},
+	 * {@link Boolean}, {@link Long}, {@link Integer}, {@link Short},
+	 * {@link Byte}, {@link Double}, {@link Float}, {@link BigDecimal},
+	 * {@link BigInteger}, {@link java.sql.Time}, {@link java.sql.Timestamp},
+	 * {@link java.sql.Date}
+	 *
+	 * @param keyValues
+	 * @return
+	 * @throws DbHelperException if a key value is null or of unsupported type
+	 */
+	static String encodeContinuationToken (Object[] keyValues) throws DbHelperException {
+		StringBuilder token = new StringBuilder ();
+
+		for (int i = 0; i < keyValues.length; i++) {
+			Object value = keyValues[i];
+
+			String type;
+			if (value instanceof String) {
+				type = "S";
+			} else if (value instanceof Long) {
+				type = "L";
+			} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				type = "I";
+			} else if (value instanceof Double) {
+				type = "D";
+			} else if (value instanceof Float) {
+				type = "F";
+			} else if (value instanceof BigDecimal || value instanceof BigInteger) {
+				type = "N";
+			} else if (value instanceof Boolean) {
+				type = "B";
+			} else if (value instanceof java.sql.Timestamp) {
+				type = "TS";
+			} else if (value instanceof java.sql.Time) {
+				type = "TM";
+			} else if (value instanceof java.sql.Date) {
+				type = "DT";
+			} else {
+				throw new DbHelperException ("Key value #" + i + " cannot be used for keyset pagination: " + (value != null ? value.getClass ().getName () : "null"));
+			}
+
+			if (i > 0) {
+				token.append (',');
+			}
+			try {
+				token.append (type).append (':').append (URLEncoder.encode (String.valueOf (value), "UTF-8"));
+			} catch (UnsupportedEncodingException ex) {
+				throw new DbHelperException (ex);
+			}
+		}
+
+		return token.toString ();
+	}
+
+	/**
+	 * Decode key values encoded by {@link #encodeContinuationToken(java.lang.Object[]) }
+	 *
+	 * @param token
+	 * @return
+	 * @throws DbHelperException if the token is malformed
+	 */
+	static Object[] decodeContinuationToken (String token) throws DbHelperException {
+		String[] parts = token.split (",", -1);
+		Object[] keyValues = new Object[parts.length];
+
+		for (int i = 0; i < parts.length; i++) {
+			int colon = parts[i].indexOf (':');
+			if (colon < 0) {
+				throw new DbHelperException ("Malformed continuation token: \"" + token + "\"");
+			}
+			String type = parts[i].substring (0, colon);
+			String value;
+			try {
+				value = URLDecoder.decode (parts[i].substring (colon + 1), "UTF-8");
+			} catch (UnsupportedEncodingException ex) {
+				throw new DbHelperException (ex);
+			}
+
+			try {
+				switch (type) {
+					case "S":
+						keyValues[i] = value;
+						break;
+					case "L":
+						keyValues[i] = Long.valueOf (value);
+						break;
+					case "I":
+						keyValues[i] = Integer.valueOf (value);
+						break;
+					case "D":
+						keyValues[i] = Double.valueOf (value);
+						break;
+					case "F":
+						keyValues[i] = Float.valueOf (value);
+						break;
+					case "N":
+						keyValues[i] = new BigDecimal (value);
+						break;
+					case "B":
+						keyValues[i] = Boolean.valueOf (value);
+						break;
+					case "TS":
+						keyValues[i] = java.sql.Timestamp.valueOf (value);
+						break;
+					case "TM":
+						keyValues[i] = java.sql.Time.valueOf (value);
+						break;
+					case "DT":
+						keyValues[i] = java.sql.Date.valueOf (value);
+						break;
+					default:
+						throw new DbHelperException ("Malformed continuation token: \"" + token + "\"");
+				}
+			} catch (IllegalArgumentException ex) {
+				throw new DbHelperException ("Malformed continuation token: \"" + token + "\"", ex);
+			}
+		}
+
+		return keyValues;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keyset (seek) pagination over a query. Instead of skipping rows with
+ * OFFSET, every page after the first one starts right after the key of the
+ * last row of the previous page, so the cost of a page does not depend on
+ * its depth.<br>
+ * <br>
+ * The base query is wrapped as a derived table, so it must not contain an
+ * ORDER BY clause, and the key columns must be named as in its select list.
+ * The key columns must identify a row uniquely and must not be null. Pages
+ * are ordered by the key columns ascending.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class KeysetPagination {
+
+	private final DbHelper dbHelper;
+	private final String[] keyColumns;
+	private final int pageSize;
+	private final String firstPageSql;
+	private final String nextPageSql;
+
+	/**
+	 *
+	 * @param dbHelper
+	 * @param baseQuery SQL code of the query to paginate, where question marks (?) are placeholders for parameters
+	 * @param keyColumns the ordered key columns
+	 * @param pageSize maximum count of rows in a page
+	 */
+	public KeysetPagination (DbHelper dbHelper, String baseQuery, String[] keyColumns, int pageSize) {
+		DbHelper.getLoggerWrapper ().entering (dbHelper, baseQuery, keyColumns, pageSize);
+
+		if (dbHelper == null) {
+			throw new NullPointerException ("dbHelper");
+		}
+		if (baseQuery == null) {
+			throw new NullPointerException ("baseQuery");
+		}
+		if (keyColumns == null || keyColumns.length == 0) {
+			throw new IllegalArgumentException ("At least one key column must be given");
+		}
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException ("pageSize must be positive: " + pageSize);
+		}
+
+		this.dbHelper = dbHelper;
+		this.keyColumns = keyColumns.clone ();
+		this.pageSize = pageSize;
+
+		DbDialect dialect = dbHelper.getDialect ();
+
+		StringBuilder orderBy = new StringBuilder (" ORDER BY ");
+		for (int i = 0; i < keyColumns.length; i++) {
+			if (i > 0) {
+				orderBy.append (", ");
+			}
+			orderBy.append (keyColumns[i]);
+		}
+
+		// (k1 > ?) OR (k1 = ? AND k2 > ?) OR ... instead of the row value comparison (k1, k2) > (?, ?), which not every database supports.
+		// With several key columns, the redundant k1 >= ? in front is what lets the optimizer start an index range scan at the page
+		// instead of filtering from the first key, which would make every next page slower, like OFFSET does
+		StringBuilder where = new StringBuilder (" WHERE ");
+		if (keyColumns.length > 1) {
+			where.append (keyColumns[0]).append (" >= ? AND (");
+		}
+		for (int i = 0; i < keyColumns.length; i++) {
+			if (i > 0) {
+				where.append (" OR ");
+			}
+			where.append ('(');
+			for (int j = 0; j < i; j++) {
+				where.append (keyColumns[j]).append (" = ? AND ");
+			}
+			where.append (keyColumns[i]).append (" > ?)");
+		}
+		if (keyColumns.length > 1) {
+			where.append (')');
+		}
+
+		// One extra row tells whether there is a next page
+		String select = "SELECT * FROM (" + baseQuery + ") kp";
+		this.firstPageSql = dialect.limitRows (select + orderBy, pageSize + 1);
+		this.nextPageSql = dialect.limitRows (select + where + orderBy, pageSize + 1);
+
+		DbHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Fetch the first page
+	 *
+	 * @param baseParams parameters of the base query, may be null
+	 * @return
+	 * @throws DbHelperException
+	 */
+	public KeysetPage fetchFirstPage (Object[] baseParams) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (baseParams);
+
+		KeysetPage page = fetchPage (baseParams, (Object[]) null);
+
+		DbHelper.getLoggerWrapper ().exiting (page);
+		return page;
+	}
+
+	/**
+	 * Fetch the page following the one the continuation token was taken from
+	 *
+	 * @param baseParams parameters of the base query, may be null
+	 * @param continuationToken a token got from {@link KeysetPage#getContinuationToken() }, or null for the first page
+	 * @return
+	 * @throws DbHelperException
+	 */
+	public KeysetPage fetchPage (Object[] baseParams, String continuationToken) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (baseParams, continuationToken);
+
+		Object[] afterKeyValues = null;
+		if (continuationToken != null) {
+			afterKeyValues = KeysetPage.decodeContinuationToken (continuationToken);
+		}
+
+		KeysetPage page = fetchPage (baseParams, afterKeyValues);
+
+		DbHelper.getLoggerWrapper ().exiting (page);
+		return page;
+	}
+
+	/**
+	 * Fetch the page of rows following the given key values
+	 *
+	 * @param baseParams parameters of the base query, may be null
+	 * @param afterKeyValues values of the key columns, or null for the first page
+	 * @return
+	 * @throws DbHelperException
+	 */
+	public KeysetPage fetchPage (Object[] baseParams, Object[] afterKeyValues) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (baseParams, afterKeyValues);
+
+		if (afterKeyValues != null && afterKeyValues.length != keyColumns.length) {
+			throw new DbHelperException ("Expected " + keyColumns.length + " key values, got " + afterKeyValues.length);
+		}
+
+		int baseParamCount = (baseParams != null ? baseParams.length : 0);
+
+		String sql;
+		Object[] sqlParams;
+		if (afterKeyValues == null) {
+			sql = firstPageSql;
+			sqlParams = baseParams;
+		} else {
+			sql = nextPageSql;
+			int rangeParamCount = (keyColumns.length > 1 ? 1 : 0);
+			sqlParams = new Object[baseParamCount + rangeParamCount + keyColumns.length * (keyColumns.length + 1) / 2];
+			if (baseParamCount > 0) {
+				System.arraycopy (baseParams, 0, sqlParams, 0, baseParamCount);
+			}
+			int paramIndex = baseParamCount;
+			if (rangeParamCount > 0) {
+				sqlParams[paramIndex++] = afterKeyValues[0];
+			}
+			for (int i = 0; i < keyColumns.length; i++) {
+				for (int j = 0; j <= i; j++) {
+					sqlParams[paramIndex++] = afterKeyValues[j];
+				}
+			}
+		}
+
+		List<Object[]> rows = new ArrayList<> ();
+		Object[] lastKeyValues = null;
+		boolean hasMore = false;
+
+		ResultSet rs = dbHelper.performDbQuery (sql, sqlParams);
+		try {
+			ResultSetMetaData rsMeta = rs.getMetaData ();
+			int columnCount = rsMeta.getColumnCount ();
+
+			while (rs.next ()) {
+				if (rows.size () == pageSize) {
+					hasMore = true;
+					break;
+				}
+
+				Object[] row = new Object[columnCount];
+				for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++) {
+					row[columnIndex - 1] = rs.getObject (columnIndex);
+				}
+				rows.add (row);
+
+				lastKeyValues = new Object[keyColumns.length];
+				for (int i = 0; i < keyColumns.length; i++) {
+					lastKeyValues[i] = rs.getObject (keyColumns[i]);
+				}
+			}
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to read a page for SQL: \"" + sql + "\".", ex);
+		} finally {
+			dbHelper.closeStatement (rs, sql, rows.size ());
+		}
+
+		KeysetPage page = new KeysetPage (rows, lastKeyValues, hasMore);
+
+		DbHelper.getLoggerWrapper ().exiting (page);
+		return page;
+	}
+}
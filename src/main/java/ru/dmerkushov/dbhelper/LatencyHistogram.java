@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with log-linear buckets, in the
+ * manner of HdrHistogram: values below 128 are counted exactly, and every
+ * power of two above is split into 64 buckets, so a value is reported with a
+ * relative error below 1/64 (about 1.6%), whatever its magnitude. The memory
+ * taken does not depend on the count of values recorded.<br>
+ * <br>
+ * Recording is lock-free, and a histogram may be read with {@link #copy() }
+ * while it is being written
+ *
+ * @author Dmitriy Merkushov
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+	private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts;
+
+	/**
+	 * Create an empty histogram
+	 */
+	public LatencyHistogram () {
+		this.counts = new AtomicLongArray (BUCKET_COUNT);
+	}
+
+	/**
+	 * Record a latency
+	 *
+	 * @param nanos negative values are counted as 0
+	 */
+	public void record (long nanos) {
+		counts.incrementAndGet (bucketIndex (Math.max (0L, nanos)));
+	}
+
+	/**
+	 * Make a snapshot of this histogram
+	 *
+	 * @return
+	 */
+	public LatencyHistogram copy () {
+		LatencyHistogram copy = new LatencyHistogram ();
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			copy.counts.set (i, counts.get (i));
+		}
+		return copy;
+	}
+
+	/**
+	 * Add the counts of another histogram to this one
+	 *
+	 * @param other
+	 */
+	public void add (LatencyHistogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long count = other.counts.get (i);
+			if (count != 0) {
+				counts.addAndGet (i, count);
+			}
+		}
+	}
+
+	/**
+	 * Subtract the counts of an earlier snapshot of this histogram, so that
+	 * only the values recorded since then are left
+	 *
+	 * @param earlier
+	 */
+	public void subtract (LatencyHistogram earlier) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long count = earlier.counts.get (i);
+			if (count != 0) {
+				counts.addAndGet (i, -count);
+			}
+		}
+	}
+
+	/**
+	 * Get the count of values recorded
+	 *
+	 * @return
+	 */
+	public long getTotalCount () {
+		long total = 0L;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			total += counts.get (i);
+		}
+		return total;
+	}
+
+	/**
+	 * Get the value below which the given percentage of the recorded values
+	 * fall
+	 *
+	 * @param percentile from 0 to 100
+	 * @return the highest value equivalent to the bucket of the percentile,
+	 * in nanoseconds; 0 if the histogram is empty
+	 */
+	public long getValueAtPercentile (double percentile) {
+		long total = getTotalCount ();
+		if (total == 0L) {
+			return 0L;
+		}
+
+		long rank = Math.max (1L, (long) Math.ceil (Math.min (100.0, percentile) / 100.0 * total));
+		long seen = 0L;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get (i);
+			if (seen >= rank) {
+				return highestEquivalentValue (i);
+			}
+		}
+		return getMaxValue ();
+	}
+
+	/**
+	 * Get the highest value recorded, with the precision of the histogram
+	 *
+	 * @return in nanoseconds; 0 if the histogram is empty
+	 */
+	public long getMaxValue () {
+		for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+			if (counts.get (i) != 0) {
+				return highestEquivalentValue (i);
+			}
+		}
+		return 0L;
+	}
+
+	/**
+	 * Get a percentile in milliseconds
+	 *
+	 * @param percentile from 0 to 100
+	 * @return
+	 * @see #getValueAtPercentile(double)
+	 */
+	public double getMillisAtPercentile (double percentile) {
+		return (double) getValueAtPercentile (percentile) / TimeUnit.MILLISECONDS.toNanos (1);
+	}
+
+	static int bucketIndex (long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros (value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+		return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	static long highestEquivalentValue (int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int shift = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+		long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The common ways to merge the results of a scatter-gather query
+ *
+ * @author Dmitriy Merkushov
+ */
+public final class MergeStrategies {
+
+	/**
+	 * How {@link #aggregate(int, ru.dmerkushov.dbhelper.MergeStrategies.Aggregate[]) aggregate}
+	 * combines the values of a column from several shards. Nulls are skipped
+	 */
+	public enum Aggregate {
+
+		/**
+		 * Sum of the values; also the way to combine COUNT(*) columns
+		 */
+		SUM,
+		MIN,
+		MAX,
+		/**
+		 * The first non-null value, in the order of the shards
+		 */
+		FIRST
+	}
+
+	private static final MergeStrategy CONCATENATE = new MergeStrategy () {
+		@Override
+		public List<Object[]> merge (List<List<Object[]>> shardRows) {
+			int rowCount = 0;
+			for (List<Object[]> rows : shardRows) {
+				rowCount += rows.size ();
+			}
+			List<Object[]> merged = new ArrayList<> (rowCount);
+			for (List<Object[]> rows : shardRows) {
+				merged.addAll (rows);
+			}
+			return merged;
+		}
+	};
+
+	private MergeStrategies () {
+	}
+
+	/**
+	 * Append the rows of every shard to the rows of the previous ones
+	 *
+	 * @return
+	 */
+	public static MergeStrategy concatenate () {
+		return CONCATENATE;
+	}
+
+	/**
+	 * Merge rows sorted on every shard (by an ORDER BY of the query) into one
+	 * sorted list, without sorting them all again
+	 *
+	 * @param comparator the order of the rows of the query
+	 * @return
+	 */
+	public static MergeStrategy orderedMerge (final Comparator<Object[]> comparator) {
+		if (comparator == null) {
+			throw new NullPointerException ("comparator");
+		}
+
+		return new MergeStrategy () {
+			@Override
+			public List<Object[]> merge (List<List<Object[]>> shardRows) {
+				int rowCount = 0;
+				for (List<Object[]> rows : shardRows) {
+					rowCount += rows.size ();
+				}
+
+				PriorityQueue<int[]> heads = new PriorityQueue<> (Math.max (1, shardRows.size ()), new HeadComparator (shardRows, comparator));
+				for (int shardIndex = 0; shardIndex < shardRows.size (); shardIndex++) {
+					if (!shardRows.get (shardIndex).isEmpty ()) {
+						heads.add (new int[] {shardIndex, 0});
+					}
+				}
+
+				List<Object[]> merged = new ArrayList<> (rowCount);
+				while (!heads.isEmpty ()) {
+					int[] head = heads.poll ();
+					List<Object[]> rows = shardRows.get (head[0]);
+					merged.add (rows.get (head[1]));
+					if (++head[1] < rows.size ()) {
+						heads.add (head);
+					}
+				}
+				return merged;
+			}
+		};
+	}
+
+	/**
+	 * Merge rows sorted on every shard by the given columns ascending, nulls
+	 * first
+	 *
+	 * @param columnIndexes the first column is 1, the second is 2, ...
+	 * @return
+	 * @see #orderedMerge(java.util.Comparator)
+	 */
+	public static MergeStrategy orderedMerge (final int... columnIndexes) {
+		if (columnIndexes == null || columnIndexes.length == 0) {
+			throw new IllegalArgumentException ("At least one column must be given");
+		}
+
+		return orderedMerge (new Comparator<Object[]> () {
+			@Override
+			public int compare (Object[] row1, Object[] row2) {
+				for (int columnIndex : columnIndexes) {
+					int result = compareValues (row1[columnIndex - 1], row2[columnIndex - 1]);
+					if (result != 0) {
+						return result;
+					}
+				}
+				return 0;
+			}
+		});
+	}
+
+	/**
+	 * Combine the partial aggregates of the shards, like the results of
+	 * <code>SELECT region, COUNT(*), MAX(amount) FROM orders GROUP BY region</code>.
+	 * Rows are grouped by their first <code>groupColumnCount</code> columns,
+	 * and the values of every other column are combined as given. Groups are
+	 * in the order they are first met
+	 *
+	 * @param groupColumnCount count of the leading columns to group by, 0 to
+	 * combine all the rows into one
+	 * @param aggregates how to combine every column after the group columns
+	 * @return
+	 */
+	public static MergeStrategy aggregate (final int groupColumnCount, final Aggregate... aggregates) {
+		if (groupColumnCount < 0) {
+			throw new IllegalArgumentException ("groupColumnCount must not be negative: " + groupColumnCount);
+		}
+		if (aggregates == null) {
+			throw new NullPointerException ("aggregates");
+		}
+
+		return new MergeStrategy () {
+			@Override
+			public List<Object[]> merge (List<List<Object[]>> shardRows) {
+				Map<List<Object>, Object[]> groups = new LinkedHashMap<> ();
+				for (List<Object[]> rows : shardRows) {
+					for (Object[] row : rows) {
+						if (row.length != groupColumnCount + aggregates.length) {
+							throw new IllegalArgumentException ("Expected " + (groupColumnCount + aggregates.length) + " columns, got " + row.length);
+						}
+
+						List<Object> groupKey = Arrays.asList (Arrays.copyOf (row, groupColumnCount));
+						Object[] merged = groups.get (groupKey);
+						if (merged == null) {
+							groups.put (groupKey, row.clone ());
+							continue;
+						}
+						for (int i = 0; i < aggregates.length; i++) {
+							int column = groupColumnCount + i;
+							merged[column] = combine (aggregates[i], merged[column], row[column]);
+						}
+					}
+				}
+				return new ArrayList<> (groups.values ());
+			}
+		};
+	}
+
+	static Object combine (Aggregate aggregate, Object value1, Object value2) {
+		if (value1 == null) {
+			return value2;
+		}
+		if (value2 == null) {
+			return value1;
+		}
+
+		switch (aggregate) {
+			case SUM:
+				return sum ((Number) value1, (Number) value2);
+			case MIN:
+				return (compareValues (value1, value2) <= 0 ? value1 : value2);
+			case MAX:
+				return (compareValues (value1, value2) >= 0 ? value1 : value2);
+			default:
+				return value1;
+		}
+	}
+
+	private static Number sum (Number value1, Number value2) {
+		if (isIntegral (value1) && isIntegral (value2)) {
+			return value1.longValue () + value2.longValue ();
+		}
+		if (value1 instanceof BigDecimal || value2 instanceof BigDecimal || value1 instanceof BigInteger || value2 instanceof BigInteger) {
+			return new BigDecimal (value1.toString ()).add (new BigDecimal (value2.toString ()));
+		}
+		return value1.doubleValue () + value2.doubleValue ();
+	}
+
+	private static boolean isIntegral (Number value) {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+
+	@SuppressWarnings ("unchecked")
+	static int compareValues (Object value1, Object value2) {
+		if (value1 == null || value2 == null) {
+			return (value1 == null ? (value2 == null ? 0 : -1) : 1);
+		}
+		if (value1 instanceof Number && value2 instanceof Number && value1.getClass () != value2.getClass ()) {
+			if (value1 instanceof Double || value1 instanceof Float || value2 instanceof Double || value2 instanceof Float) {
+				return Double.compare (((Number) value1).doubleValue (), ((Number) value2).doubleValue ());
+			}
+			return new BigDecimal (value1.toString ()).compareTo (new BigDecimal (value2.toString ()));
+		}
+		return ((Comparable<Object>) value1).compareTo (value2);
+	}
+
+	private static final class HeadComparator implements Comparator<int[]> {
+
+		private final List<List<Object[]>> shardRows;
+		private final Comparator<Object[]> comparator;
+
+		HeadComparator (List<List<Object[]>> shardRows, Comparator<Object[]> comparator) {
+			this.shardRows = shardRows;
+			this.comparator = comparator;
+		}
+
+		@Override
+		public int compare (int[] head1, int[] head2) {
+			int result = comparator.compare (shardRows.get (head1[0]).get (head1[1]), shardRows.get (head2[0]).get (head2[1]));
+			// Equal rows keep the order of the shards
+			return (result != 0 ? result : Integer.compare (head1[0], head2[0]));
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.List;
+
+/**
+ * Merges the rows a scatter-gather query has got from every shard of a
+ * {@link ShardedDbHelper} into one result
+ *
+ * @author Dmitriy Merkushov
+ * @see MergeStrategies
+ */
+public interface MergeStrategy {
+
+	/**
+	 * Merge the rows of the shards
+	 *
+	 * @param shardRows the rows of every shard, in the order of the shards
+	 * @return
+	 */
+	List<Object[]> merge (List<List<Object[]>> shardRows);
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SQL with named parameters (<code>:name</code>), compiled to JDBC SQL with
+ * question marks and a map from parameter names to their positions.<br>
+ * <br>
+ * Compiled templates are cached, so every distinct SQL string is parsed only
+ * once. Names are not recognized inside string literals, quoted identifiers
+ * and comments. PostgreSQL casts (<code>::type</code>) and Informix table
+ * references (<code>db:table</code>, <code>db@server:table</code>), where
+ * the colon follows an identifier, are left intact.
+ * A name may occur several times. Positional placeholders (?) cannot be
+ * mixed with named ones.
+ *
+ * @author Dmitriy Merkushov
+ */
+public final class NamedParameterSql {
+
+	/**
+	 * When the cache grows past this size, it is cleared, so SQL generated
+	 * on the fly cannot exhaust the heap
+	 */
+	static final int MAX_CACHE_SIZE = 4096;
+
+	private static final ConcurrentMap<String, NamedParameterSql> cache = new ConcurrentHashMap<> ();
+	private static final ConcurrentMap<Class<?>, Map<String, Method>> beanGetters = new ConcurrentHashMap<> ();
+
+	private final String sql;
+	private final String jdbcSql;
+	private final String[] parameterNames;
+	private final Map<String, int[]> parameterIndexes;
+
+	private NamedParameterSql (String sql, String jdbcSql, String[] parameterNames) {
+		this.sql = sql;
+		this.jdbcSql = jdbcSql;
+		this.parameterNames = parameterNames;
+
+		Map<String, List<Integer>> positions = new LinkedHashMap<> ();
+		for (int i = 0; i < parameterNames.length; i++) {
+			List<Integer> namePositions = positions.get (parameterNames[i]);
+			if (namePositions == null) {
+				namePositions = new ArrayList<> ();
+				positions.put (parameterNames[i], namePositions);
+			}
+			namePositions.add (i + 1);
+		}
+		Map<String, int[]> indexes = new LinkedHashMap<> ();
+		for (Map.Entry<String, List<Integer>> entry : positions.entrySet ()) {
+			int[] nameIndexes = new int[entry.getValue ().size ()];
+			for (int i = 0; i < nameIndexes.length; i++) {
+				nameIndexes[i] = entry.getValue ().get (i);
+			}
+			indexes.put (entry.getKey (), nameIndexes);
+		}
+		this.parameterIndexes = Collections.unmodifiableMap (indexes);
+	}
+
+	/**
+	 * Get the compiled form of SQL with named parameters, parsing it if it
+	 * has not been parsed yet
+	 *
+	 * @param sql
+	 * @return
+	 * @throws IllegalArgumentException if the SQL mixes named and positional parameters
+	 */
+	public static NamedParameterSql compile (String sql) {
+		if (sql == null) {
+			throw new NullPointerException ("sql");
+		}
+
+		NamedParameterSql compiled = cache.get (sql);
+		if (compiled == null) {
+			compiled = parse (sql);
+			if (cache.size () >= MAX_CACHE_SIZE) {
+				cache.clear ();
+			}
+			NamedParameterSql existing = cache.putIfAbsent (sql, compiled);
+			if (existing != null) {
+				compiled = existing;
+			}
+		}
+		return compiled;
+	}
+
+	private static NamedParameterSql parse (String sql) {
+		StringBuilder jdbcSql = new StringBuilder (sql.length ());
+		List<String> names = new ArrayList<> ();
+		boolean hasPositional = false;
+
+		int length = sql.length ();
+		int i = 0;
+		while (i < length) {
+			char c = sql.charAt (i);
+
+			if (c == '\'' || c == '"') {
+				// String literal or quoted identifier, a doubled quote is an escaped one
+				int end = i + 1;
+				while (end < length) {
+					if (sql.charAt (end) == c) {
+						if (end + 1 < length && sql.charAt (end + 1) == c) {
+							end += 2;
+							continue;
+						}
+						break;
+					}
+					end++;
+				}
+				end = Math.min (end + 1, length);
+				jdbcSql.append (sql, i, end);
+				i = end;
+			} else if (c == '-' && i + 1 < length && sql.charAt (i + 1) == '-') {
+				int end = sql.indexOf ('\n', i);
+				end = (end < 0 ? length : end);
+				jdbcSql.append (sql, i, end);
+				i = end;
+			} else if (c == '/' && i + 1 < length && sql.charAt (i + 1) == '*') {
+				int end = sql.indexOf ("*/", i + 2);
+				end = (end < 0 ? length : end + 2);
+				jdbcSql.append (sql, i, end);
+				i = end;
+			} else if (c == ':' && i + 1 < length && sql.charAt (i + 1) == ':') {
+				jdbcSql.append ("::");
+				i += 2;
+			} else if (c == ':' && i + 1 < length && Character.isJavaIdentifierStart (sql.charAt (i + 1)) && !followsIdentifier (sql, i)) {
+				int end = i + 2;
+				while (end < length && Character.isJavaIdentifierPart (sql.charAt (end))) {
+					end++;
+				}
+				names.add (sql.substring (i + 1, end));
+				jdbcSql.append ('?');
+				i = end;
+			} else {
+				if (c == '?') {
+					hasPositional = true;
+				}
+				jdbcSql.append (c);
+				i++;
+			}
+		}
+
+		if (hasPositional && !names.isEmpty ()) {
+			throw new IllegalArgumentException ("SQL mixes named and positional (?) parameters: \"" + sql + "\"");
+		}
+
+		return new NamedParameterSql (sql, jdbcSql.toString (), names.toArray (new String[names.size ()]));
+	}
+
+	/**
+	 * Check if the character at a position follows an identifier, like the
+	 * colon of an Informix <code>db:table</code> or <code>db@server:table</code>
+	 */
+	private static boolean followsIdentifier (String sql, int i) {
+		if (i == 0) {
+			return false;
+		}
+		char previous = sql.charAt (i - 1);
+		return Character.isJavaIdentifierPart (previous) || previous == '@';
+	}
+
+	/**
+	 * Get the original SQL with named parameters
+	 *
+	 * @return
+	 */
+	public String getSql () {
+		return sql;
+	}
+
+	/**
+	 * Get the SQL with question marks (?) instead of named parameters
+	 *
+	 * @return
+	 */
+	public String getJdbcSql () {
+		return jdbcSql;
+	}
+
+	/**
+	 * Get the positions of the parameters, by name
+	 *
+	 * @return an unmodifiable map from a parameter name to its positions in the JDBC SQL (the first one is 1)
+	 */
+	public Map<String, int[]> getParameterIndexes () {
+		return parameterIndexes;
+	}
+
+	/**
+	 * Get the count of positional parameters in the JDBC SQL
+	 *
+	 * @return
+	 */
+	public int getParameterCount () {
+		return parameterNames.length;
+	}
+
+	/**
+	 * Make the positional parameters array for the JDBC SQL
+	 *
+	 * @param namedParams values by parameter name. Null values are allowed, missing names are not. May be null if the SQL has no parameters
+	 * @return
+	 * @throws DbHelperException if a value for a parameter name is missing
+	 */
+	public Object[] toParameterArray (Map<String, ?> namedParams) throws DbHelperException {
+		Object[] sqlParams = new Object[parameterNames.length];
+
+		for (int i = 0; i < parameterNames.length; i++) {
+			String name = parameterNames[i];
+			Object value = (namedParams != null ? namedParams.get (name) : null);
+			if (value == null && (namedParams == null || !namedParams.containsKey (name))) {
+				throw new DbHelperException ("No value for parameter :" + name + " in SQL: \"" + sql + "\"");
+			}
+			sqlParams[i] = value;
+		}
+
+		return sqlParams;
+	}
+
+	/**
+	 * Get a read-only map view of a JavaBean's readable properties, to be
+	 * used as named parameters. Property getters are looked up once per class
+	 *
+	 * @param bean
+	 * @return
+	 * @throws DbHelperException if the bean class cannot be introspected
+	 */
+	public static Map<String, Object> beanParameters (Object bean) throws DbHelperException {
+		if (bean == null) {
+			throw new NullPointerException ("bean");
+		}
+
+		Map<String, Method> getters = beanGetters.get (bean.getClass ());
+		if (getters == null) {
+			BeanInfo beanInfo;
+			try {
+				beanInfo = Introspector.getBeanInfo (bean.getClass (), Object.class);
+			} catch (IntrospectionException ex) {
+				throw new DbHelperException ("Received an IntrospectionException when trying to get properties of " + bean.getClass ().getName (), ex);
+			}
+			getters = new HashMap<> ();
+			for (PropertyDescriptor property : beanInfo.getPropertyDescriptors ()) {
+				if (property.getReadMethod () != null) {
+					getters.put (property.getName (), property.getReadMethod ());
+				}
+			}
+			getters = Collections.unmodifiableMap (getters);
+			beanGetters.putIfAbsent (bean.getClass (), getters);
+		}
+
+		return new BeanParameterMap (bean, getters);
+	}
+
+	private static final class BeanParameterMap extends AbstractMap<String, Object> {
+
+		private final Object bean;
+		private final Map<String, Method> getters;
+
+		BeanParameterMap (Object bean, Map<String, Method> getters) {
+			this.bean = bean;
+			this.getters = getters;
+		}
+
+		@Override
+		public boolean containsKey (Object key) {
+			return getters.containsKey (key);
+		}
+
+		@Override
+		public Object get (Object key) {
+			Method getter = getters.get (key);
+			if (getter == null) {
+				return null;
+			}
+			try {
+				return getter.invoke (bean);
+			} catch (IllegalAccessException | InvocationTargetException ex) {
+				throw new IllegalStateException ("Cannot read property " + key + " of " + bean.getClass ().getName (), ex);
+			}
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet () {
+			Set<Map.Entry<String, Object>> entries = new LinkedHashSet<> ();
+			for (String name : getters.keySet ()) {
+				entries.add (new AbstractMap.SimpleImmutableEntry<> (name, get (name)));
+			}
+			return Collections.unmodifiableSet (entries);
+		}
+	}
+}
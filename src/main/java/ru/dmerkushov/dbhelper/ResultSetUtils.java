@@ -16,7 +16,18 @@
 
 package ru.dmerkushov.dbhelper;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -32,6 +43,10 @@ import org.w3c.dom.Node;
  */
 public class ResultSetUtils {
 
+	/**
+	 * Size of the buffers used to stream LOB columns
+	 */
+	static final int LOB_BUFFER_SIZE = 256 * 1024;
 
 	/**
 	 * Put the contents of a ResultSet to a DOM document. Does not save the position in the ResultSet.<br>
@@ -55,7 +70,28 @@ public class ResultSetUtils {
 	 */
 	public static Document resultSetToDomDocument (ResultSet rs) throws DbHelperException, SQLException {
 		DbHelper.getLoggerWrapper ().entering (rs);
-		
+
+		Document document = resultSetToDomDocument (rs, null);
+
+		DbHelper.getLoggerWrapper ().exiting (document);
+		return document;
+	}
+
+	/**
+	 * Put the contents of a ResultSet to a DOM document, deduplicating the
+	 * column values. Does not save the position in the ResultSet. See
+	 * {@link #resultSetToDomDocument(java.sql.ResultSet) } for the format
+	 *
+	 * @param rs The ResultSet
+	 * @param dictionary may be null not to deduplicate the values. The names
+	 * and type names of the columns are shared by all the rows anyway
+	 * @return
+	 * @throws DbHelperException
+	 * @throws java.sql.SQLException
+	 */
+	public static Document resultSetToDomDocument (ResultSet rs, StringDictionary dictionary) throws DbHelperException, SQLException {
+		DbHelper.getLoggerWrapper ().entering (rs, dictionary);
+
 		DocumentImpl document = new DocumentImpl ();
 
 		ResultSetMetaData rsMeta;
@@ -72,6 +108,20 @@ public class ResultSetUtils {
 			throw new DbHelperException (ex);
 		}
 
+		// Read once, so that every row shares the same name and type strings
+		String[] columnNames = new String[columnCount + 1];
+		String[] columnTypeNames = new String[columnCount + 1];
+		int[] columnTypes = new int[columnCount + 1];
+		for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++) {
+			try {
+				columnNames[columnIndex] = rsMeta.getColumnName (columnIndex);
+				columnTypeNames[columnIndex] = rsMeta.getColumnTypeName (columnIndex);
+				columnTypes[columnIndex] = rsMeta.getColumnType (columnIndex);
+			} catch (SQLException ex) {
+				throw new DbHelperException ("Column " + columnIndex, ex);
+			}
+		}
+
 		try {
 			rs.beforeFirst ();
 		} catch (SQLException ex) {
@@ -99,24 +149,16 @@ public class ResultSetUtils {
 				recordNode.appendChild (columnNode);
 
 				Attr columnName = document.createAttribute ("name");
-				try {
-					columnName.setValue (rsMeta.getColumnName (columnIndex));
-				} catch (SQLException ex) {
-					throw new DbHelperException ("Column " + columnIndex, ex);
-				}
+				columnName.setValue (columnNames[columnIndex]);
 				columnNode.getAttributes ().setNamedItem (columnName);
 
 				Attr columnType = document.createAttribute ("type");
-				try {
-					columnType.setValue (rsMeta.getColumnTypeName (columnIndex));
-				} catch (SQLException ex) {
-					throw new DbHelperException ("Column " + columnIndex, ex);
-				}
+				columnType.setValue (columnTypeNames[columnIndex]);
 				columnNode.getAttributes ().setNamedItem (columnType);
 				Object columnValue;
 				String columnValueString;
 
-				switch (rsMeta.getColumnType (columnIndex)) {
+				switch (columnTypes[columnIndex]) {
 					case java.sql.Types.CHAR:
 					case java.sql.Types.VARCHAR:
 					case java.sql.Types.LONGVARCHAR:
@@ -161,11 +203,14 @@ public class ResultSetUtils {
 						columnValueString = (columnValue != null ? sdf.format ((java.sql.Timestamp) columnValue) : null);
 						break;
 					default:
-						DbHelper.getLoggerWrapper ().warning ("Unknown type of column " + columnIndex + ": " + rsMeta.getColumnTypeName (columnIndex) + ". Will set the value to null in the DOM document.");
+						DbHelper.getLoggerWrapper ().warning ("Unknown type of column " + columnIndex + ": " + columnTypeNames[columnIndex] + ". Will set the value to null in the DOM document.");
 						columnValueString = null;
 						break;
 				}
 				if (columnValueString != null) {
+					if (dictionary != null) {
+						columnValueString = dictionary.dedup (columnIndex, columnValueString);
+					}
 					columnNode.setTextContent (columnValueString);
 				}
 			}
@@ -180,4 +225,167 @@ public class ResultSetUtils {
 		DbHelper.getLoggerWrapper ().exiting (document);
 		return document;
 	}
+
+	/**
+	 * Stream a binary (BLOB, VARBINARY, ...) column of the current row to a
+	 * channel, without materializing the value on the heap
+	 *
+	 * @param rs
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @param out the channel to write to. It is not closed
+	 * @return count of bytes written, or -1 if the value is SQL NULL
+	 * @throws DbHelperException
+	 */
+	public static long copyBinaryColumn (ResultSet rs, int columnIndex, WritableByteChannel out) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (rs, columnIndex, out);
+
+		long count;
+		try (InputStream in = rs.getBinaryStream (columnIndex)) {
+			if (in == null) {
+				count = -1L;
+			} else {
+				count = copy (Channels.newChannel (in), out);
+			}
+		} catch (SQLException | IOException ex) {
+			throw new DbHelperException ("Column " + columnIndex, ex);
+		}
+
+		DbHelper.getLoggerWrapper ().exiting (count);
+		return count;
+	}
+
+	/**
+	 * Stream a binary (BLOB, VARBINARY, ...) column of the current row to a
+	 * channel, without materializing the value on the heap
+	 *
+	 * @param rs
+	 * @param columnLabel
+	 * @param out the channel to write to. It is not closed
+	 * @return count of bytes written, or -1 if the value is SQL NULL
+	 * @throws DbHelperException
+	 */
+	public static long copyBinaryColumn (ResultSet rs, String columnLabel, WritableByteChannel out) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (rs, columnLabel, out);
+
+		long count = copyBinaryColumn (rs, findColumn (rs, columnLabel), out);
+
+		DbHelper.getLoggerWrapper ().exiting (count);
+		return count;
+	}
+
+	/**
+	 * Stream a binary (BLOB, VARBINARY, ...) column of the current row to a
+	 * file. The file is created or truncated; for SQL NULL it is left empty
+	 *
+	 * @param rs
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @param file
+	 * @return count of bytes written, or -1 if the value is SQL NULL
+	 * @throws DbHelperException
+	 */
+	public static long copyBinaryColumnToFile (ResultSet rs, int columnIndex, Path file) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (rs, columnIndex, file);
+
+		long count;
+		try (FileChannel out = FileChannel.open (file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			count = copyBinaryColumn (rs, columnIndex, out);
+		} catch (IOException ex) {
+			throw new DbHelperException ("Column " + columnIndex + ", file " + file, ex);
+		}
+
+		DbHelper.getLoggerWrapper ().exiting (count);
+		return count;
+	}
+
+	/**
+	 * Stream a binary (BLOB, VARBINARY, ...) column of the current row to a
+	 * file. The file is created or truncated; for SQL NULL it is left empty
+	 *
+	 * @param rs
+	 * @param columnLabel
+	 * @param file
+	 * @return count of bytes written, or -1 if the value is SQL NULL
+	 * @throws DbHelperException
+	 */
+	public static long copyBinaryColumnToFile (ResultSet rs, String columnLabel, Path file) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (rs, columnLabel, file);
+
+		long count = copyBinaryColumnToFile (rs, findColumn (rs, columnLabel), file);
+
+		DbHelper.getLoggerWrapper ().exiting (count);
+		return count;
+	}
+
+	/**
+	 * Stream a character (CLOB, LONGVARCHAR, ...) column of the current row
+	 * to a writer, without materializing the value on the heap
+	 *
+	 * @param rs
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @param out the writer to write to. It is not closed
+	 * @return count of characters written, or -1 if the value is SQL NULL
+	 * @throws DbHelperException
+	 */
+	public static long copyCharacterColumn (ResultSet rs, int columnIndex, Writer out) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (rs, columnIndex, out);
+
+		long count = 0L;
+		try (Reader in = rs.getCharacterStream (columnIndex)) {
+			if (in == null) {
+				count = -1L;
+			} else {
+				char[] buffer = new char[LOB_BUFFER_SIZE / 2];
+				int read;
+				while ((read = in.read (buffer)) >= 0) {
+					out.write (buffer, 0, read);
+					count += read;
+				}
+			}
+		} catch (SQLException | IOException ex) {
+			throw new DbHelperException ("Column " + columnIndex, ex);
+		}
+
+		DbHelper.getLoggerWrapper ().exiting (count);
+		return count;
+	}
+
+	/**
+	 * Stream a character (CLOB, LONGVARCHAR, ...) column of the current row
+	 * to a writer, without materializing the value on the heap
+	 *
+	 * @param rs
+	 * @param columnLabel
+	 * @param out the writer to write to. It is not closed
+	 * @return count of characters written, or -1 if the value is SQL NULL
+	 * @throws DbHelperException
+	 */
+	public static long copyCharacterColumn (ResultSet rs, String columnLabel, Writer out) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (rs, columnLabel, out);
+
+		long count = copyCharacterColumn (rs, findColumn (rs, columnLabel), out);
+
+		DbHelper.getLoggerWrapper ().exiting (count);
+		return count;
+	}
+
+	private static int findColumn (ResultSet rs, String columnLabel) throws DbHelperException {
+		try {
+			return rs.findColumn (columnLabel);
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Column " + columnLabel, ex);
+		}
+	}
+
+	private static long copy (ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate (LOB_BUFFER_SIZE);
+		long count = 0L;
+		while (in.read (buffer) >= 0) {
+			buffer.flip ();
+			while (buffer.hasRemaining ()) {
+				count += out.write (buffer);
+			}
+			buffer.clear ();
+		}
+		return count;
+	}
 }
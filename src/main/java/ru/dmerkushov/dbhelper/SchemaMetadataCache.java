@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A cache of the columns and primary keys of tables, read from
+ * {@link DatabaseMetaData} on first use. Reading the metadata takes several
+ * round trips, and is very slow on some databases (like Informix), so it is
+ * done once per table and time-to-live.<br>
+ * <br>
+ * Cached entries are read without locking. Missing or expired entries are
+ * loaded on the connection of the DbHelper, holding its monitor, like
+ * {@link DbHelper#inTransaction(ru.dmerkushov.dbhelper.TransactionCallback) }
+ * and {@link ShardedDbHelper} do. A table may be given as
+ * <code>table</code> or <code>schema.table</code>; when it is not found as
+ * given, it is looked up in upper and in lower case.
+ *
+ * @author Dmitriy Merkushov
+ * @see DbHelper#getSchemaMetadataCache()
+ */
+public class SchemaMetadataCache {
+
+	/**
+	 * Default time-to-live of the entries: 10 minutes
+	 */
+	public static final long DEFAULT_TTL_MILLIS = 10L * 60L * 1000L;
+
+	/**
+	 * Count of tables cached, beyond which the cache is cleared
+	 */
+	static final int MAX_CACHED_TABLES = 1024;
+
+	private final DbHelper dbHelper;
+	private final ConcurrentMap<String, TableMetadata> tables = new ConcurrentHashMap<> ();
+	private volatile long ttlNanos;
+
+	/**
+	 *
+	 * @param dbHelper
+	 * @param ttlMillis time-to-live of the entries, 0 to keep them until
+	 * invalidated
+	 */
+	public SchemaMetadataCache (DbHelper dbHelper, long ttlMillis) {
+		if (dbHelper == null) {
+			throw new NullPointerException ("dbHelper");
+		}
+
+		this.dbHelper = dbHelper;
+		setTtl (ttlMillis);
+	}
+
+	/**
+	 * Get the metadata of a table, loading it if it is not cached or has
+	 * expired
+	 *
+	 * @param table <code>table</code> or <code>schema.table</code>
+	 * @return
+	 * @throws DbHelperException also if there is no such table
+	 */
+	public TableMetadata get (String table) throws DbHelperException {
+		if (table == null) {
+			throw new NullPointerException ("table");
+		}
+
+		TableMetadata metadata = tables.get (table);
+		if (metadata != null && !isExpired (metadata)) {
+			return metadata;
+		}
+
+		synchronized (dbHelper) {
+			metadata = tables.get (table);
+			if (metadata == null || isExpired (metadata)) {
+				metadata = load (table);
+				if (tables.size () >= MAX_CACHED_TABLES) {
+					tables.clear ();
+				}
+				tables.put (table, metadata);
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Get the columns of the primary key of a table
+	 *
+	 * @param table <code>table</code> or <code>schema.table</code>
+	 * @return an empty array if the table has no primary key
+	 * @throws DbHelperException
+	 */
+	public String[] getPrimaryKey (String table) throws DbHelperException {
+		return get (table).getPrimaryKey ();
+	}
+
+	/**
+	 * Load the metadata of tables now, so the first calls do not pay for it
+	 *
+	 * @param tables
+	 * @throws DbHelperException
+	 */
+	public void preload (Collection<String> tables) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (tables);
+
+		for (String table : tables) {
+			invalidate (table);
+			get (table);
+		}
+
+		DbHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Drop the metadata of a table, to have it loaded again on next use. To
+	 * be called when the table has been altered
+	 *
+	 * @param table as given to {@link #get(java.lang.String) }
+	 */
+	public void invalidate (String table) {
+		tables.remove (table);
+	}
+
+	/**
+	 * Drop the metadata of all the tables
+	 */
+	public void invalidateAll () {
+		tables.clear ();
+	}
+
+	/**
+	 * Get the time-to-live of the entries
+	 *
+	 * @return milliseconds, 0 if the entries are kept until invalidated
+	 */
+	public long getTtl () {
+		return ttlNanos / 1000000L;
+	}
+
+	/**
+	 * Set the time-to-live of the entries. Applies to the entries already
+	 * cached as well
+	 *
+	 * @param ttlMillis milliseconds, 0 to keep the entries until invalidated
+	 */
+	public final void setTtl (long ttlMillis) {
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException ("ttlMillis is negative: " + ttlMillis);
+		}
+		this.ttlNanos = ttlMillis * 1000000L;
+	}
+
+	private boolean isExpired (TableMetadata metadata) {
+		long ttl = ttlNanos;
+		return ttl > 0 && System.nanoTime () - metadata.getLoadedNanos () > ttl;
+	}
+
+	private TableMetadata load (String qualifiedTable) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().info ("Loading the metadata of table " + qualifiedTable);
+
+		int dot = qualifiedTable.lastIndexOf ('.');
+		String schema = (dot >= 0 ? qualifiedTable.substring (0, dot) : null);
+		String table = qualifiedTable.substring (dot + 1);
+
+		dbHelper.openDbConnection ();
+		try {
+			DatabaseMetaData meta = dbHelper.dbConnection.getMetaData ();
+
+			Set<String> candidates = new LinkedHashSet<> ();
+			candidates.add (table);
+			candidates.add (table.toUpperCase (Locale.ROOT));
+			candidates.add (table.toLowerCase (Locale.ROOT));
+			for (String candidate : candidates) {
+				String candidateSchema = schema;
+				if (schema != null && !candidate.equals (table)) {
+					candidateSchema = (candidate.equals (table.toUpperCase (Locale.ROOT)) ? schema.toUpperCase (Locale.ROOT) : schema.toLowerCase (Locale.ROOT));
+				}
+
+				TableMetadata metadata = load (meta, candidateSchema, candidate);
+				if (metadata != null) {
+					return metadata;
+				}
+			}
+		} catch (SQLException ex) {
+			dbHelper.checkConnectionFailure (ex);
+			throw new DbHelperException ("Received a SQLException when trying to read the metadata of table " + qualifiedTable + ".", ex);
+		}
+
+		throw new DbHelperException ("Table not found: " + qualifiedTable);
+	}
+
+	private TableMetadata load (DatabaseMetaData meta, String schema, String table) throws SQLException {
+		String escape = meta.getSearchStringEscape ();
+		String tablePattern = (escape != null && !escape.isEmpty () ? table.replace (escape, escape + escape).replace ("_", escape + "_").replace ("%", escape + "%") : table);
+
+		String foundSchema = null;
+		List<TableMetadata.Column> columns = new ArrayList<> ();
+		try (ResultSet rs = meta.getColumns (null, schema, tablePattern, null)) {
+			while (rs.next ()) {
+				if (!table.equals (rs.getString ("TABLE_NAME"))) {
+					continue;
+				}
+				String rowSchema = rs.getString ("TABLE_SCHEM");
+				if (columns.isEmpty ()) {
+					foundSchema = rowSchema;
+				} else if (foundSchema == null ? rowSchema != null : !foundSchema.equals (rowSchema)) {
+					continue;	// A table of the same name in another schema
+				}
+
+				columns.add (new TableMetadata.Column (
+						rs.getString ("COLUMN_NAME"),
+						rs.getInt ("DATA_TYPE"),
+						rs.getString ("TYPE_NAME"),
+						rs.getInt ("COLUMN_SIZE"),
+						rs.getInt ("DECIMAL_DIGITS"),
+						rs.getInt ("NULLABLE") != DatabaseMetaData.columnNoNulls));
+			}
+		}
+		if (columns.isEmpty ()) {
+			return null;
+		}
+
+		SortedMap<Short, String> keyColumns = new TreeMap<> ();
+		try (ResultSet rs = meta.getPrimaryKeys (null, foundSchema, table)) {
+			while (rs.next ()) {
+				keyColumns.put (rs.getShort ("KEY_SEQ"), rs.getString ("COLUMN_NAME"));
+			}
+		}
+
+		return new TableMetadata (foundSchema, table, columns, keyColumns.values ().toArray (new String[keyColumns.size ()]), System.nanoTime ());
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Call counts and latencies of a shard of a {@link ShardedDbHelper}
+ *
+ * @author Dmitriy Merkushov
+ */
+public class ShardMetrics {
+
+	private final int shardIndex;
+	private final String connectionUrl;
+	private final AtomicLong callCount = new AtomicLong ();
+	private final AtomicLong errorCount = new AtomicLong ();
+	private final LatencyHistogram latencies = new LatencyHistogram ();
+
+	ShardMetrics (int shardIndex, String connectionUrl) {
+		this.shardIndex = shardIndex;
+		this.connectionUrl = connectionUrl;
+	}
+
+	void record (long nanos, boolean success) {
+		callCount.incrementAndGet ();
+		if (!success) {
+			errorCount.incrementAndGet ();
+		}
+		latencies.record (nanos);
+	}
+
+	/**
+	 * Get the index of the shard
+	 *
+	 * @return
+	 */
+	public int getShardIndex () {
+		return shardIndex;
+	}
+
+	/**
+	 * Get the connection URL of the shard
+	 *
+	 * @return
+	 */
+	public String getConnectionUrl () {
+		return connectionUrl;
+	}
+
+	/**
+	 * Get the count of calls to the shard
+	 *
+	 * @return
+	 */
+	public long getCallCount () {
+		return callCount.get ();
+	}
+
+	/**
+	 * Get the count of calls to the shard that have failed
+	 *
+	 * @return
+	 */
+	public long getErrorCount () {
+		return errorCount.get ();
+	}
+
+	/**
+	 * Get a snapshot of the latencies of the calls to the shard, including
+	 * the time spent waiting for the shard's connection
+	 *
+	 * @return
+	 */
+	public LatencyHistogram getLatencies () {
+		return latencies.copy ();
+	}
+
+	@Override
+	public String toString () {
+		LatencyHistogram snapshot = latencies.copy ();
+		return String.format (Locale.ROOT, "shard %d (%s): %d calls, %d errors, p50 %.3f ms, p99 %.3f ms, max %.3f ms", shardIndex, connectionUrl, getCallCount (), getErrorCount (), snapshot.getMillisAtPercentile (50.0), snapshot.getMillisAtPercentile (99.0), snapshot.getMaxValue () / 1000000.0);
+	}
+}
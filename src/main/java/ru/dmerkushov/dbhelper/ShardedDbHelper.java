@@ -0,0 +1,427 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes calls over several databases holding the shards of the same data.
+ * A call with a shard key goes to the one shard the key function picks; a
+ * scatter-gather call runs on all the shards in parallel, and the results
+ * are merged with a {@link MergeStrategy}.<br>
+ * <br>
+ * Every shard has its own DbHelper, used by one thread at a time: calls to
+ * the same shard wait for each other, calls to different shards do not.
+ * The latencies of the calls are collected per shard, see {@link #getMetrics() }.
+ * The {@link DbDeadline} of the calling thread also applies to the shards'
+ * part of a scatter-gather call.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class ShardedDbHelper implements AutoCloseable {
+
+	/**
+	 * Picks the shard for a shard key
+	 */
+	public interface ShardKeyFunction {
+
+		/**
+		 * Pick the shard for a shard key. The same key must always get the
+		 * same shard
+		 *
+		 * @param shardKey
+		 * @param shardCount
+		 * @return from 0 to <code>shardCount - 1</code>
+		 */
+		int shardOf (Object shardKey, int shardCount);
+	}
+
+	/**
+	 * Work done with the DbHelper of a shard, while no other thread uses it
+	 *
+	 * @param <T> type of the result
+	 */
+	public interface ShardCallback<T> {
+
+		/**
+		 * Do the work
+		 *
+		 * @param dbHelper the DbHelper of the shard
+		 * @return
+		 * @throws Exception
+		 */
+		T call (DbHelper dbHelper) throws Exception;
+	}
+
+	/**
+	 * Hash of the key modulo the count of shards. Integral numbers are hashed
+	 * by value, so a key gets the same shard whether it is an Integer or a
+	 * Long; other keys by their hashCode, which must be stable across JVMs
+	 * (as it is for strings)
+	 */
+	public static final ShardKeyFunction HASH = new ShardKeyFunction () {
+		@Override
+		public int shardOf (Object shardKey, int shardCount) {
+			if (shardKey == null) {
+				throw new NullPointerException ("shardKey");
+			}
+
+			long hash;
+			if (shardKey instanceof Long || shardKey instanceof Integer || shardKey instanceof Short || shardKey instanceof Byte) {
+				hash = ((Number) shardKey).longValue ();
+			} else {
+				hash = shardKey.hashCode ();
+			}
+
+			// The finalizer of MurmurHash3 spreads sequential keys evenly
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+
+			return (int) ((hash >>> 1) % shardCount);
+		}
+	};
+
+	private static final AtomicInteger instanceCount = new AtomicInteger ();
+
+	private final List<DbHelper> shards;
+	private final List<ShardMetrics> metrics;
+	private final ShardKeyFunction shardKeyFunction;
+	private final ExecutorService executor;
+
+	/**
+	 * Create a sharded DbHelper with a connection to every shard
+	 *
+	 * @param driverName JDBC driver class name (i.e.,
+	 * "com.informix.jdbc.IfxDriver")
+	 * @param connectionUrls the connection URLs of the shards, in the order of
+	 * the shard indexes
+	 * @param shardKeyFunction for example {@link #HASH}
+	 */
+	public ShardedDbHelper (String driverName, List<String> connectionUrls, ShardKeyFunction shardKeyFunction) {
+		this (createShards (driverName, connectionUrls), shardKeyFunction);
+	}
+
+	/**
+	 * Create a sharded DbHelper over existing DbHelper instances, for example
+	 * ones failing over between replicas. They must not be used directly any
+	 * more
+	 *
+	 * @param shards the DbHelper instances of the shards, in the order of the
+	 * shard indexes
+	 * @param shardKeyFunction for example {@link #HASH}
+	 */
+	public ShardedDbHelper (List<DbHelper> shards, ShardKeyFunction shardKeyFunction) {
+		DbHelper.getLoggerWrapper ().entering (shards, shardKeyFunction);
+
+		if (shards == null || shards.isEmpty ()) {
+			throw new IllegalArgumentException ("At least one shard must be given");
+		}
+		if (shardKeyFunction == null) {
+			throw new NullPointerException ("shardKeyFunction");
+		}
+
+		this.shards = Collections.unmodifiableList (new ArrayList<> (shards));
+		List<ShardMetrics> metricList = new ArrayList<> ();
+		for (int i = 0; i < shards.size (); i++) {
+			metricList.add (new ShardMetrics (i, shards.get (i).connectionUrl));
+		}
+		this.metrics = Collections.unmodifiableList (metricList);
+		this.shardKeyFunction = shardKeyFunction;
+
+		final String threadNamePrefix = "ShardedDbHelper-" + instanceCount.incrementAndGet () + " worker ";
+		this.executor = Executors.newFixedThreadPool (shards.size (), new ThreadFactory () {
+			private final AtomicInteger threadCount = new AtomicInteger ();
+
+			@Override
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r, threadNamePrefix + threadCount.incrementAndGet ());
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+
+		DbHelper.getLoggerWrapper ().exiting ();
+	}
+
+	private static List<DbHelper> createShards (String driverName, List<String> connectionUrls) {
+		if (connectionUrls == null) {
+			throw new NullPointerException ("connectionUrls");
+		}
+
+		List<DbHelper> shards = new ArrayList<> ();
+		for (String connectionUrl : connectionUrls) {
+			shards.add (new DbHelper (driverName, connectionUrl));
+		}
+		return shards;
+	}
+
+	/**
+	 * Get the count of shards
+	 *
+	 * @return
+	 */
+	public int getShardCount () {
+		return shards.size ();
+	}
+
+	/**
+	 * Get the index of the shard of a key
+	 *
+	 * @param shardKey
+	 * @return
+	 */
+	public int shardOf (Object shardKey) {
+		int shardIndex = shardKeyFunction.shardOf (shardKey, shards.size ());
+		if (shardIndex < 0 || shardIndex >= shards.size ()) {
+			throw new IllegalStateException ("The shard key function has returned shard " + shardIndex + " of " + shards.size () + " for key " + shardKey);
+		}
+		return shardIndex;
+	}
+
+	/**
+	 * Get the call counts and latencies of every shard
+	 *
+	 * @return in the order of the shard indexes
+	 */
+	public List<ShardMetrics> getMetrics () {
+		return metrics;
+	}
+
+	/**
+	 * Do some work with the DbHelper of the shard of a key
+	 *
+	 * @param <T>
+	 * @param shardKey
+	 * @param callback
+	 * @return the result of the callback
+	 * @throws DbHelperException also if the callback has thrown another
+	 * checked exception
+	 */
+	public <T> T withShard (Object shardKey, ShardCallback<T> callback) throws DbHelperException {
+		return withShardIndex (shardOf (shardKey), callback);
+	}
+
+	/**
+	 * Do some work with the DbHelper of a shard
+	 *
+	 * @param <T>
+	 * @param shardIndex
+	 * @param callback
+	 * @return the result of the callback
+	 * @throws DbHelperException also if the callback has thrown another
+	 * checked exception
+	 */
+	public <T> T withShardIndex (int shardIndex, ShardCallback<T> callback) throws DbHelperException {
+		DbHelper dbHelper = shards.get (shardIndex);
+
+		long startNanos = System.nanoTime ();
+		boolean success = false;
+		try {
+			T result;
+			synchronized (dbHelper) {
+				result = callback.call (dbHelper);
+			}
+			success = true;
+			return result;
+		} catch (DbHelperException | RuntimeException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new DbHelperException ("Received an exception when working with shard " + shardIndex, ex);
+		} finally {
+			metrics.get (shardIndex).record (System.nanoTime () - startNanos, success);
+		}
+	}
+
+	/**
+	 * Perform a query on the shard of a key and get all the rows
+	 *
+	 * @param shardKey
+	 * @param sql
+	 * @param sqlParams
+	 * @return
+	 * @throws DbHelperException
+	 * @see DbHelper#performDbQueryRows(java.lang.String, java.lang.Object[])
+	 */
+	public List<Object[]> performDbQueryRows (Object shardKey, final String sql, final Object[] sqlParams) throws DbHelperException {
+		return withShard (shardKey, new ShardCallback<List<Object[]>> () {
+			@Override
+			public List<Object[]> call (DbHelper dbHelper) throws DbHelperException {
+				return dbHelper.performDbQueryRows (sql, sqlParams);
+			}
+		});
+	}
+
+	/**
+	 * Perform an update on the shard of a key
+	 *
+	 * @param shardKey
+	 * @param sql
+	 * @param sqlParams
+	 * @return
+	 * @throws DbHelperException
+	 * @see DbHelper#performDbUpdate(java.lang.String, java.lang.Object[])
+	 */
+	public int performDbUpdate (Object shardKey, final String sql, final Object... sqlParams) throws DbHelperException {
+		return withShard (shardKey, new ShardCallback<Integer> () {
+			@Override
+			public Integer call (DbHelper dbHelper) throws DbHelperException {
+				return dbHelper.performDbUpdate (sql, sqlParams);
+			}
+		});
+	}
+
+	/**
+	 * Check if a record exists on the shard of a key
+	 *
+	 * @param shardKey
+	 * @param sql
+	 * @param sqlParams
+	 * @return
+	 * @throws DbHelperException
+	 * @see DbHelper#recordExists(java.lang.String, java.lang.Object[])
+	 */
+	public boolean recordExists (Object shardKey, final String sql, final Object[] sqlParams) throws DbHelperException {
+		return withShard (shardKey, new ShardCallback<Boolean> () {
+			@Override
+			public Boolean call (DbHelper dbHelper) throws DbHelperException, SQLException {
+				return dbHelper.recordExists (sql, sqlParams);
+			}
+		});
+	}
+
+	/**
+	 * Do some work on all the shards in parallel
+	 *
+	 * @param <T>
+	 * @param callback
+	 * @return the results of the callback, in the order of the shard indexes
+	 * @throws DbHelperException if the work has failed on any shard. The work
+	 * on the other shards is completed first
+	 */
+	public <T> List<T> scatter (final ShardCallback<T> callback) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (callback);
+
+		final DbDeadline deadline = DbDeadline.current ();
+
+		List<Future<T>> futures = new ArrayList<> ();
+		for (int i = 0; i < shards.size (); i++) {
+			final int shardIndex = i;
+			futures.add (executor.submit (new Callable<T> () {
+				@Override
+				public T call () throws DbHelperException {
+					if (deadline == null) {
+						return withShardIndex (shardIndex, callback);
+					}
+					DbDeadline shardDeadline = DbDeadline.start (deadline.remainingMillis ());
+					try {
+						return withShardIndex (shardIndex, callback);
+					} finally {
+						shardDeadline.close ();
+					}
+				}
+			}));
+		}
+
+		List<T> results = new ArrayList<> (shards.size ());
+		Throwable failure = null;
+		int failedShardIndex = -1;
+		for (int i = 0; i < futures.size (); i++) {
+			try {
+				results.add (futures.get (i).get ());
+			} catch (InterruptedException ex) {
+				Thread.currentThread ().interrupt ();
+				throw new DbHelperException ("Interrupted while waiting for shard " + i, ex);
+			} catch (ExecutionException ex) {
+				if (failure == null) {
+					failure = ex.getCause ();
+					failedShardIndex = i;
+				}
+			}
+		}
+		if (failure instanceof DbHelperException) {
+			throw (DbHelperException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure != null) {
+			throw new DbHelperException ("Received an exception when working with shard " + failedShardIndex, failure);
+		}
+
+		DbHelper.getLoggerWrapper ().exiting (results);
+		return results;
+	}
+
+	/**
+	 * Perform a query on all the shards in parallel and merge the rows
+	 *
+	 * @param sql
+	 * @param sqlParams
+	 * @param mergeStrategy see {@link MergeStrategies}
+	 * @return
+	 * @throws DbHelperException if the query has failed on any shard
+	 */
+	public List<Object[]> scatterGather (final String sql, final Object[] sqlParams, MergeStrategy mergeStrategy) throws DbHelperException {
+		DbHelper.getLoggerWrapper ().entering (sql, sqlParams, mergeStrategy);
+
+		List<List<Object[]>> shardRows = scatter (new ShardCallback<List<Object[]>> () {
+			@Override
+			public List<Object[]> call (DbHelper dbHelper) throws DbHelperException {
+				return dbHelper.performDbQueryRows (sql, sqlParams);
+			}
+		});
+		List<Object[]> merged = mergeStrategy.merge (shardRows);
+
+		DbHelper.getLoggerWrapper ().exiting (merged);
+		return merged;
+	}
+
+	/**
+	 * Stop the worker threads and release the connections of all the shards
+	 *
+	 * @throws DbHelperException if a connection could not be released
+	 */
+	@Override
+	public void close () throws DbHelperException {
+		executor.shutdown ();
+
+		DbHelperException failure = null;
+		for (DbHelper dbHelper : shards) {
+			try {
+				synchronized (dbHelper) {
+					dbHelper.releaseConnection ();
+				}
+			} catch (DbHelperException ex) {
+				failure = (failure == null ? ex : failure);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list of query results that keeps its values on the heap up to
+ * a memory budget, and spills the rest into a temporary file.<br>
+ * <br>
+ * Spilled values are written in a compact binary encoding: a type tag and
+ * the value, with strings in UTF-8. Values of other types than the usual
+ * JDBC ones are serialized, and must be {@link Serializable}. When all the
+ * results have been read, the file is memory-mapped, so the spilled values
+ * are read with random access and without copying the file onto the heap.
+ * Every read of a spilled value decodes a new instance of it.<br>
+ * <br>
+ * The list must be closed to delete its file. It may be read by several
+ * threads at once.
+ *
+ * @author Dmitriy Merkushov
+ * @see DbHelper#performDbQuerySpillingList(java.lang.String, java.lang.Object[], java.lang.String, long)
+ */
+public final class SpillingList extends AbstractList<Object> implements RandomAccess, AutoCloseable {
+
+	/**
+	 * Maximum size of a single mapping of the spill file
+	 */
+	static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_LONG = 1;
+	private static final byte TAG_INTEGER = 2;
+	private static final byte TAG_SHORT = 3;
+	private static final byte TAG_BYTE = 4;
+	private static final byte TAG_DOUBLE = 5;
+	private static final byte TAG_FLOAT = 6;
+	private static final byte TAG_BOOLEAN = 7;
+	private static final byte TAG_STRING = 8;
+	private static final byte TAG_BIG_DECIMAL = 9;
+	private static final byte TAG_TIMESTAMP = 10;
+	private static final byte TAG_DATE = 11;
+	private static final byte TAG_TIME = 12;
+	private static final byte TAG_BYTES = 13;
+	private static final byte TAG_SERIALIZED = 14;
+
+	private final long memoryBudgetBytes;
+	private final Path directory;
+
+	private final List<Object> inMemory = new ArrayList<> ();
+	private long memoryBytes = 0L;
+
+	private Path spillFile = null;
+	private OutputStream spillOut = null;
+	private ByteArrayOutputStream encodedBytes = null;
+	private DataOutputStream encoded = null;
+	private long[] offsets = new long[0];
+	private int spilledCount = 0;
+	private long spillBytes = 0L;
+
+	private volatile MappedByteBuffer[] segments = null;
+	private int[] segmentFirstRows = null;
+	private volatile boolean sealed = false;
+	private volatile boolean closed = false;
+
+	/**
+	 *
+	 * @param memoryBudgetBytes estimated heap size of the values to keep in
+	 * memory, 0 to spill all of them
+	 * @param directory where to create the spill file, null for the
+	 * default temporary-file directory
+	 */
+	SpillingList (long memoryBudgetBytes, Path directory) {
+		if (memoryBudgetBytes < 0) {
+			throw new IllegalArgumentException ("memoryBudgetBytes is negative: " + memoryBudgetBytes);
+		}
+
+		this.memoryBudgetBytes = memoryBudgetBytes;
+		this.directory = directory;
+	}
+
+	/**
+	 * Add a value to the end of the list. Only allowed before the list is
+	 * {@link #seal() sealed}
+	 *
+	 * @param value
+	 * @throws IOException if the value cannot be spilled
+	 */
+	void append (Object value) throws IOException {
+		if (sealed) {
+			throw new IllegalStateException ("The list is sealed");
+		}
+
+		if (spillOut == null) {
+			long size = 8L + estimateSize (value);
+			if (memoryBytes + size <= memoryBudgetBytes) {
+				inMemory.add (value);
+				memoryBytes += size;
+				return;
+			}
+			startSpilling ();
+		}
+
+		encode (value);
+		if (spilledCount + 1 >= offsets.length) {
+			offsets = Arrays.copyOf (offsets, Math.max (64, offsets.length * 2));
+		}
+		offsets[spilledCount++] = spillBytes;
+		spillBytes += encodedBytes.size ();
+		encodedBytes.writeTo (spillOut);
+		encodedBytes.reset ();
+	}
+
+	/**
+	 * Finish adding values, and map the spill file if there is one
+	 *
+	 * @throws IOException
+	 */
+	void seal () throws IOException {
+		if (sealed) {
+			return;
+		}
+
+		if (spillOut != null) {
+			spillOut.close ();
+			spillOut = null;
+			encoded = null;
+			encodedBytes = null;
+			offsets[spilledCount] = spillBytes;
+
+			List<MappedByteBuffer> mappings = new ArrayList<> ();
+			List<Integer> firstRows = new ArrayList<> ();
+			try (FileChannel channel = FileChannel.open (spillFile, StandardOpenOption.READ)) {
+				int row = 0;
+				while (row < spilledCount) {
+					long start = offsets[row];
+					int end = row + 1;
+					while (end < spilledCount && offsets[end + 1] - start <= MAX_SEGMENT_BYTES) {
+						end++;
+					}
+					mappings.add (channel.map (FileChannel.MapMode.READ_ONLY, start, offsets[end] - start));
+					firstRows.add (row);
+					row = end;
+				}
+			}
+
+			segmentFirstRows = new int[firstRows.size ()];
+			for (int i = 0; i < segmentFirstRows.length; i++) {
+				segmentFirstRows[i] = firstRows.get (i);
+			}
+			segments = mappings.toArray (new MappedByteBuffer[mappings.size ()]);
+		}
+		sealed = true;
+	}
+
+	@Override
+	public Object get (int index) {
+		if (closed) {
+			throw new IllegalStateException ("The list is closed");
+		}
+		if (index < 0 || index >= size ()) {
+			throw new IndexOutOfBoundsException ("Index: " + index + ", size: " + size ());
+		}
+
+		int inMemoryCount = inMemory.size ();
+		if (index < inMemoryCount) {
+			return inMemory.get (index);
+		}
+		if (!sealed) {
+			throw new IllegalStateException ("The list is being filled");
+		}
+
+		int row = index - inMemoryCount;
+		int segment = Arrays.binarySearch (segmentFirstRows, row);
+		if (segment < 0) {
+			segment = -segment - 2;
+		}
+
+		ByteBuffer buffer = segments[segment].duplicate ();
+		buffer.position ((int) (offsets[row] - offsets[segmentFirstRows[segment]]));
+		try {
+			return decode (buffer);
+		} catch (IOException | ClassNotFoundException ex) {
+			throw new IllegalStateException ("Cannot read the spilled value " + index, ex);
+		}
+	}
+
+	@Override
+	public int size () {
+		return inMemory.size () + spilledCount;
+	}
+
+	/**
+	 * Check if some of the values have been spilled to the file
+	 *
+	 * @return
+	 */
+	public boolean isSpilled () {
+		return spilledCount > 0;
+	}
+
+	/**
+	 * Get the count of the values kept in memory
+	 *
+	 * @return
+	 */
+	public int getInMemoryCount () {
+		return inMemory.size ();
+	}
+
+	/**
+	 * Get the estimated heap size of the values kept in memory
+	 *
+	 * @return in bytes
+	 */
+	public long getInMemoryBytes () {
+		return memoryBytes;
+	}
+
+	/**
+	 * Get the size of the spill file
+	 *
+	 * @return in bytes, 0 if nothing has been spilled
+	 */
+	public long getSpilledBytes () {
+		return spillBytes;
+	}
+
+	/**
+	 * Release the values and delete the spill file. The list cannot be read
+	 * any more
+	 */
+	@Override
+	public void close () {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		segments = null;
+		inMemory.clear ();
+
+		if (spillOut != null) {
+			try {
+				spillOut.close ();
+			} catch (IOException ex) {
+				DbHelper.getLoggerWrapper ().warning ("Received an IOException when trying to close the spill file " + spillFile + ": " + ex.getMessage ());
+			}
+			spillOut = null;
+		}
+
+		if (spillFile != null) {
+			try {
+				Files.deleteIfExists (spillFile);
+			} catch (IOException ex) {
+				// The file may stay locked while it is still mapped, on some platforms
+				DbHelper.getLoggerWrapper ().warning ("Received an IOException when trying to delete the spill file " + spillFile + ", will delete it on exit: " + ex.getMessage ());
+				spillFile.toFile ().deleteOnExit ();
+			}
+		}
+	}
+
+	private void startSpilling () throws IOException {
+		spillFile = (directory != null ? Files.createTempFile (directory, "dbhelper-spill-", ".bin") : Files.createTempFile ("dbhelper-spill-", ".bin"));
+		DbHelper.getLoggerWrapper ().info ("Spilling the values beyond " + inMemory.size () + " to " + spillFile);
+
+		spillOut = new BufferedOutputStream (Files.newOutputStream (spillFile), 65536);
+		encodedBytes = new ByteArrayOutputStream (256);
+		encoded = new DataOutputStream (encodedBytes);
+	}
+
+	private void encode (Object value) throws IOException {
+		if (value == null) {
+			encoded.writeByte (TAG_NULL);
+		} else if (value instanceof Long) {
+			encoded.writeByte (TAG_LONG);
+			encoded.writeLong ((Long) value);
+		} else if (value instanceof Integer) {
+			encoded.writeByte (TAG_INTEGER);
+			encoded.writeInt ((Integer) value);
+		} else if (value instanceof Short) {
+			encoded.writeByte (TAG_SHORT);
+			encoded.writeShort ((Short) value);
+		} else if (value instanceof Byte) {
+			encoded.writeByte (TAG_BYTE);
+			encoded.writeByte ((Byte) value);
+		} else if (value instanceof Double) {
+			encoded.writeByte (TAG_DOUBLE);
+			encoded.writeDouble ((Double) value);
+		} else if (value instanceof Float) {
+			encoded.writeByte (TAG_FLOAT);
+			encoded.writeFloat ((Float) value);
+		} else if (value instanceof Boolean) {
+			encoded.writeByte (TAG_BOOLEAN);
+			encoded.writeBoolean ((Boolean) value);
+		} else if (value instanceof String) {
+			encoded.writeByte (TAG_STRING);
+			writeBytes (((String) value).getBytes (StandardCharsets.UTF_8));
+		} else if (value instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) value;
+			encoded.writeByte (TAG_BIG_DECIMAL);
+			encoded.writeInt (decimal.scale ());
+			writeBytes (decimal.unscaledValue ().toByteArray ());
+		} else if (value instanceof Timestamp) {
+			Timestamp timestamp = (Timestamp) value;
+			encoded.writeByte (TAG_TIMESTAMP);
+			encoded.writeLong (timestamp.getTime ());
+			encoded.writeInt (timestamp.getNanos ());
+		} else if (value instanceof Date) {
+			encoded.writeByte (TAG_DATE);
+			encoded.writeLong (((Date) value).getTime ());
+		} else if (value instanceof Time) {
+			encoded.writeByte (TAG_TIME);
+			encoded.writeLong (((Time) value).getTime ());
+		} else if (value instanceof byte[]) {
+			encoded.writeByte (TAG_BYTES);
+			writeBytes ((byte[]) value);
+		} else if (value instanceof Serializable) {
+			ByteArrayOutputStream serialized = new ByteArrayOutputStream ();
+			try (ObjectOutputStream out = new ObjectOutputStream (serialized)) {
+				out.writeObject (value);
+			}
+			encoded.writeByte (TAG_SERIALIZED);
+			writeBytes (serialized.toByteArray ());
+		} else {
+			throw new NotSerializableException (value.getClass ().getName ());
+		}
+	}
+
+	private void writeBytes (byte[] bytes) throws IOException {
+		encoded.writeInt (bytes.length);
+		encoded.write (bytes);
+	}
+
+	private static Object decode (ByteBuffer buffer) throws IOException, ClassNotFoundException {
+		byte tag = buffer.get ();
+		switch (tag) {
+			case TAG_NULL:
+				return null;
+			case TAG_LONG:
+				return buffer.getLong ();
+			case TAG_INTEGER:
+				return buffer.getInt ();
+			case TAG_SHORT:
+				return buffer.getShort ();
+			case TAG_BYTE:
+				return buffer.get ();
+			case TAG_DOUBLE:
+				return buffer.getDouble ();
+			case TAG_FLOAT:
+				return buffer.getFloat ();
+			case TAG_BOOLEAN:
+				return buffer.get () != 0;
+			case TAG_STRING:
+				return new String (readBytes (buffer), StandardCharsets.UTF_8);
+			case TAG_BIG_DECIMAL:
+				int scale = buffer.getInt ();
+				return new BigDecimal (new BigInteger (readBytes (buffer)), scale);
+			case TAG_TIMESTAMP:
+				Timestamp timestamp = new Timestamp (buffer.getLong ());
+				timestamp.setNanos (buffer.getInt ());
+				return timestamp;
+			case TAG_DATE:
+				return new Date (buffer.getLong ());
+			case TAG_TIME:
+				return new Time (buffer.getLong ());
+			case TAG_BYTES:
+				return readBytes (buffer);
+			case TAG_SERIALIZED:
+				try (ObjectInputStream in = new ObjectInputStream (new ByteArrayInputStream (readBytes (buffer)))) {
+					return in.readObject ();
+				}
+			default:
+				throw new IOException ("Unknown tag " + tag + " in the spill file");
+		}
+	}
+
+	private static byte[] readBytes (ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt ()];
+		buffer.get (bytes);
+		return bytes;
+	}
+
+	/**
+	 * Estimate the heap size of a value, with 8-byte alignment
+	 */
+	static long estimateSize (Object value) {
+		if (value == null) {
+			return 0L;
+		}
+		if (value instanceof String) {
+			return StringDictionary.estimateSize ((String) value);
+		}
+		if (value instanceof byte[]) {
+			return (16L + ((byte[]) value).length + 7L) & ~7L;
+		}
+		if (value instanceof BigDecimal) {
+			return 40L + ((16L + ((BigDecimal) value).unscaledValue ().bitLength () / 8 + 7L) & ~7L);
+		}
+		if (value instanceof Number || value instanceof Boolean) {
+			return 24L;
+		}
+		if (value instanceof java.util.Date) {
+			return 32L;
+		}
+		return 64L;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.regex.Pattern;
+
+/**
+ * Checks of table and column names that DbHelper puts into the SQL it
+ * generates, since they cannot be passed as parameters
+ *
+ * @author Dmitriy Merkushov
+ */
+final class SqlIdentifiers {
+
+	/**
+	 * A plain or double-quoted name, optionally qualified with dots (or with
+	 * a colon, like Informix's <code>database:owner.table</code>)
+	 */
+	private static final Pattern IDENTIFIER = Pattern.compile ("(?:[A-Za-z_][A-Za-z0-9_$#]*|\"[^\"]+\")(?:[.:](?:[A-Za-z_][A-Za-z0-9_$#]*|\"[^\"]+\"))*");
+
+	private SqlIdentifiers () {
+	}
+
+	/**
+	 * Check that a string is a table or column name
+	 *
+	 * @param identifier
+	 * @return the identifier
+	 * @throws IllegalArgumentException if it is not
+	 */
+	static String check (String identifier) {
+		if (identifier == null || !IDENTIFIER.matcher (identifier).matches ()) {
+			throw new IllegalArgumentException ("Not a valid SQL identifier: " + identifier);
+		}
+		return identifier;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+/**
+ * Plugs into the execution of every statement of a DbHelper: for tracing,
+ * tagging, auditing or rewriting SQL. The interceptors of a DbHelper are
+ * called in the order they were added, see
+ * {@link DbHelper#addInterceptor(ru.dmerkushov.dbhelper.StatementInterceptor) }.
+ * Extend {@link StatementInterceptorAdapter} to implement only some of the
+ * methods.<br>
+ * <br>
+ * A DbHelperException or a RuntimeException thrown by a <code>before</code>
+ * method stops the statement, and is thrown to the caller. Exceptions thrown
+ * by {@link #afterResultConsumed(ru.dmerkushov.dbhelper.ExecutionContext) }
+ * and {@link #onError(ru.dmerkushov.dbhelper.ExecutionContext) } are logged
+ * and ignored.
+ *
+ * @author Dmitriy Merkushov
+ */
+public interface StatementInterceptor {
+
+	/**
+	 * Called before the statement is prepared. The SQL may be replaced with
+	 * {@link ExecutionContext#setSql(java.lang.String) }
+	 *
+	 * @param context
+	 * @throws DbHelperException to stop the statement
+	 */
+	void beforePrepare (ExecutionContext context) throws DbHelperException;
+
+	/**
+	 * Called before the parameters are bound. They may be replaced with
+	 * {@link ExecutionContext#setParameters(java.lang.Object[]) } or
+	 * {@link ExecutionContext#setBatchParameters(java.util.List) }
+	 *
+	 * @param context
+	 * @throws DbHelperException to stop the statement
+	 */
+	void beforeBind (ExecutionContext context) throws DbHelperException;
+
+	/**
+	 * Called right before the statement is executed
+	 *
+	 * @param context
+	 * @throws DbHelperException to stop the statement
+	 */
+	void beforeExecute (ExecutionContext context) throws DbHelperException;
+
+	/**
+	 * Called when the statement has been executed successfully. For updates,
+	 * the row count is known by then
+	 *
+	 * @param context
+	 * @throws DbHelperException
+	 */
+	void afterExecute (ExecutionContext context) throws DbHelperException;
+
+	/**
+	 * Called when the result of a query has been closed: its result set or
+	 * its statement, whichever is closed first. The row count is known if
+	 * DbHelper has read the rows itself.<br>
+	 * <br>
+	 * To see the close, the result sets of the queries executed while there
+	 * are interceptors are proxies of those of the driver. Use
+	 * <code>unwrap</code> to get the driver's own
+	 *
+	 * @param context
+	 */
+	void afterResultConsumed (ExecutionContext context);
+
+	/**
+	 * Called when the statement has failed, or has been stopped by an
+	 * interceptor
+	 *
+	 * @param context its exception is set
+	 */
+	void onError (ExecutionContext context);
+}
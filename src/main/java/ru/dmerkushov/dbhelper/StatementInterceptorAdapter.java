@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+/**
+ * A {@link StatementInterceptor} doing nothing, to extend overriding only the
+ * methods needed
+ *
+ * @author Dmitriy Merkushov
+ */
+public abstract class StatementInterceptorAdapter implements StatementInterceptor {
+
+	@Override
+	public void beforePrepare (ExecutionContext context) throws DbHelperException {
+	}
+
+	@Override
+	public void beforeBind (ExecutionContext context) throws DbHelperException {
+	}
+
+	@Override
+	public void beforeExecute (ExecutionContext context) throws DbHelperException {
+	}
+
+	@Override
+	public void afterExecute (ExecutionContext context) throws DbHelperException {
+	}
+
+	@Override
+	public void afterResultConsumed (ExecutionContext context) {
+	}
+
+	@Override
+	public void onError (ExecutionContext context) {
+	}
+}
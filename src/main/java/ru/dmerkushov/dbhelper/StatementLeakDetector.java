@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the statements a {@link DbHelper} hands out with query results, and
+ * remembers where each one has been created, to find the code that does not
+ * close them. Disabled by default: capturing a stack trace per query is not
+ * free
+ *
+ * @author Dmitriy Merkushov
+ */
+public class StatementLeakDetector {
+
+	private volatile boolean enabled = false;
+	private final ConcurrentMap<Statement, Throwable> openStatements = new ConcurrentHashMap<> ();
+
+	/**
+	 * Check if the detector is enabled
+	 *
+	 * @return
+	 */
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	/**
+	 * Enable or disable the detector. Disabling it forgets all the tracked
+	 * statements
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled (boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			openStatements.clear ();
+		}
+	}
+
+	void track (Statement statement, String sql) {
+		if (enabled) {
+			openStatements.put (statement, new Throwable ("Statement for SQL: \"" + sql + "\" created on thread " + Thread.currentThread ().getName ()));
+		}
+	}
+
+	void untrack (Statement statement) {
+		openStatements.remove (statement);
+	}
+
+	void clear () {
+		openStatements.clear ();
+	}
+
+	/**
+	 * Get the count of tracked statements that are still open
+	 *
+	 * @return
+	 */
+	public int getOpenStatementCount () {
+		purgeClosed ();
+		return openStatements.size ();
+	}
+
+	/**
+	 * Log a warning for every tracked statement that is still open, with the
+	 * stack trace of the place it has been created at
+	 *
+	 * @return the count of statements still open
+	 */
+	public int reportLeaks () {
+		purgeClosed ();
+
+		int count = 0;
+		for (Throwable creation : openStatements.values ()) {
+			StringWriter stackTrace = new StringWriter ();
+			creation.printStackTrace (new PrintWriter (stackTrace));
+			DbHelper.getLoggerWrapper ().warning ("Statement not closed: " + stackTrace);
+			count++;
+		}
+		DbHelper.getLoggerWrapper ().info ("Open statements: " + count);
+
+		return count;
+	}
+
+	private void purgeClosed () {
+		Iterator<Map.Entry<Statement, Throwable>> iterator = openStatements.entrySet ().iterator ();
+		while (iterator.hasNext ()) {
+			Statement statement = iterator.next ().getKey ();
+			boolean closed;
+			try {
+				closed = statement.isClosed ();
+			} catch (SQLException ex) {
+				closed = false;
+			} catch (AbstractMethodError err) {
+				// A pre-JDBC 4 driver
+				closed = false;
+			}
+			if (closed) {
+				iterator.remove ();
+			}
+		}
+	}
+}
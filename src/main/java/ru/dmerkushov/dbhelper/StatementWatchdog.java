@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cancels a statement with {@link Statement#cancel()} if it runs longer than
+ * its timeout. Backs up {@link Statement#setQueryTimeout(int)}, which has
+ * only a one-second granularity and is ignored by some drivers
+ *
+ * @author Dmitriy Merkushov
+ */
+final class StatementWatchdog implements Runnable {
+
+	private static final ScheduledThreadPoolExecutor executor;
+
+	static {
+		executor = new ScheduledThreadPoolExecutor (1, new ThreadFactory () {
+			@Override
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r, "DbHelper statement watchdog");
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy (true);
+	}
+
+	private final Statement statement;
+	private final AtomicBoolean fired = new AtomicBoolean (false);
+	private ScheduledFuture<?> future;
+
+	private StatementWatchdog (Statement statement) {
+		this.statement = statement;
+	}
+
+	/**
+	 * Start watching a statement
+	 *
+	 * @param statement
+	 * @param timeoutMillis zero or less means no timeout
+	 * @return
+	 */
+	static StatementWatchdog arm (Statement statement, long timeoutMillis) {
+		StatementWatchdog watchdog = new StatementWatchdog (statement);
+		if (timeoutMillis > 0) {
+			watchdog.future = executor.schedule (watchdog, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		return watchdog;
+	}
+
+	/**
+	 * Stop watching the statement. May be called more than once
+	 *
+	 * @return true if the statement has been cancelled by the watchdog
+	 */
+	boolean disarm () {
+		if (future != null) {
+			future.cancel (false);
+		}
+		return fired.get ();
+	}
+
+	@Override
+	public void run () {
+		fired.set (true);
+		DbHelper.getLoggerWrapper ().warning ("Statement timed out, cancelling it");
+		try {
+			statement.cancel ();
+		} catch (SQLException ex) {
+			DbHelper.getLoggerWrapper ().warning ("Received a SQLException when trying to cancel a timed out statement: " + ex.getMessage ());
+		}
+	}
+}
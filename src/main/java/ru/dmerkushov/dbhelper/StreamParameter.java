@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A BLOB or CLOB parameter streamed to the database with
+ * {@link PreparedStatement#setBinaryStream(int, java.io.InputStream, long) }
+ * or {@link PreparedStatement#setCharacterStream(int, java.io.Reader, long) },
+ * instead of being materialized on the heap. Knowing the length lets the
+ * driver send the value without buffering it first.<br>
+ * <br>
+ * An {@link InputStream}, a {@link Reader}, a {@link ReadableByteChannel} or
+ * a {@link Path} can also be passed as a parameter directly; only for a file
+ * the length is known then.
+ *
+ * @author Dmitriy Merkushov
+ */
+public final class StreamParameter {
+
+	/**
+	 * Value of the length when it is not known
+	 */
+	public static final long UNKNOWN_LENGTH = -1L;
+
+	private final InputStream binary;
+	private final Reader character;
+	private final long length;
+	private final Path file;
+
+	private StreamParameter (InputStream binary, Reader character, long length, Path file) {
+		this.binary = binary;
+		this.character = character;
+		this.length = length;
+		this.file = file;
+	}
+
+	/**
+	 * A binary parameter read from a stream. The stream is not closed by
+	 * DbHelper
+	 *
+	 * @param in
+	 * @param length count of bytes to read, or {@link #UNKNOWN_LENGTH}
+	 * @return
+	 */
+	public static StreamParameter binary (InputStream in, long length) {
+		if (in == null) {
+			throw new NullPointerException ("in");
+		}
+		return new StreamParameter (in, null, length, null);
+	}
+
+	/**
+	 * A binary parameter read from a channel. The channel is not closed by
+	 * DbHelper
+	 *
+	 * @param channel
+	 * @param length count of bytes to read, or {@link #UNKNOWN_LENGTH}
+	 * @return
+	 */
+	public static StreamParameter binary (ReadableByteChannel channel, long length) {
+		if (channel == null) {
+			throw new NullPointerException ("channel");
+		}
+		return new StreamParameter (Channels.newInputStream (channel), null, length, null);
+	}
+
+	/**
+	 * A binary parameter read from a file. The file is opened when the
+	 * parameter is bound and closed after the statement has been executed
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static StreamParameter binary (Path file) {
+		if (file == null) {
+			throw new NullPointerException ("file");
+		}
+		return new StreamParameter (null, null, UNKNOWN_LENGTH, file);
+	}
+
+	/**
+	 * A character parameter read from a reader. The reader is not closed by
+	 * DbHelper
+	 *
+	 * @param reader
+	 * @param length count of characters to read, or {@link #UNKNOWN_LENGTH}
+	 * @return
+	 */
+	public static StreamParameter character (Reader reader, long length) {
+		if (reader == null) {
+			throw new NullPointerException ("reader");
+		}
+		return new StreamParameter (null, reader, length, null);
+	}
+
+	/**
+	 * Bind the parameter to a statement
+	 *
+	 * @param ps
+	 * @param parameterIndex the first parameter is 1, the second is 2, ...
+	 * @return a stream opened by the binding that must be closed after the statement has been executed, or null
+	 * @throws SQLException
+	 * @throws IOException if the file cannot be opened
+	 */
+	Closeable bind (PreparedStatement ps, int parameterIndex) throws SQLException, IOException {
+		if (file != null) {
+			long fileLength = Files.size (file);
+			InputStream in = Files.newInputStream (file);
+			try {
+				ps.setBinaryStream (parameterIndex, in, fileLength);
+			} catch (SQLException | RuntimeException ex) {
+				in.close ();
+				throw ex;
+			}
+			return in;
+		} else if (binary != null) {
+			if (length >= 0) {
+				ps.setBinaryStream (parameterIndex, binary, length);
+			} else {
+				ps.setBinaryStream (parameterIndex, binary);
+			}
+		} else {
+			if (length >= 0) {
+				ps.setCharacterStream (parameterIndex, character, length);
+			} else {
+				ps.setCharacterStream (parameterIndex, character);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString () {
+		if (file != null) {
+			return "binary stream from file " + file;
+		}
+		return (binary != null ? "binary" : "character") + " stream of " + (length >= 0 ? String.valueOf (length) : "unknown") + " length";
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Deduplicates the strings of a materialized result, column by column, so
+ * that a low-cardinality column (a status, a country, a type) holds one
+ * instance of every distinct value instead of one per row.<br>
+ * <br>
+ * Unlike {@link String#intern()}, the dictionary belongs to one result and
+ * is gone with it, and every column's dictionary is bounded: when it is
+ * full, new values are passed through as they are, so a high-cardinality
+ * column costs only the bounded dictionary. The dictionary counts how much
+ * memory it has saved, see {@link #getSavedBytes() }.<br>
+ * <br>
+ * Pass a dictionary to the methods that materialize results, like
+ * {@link DbHelper#performDbQueryList(java.lang.String, java.lang.Object[], int, ru.dmerkushov.dbhelper.StringDictionary) }
+ * or {@link ResultSetUtils#resultSetToDomDocument(java.sql.ResultSet, ru.dmerkushov.dbhelper.StringDictionary) }.
+ * It is not thread-safe.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class StringDictionary {
+
+	/**
+	 * Default limit of distinct values kept per column
+	 */
+	public static final int DEFAULT_MAX_ENTRIES_PER_COLUMN = 1024;
+
+	private final int maxEntriesPerColumn;
+	private boolean[] enabledColumns = null;
+	private final List<Map<String, String>> dictionaries = new ArrayList<> ();
+	private long lookupCount = 0L;
+	private long hitCount = 0L;
+	private long savedBytes = 0L;
+
+	/**
+	 * Create a dictionary for all the columns, keeping up to
+	 * {@link #DEFAULT_MAX_ENTRIES_PER_COLUMN} values per column
+	 */
+	public StringDictionary () {
+		this (DEFAULT_MAX_ENTRIES_PER_COLUMN);
+	}
+
+	/**
+	 * Create a dictionary for all the columns
+	 *
+	 * @param maxEntriesPerColumn limit of distinct values kept per column
+	 */
+	public StringDictionary (int maxEntriesPerColumn) {
+		if (maxEntriesPerColumn <= 0) {
+			throw new IllegalArgumentException ("maxEntriesPerColumn must be positive: " + maxEntriesPerColumn);
+		}
+
+		this.maxEntriesPerColumn = maxEntriesPerColumn;
+	}
+
+	/**
+	 * Deduplicate only the given columns, leaving the others as they are
+	 *
+	 * @param columnIndexes the first column is 1, the second is 2, ...
+	 * @return this
+	 */
+	public StringDictionary forColumns (int... columnIndexes) {
+		int maxColumnIndex = 0;
+		for (int columnIndex : columnIndexes) {
+			if (columnIndex < 1) {
+				throw new IllegalArgumentException ("Column index must be positive: " + columnIndex);
+			}
+			maxColumnIndex = Math.max (maxColumnIndex, columnIndex);
+		}
+
+		enabledColumns = new boolean[maxColumnIndex + 1];
+		for (int columnIndex : columnIndexes) {
+			enabledColumns[columnIndex] = true;
+		}
+		return this;
+	}
+
+	/**
+	 * Get the one instance of a value of a column
+	 *
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @param value may be null
+	 * @return an equal string: the first instance seen in the column, or the
+	 * value itself
+	 */
+	public String dedup (int columnIndex, String value) {
+		if (value == null || !isEnabled (columnIndex)) {
+			return value;
+		}
+
+		while (dictionaries.size () <= columnIndex) {
+			dictionaries.add (null);
+		}
+		Map<String, String> dictionary = dictionaries.get (columnIndex);
+		if (dictionary == null) {
+			dictionary = new HashMap<> ();
+			dictionaries.set (columnIndex, dictionary);
+		}
+
+		lookupCount++;
+		String canonical = dictionary.get (value);
+		if (canonical != null) {
+			if (canonical != value) {
+				hitCount++;
+				savedBytes += estimateSize (value);
+			}
+			return canonical;
+		}
+		if (dictionary.size () < maxEntriesPerColumn) {
+			dictionary.put (value, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Deduplicate a value of a column if it is a string
+	 *
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @param value may be null
+	 * @return
+	 */
+	public Object dedupValue (int columnIndex, Object value) {
+		return (value instanceof String ? dedup (columnIndex, (String) value) : value);
+	}
+
+	/**
+	 * Check if the values of a column are deduplicated
+	 *
+	 * @param columnIndex the first column is 1, the second is 2, ...
+	 * @return
+	 */
+	public boolean isEnabled (int columnIndex) {
+		if (enabledColumns == null) {
+			return columnIndex >= 1;
+		}
+		return columnIndex >= 1 && columnIndex < enabledColumns.length && enabledColumns[columnIndex];
+	}
+
+	/**
+	 * Get the count of distinct values kept
+	 *
+	 * @return
+	 */
+	public int getEntryCount () {
+		int entryCount = 0;
+		for (Map<String, String> dictionary : dictionaries) {
+			entryCount += (dictionary != null ? dictionary.size () : 0);
+		}
+		return entryCount;
+	}
+
+	/**
+	 * Get the count of values looked up
+	 *
+	 * @return
+	 */
+	public long getLookupCount () {
+		return lookupCount;
+	}
+
+	/**
+	 * Get the count of duplicate instances replaced by the ones kept
+	 *
+	 * @return
+	 */
+	public long getHitCount () {
+		return hitCount;
+	}
+
+	/**
+	 * Get an estimate of the memory the duplicate instances would have taken
+	 *
+	 * @return in bytes
+	 */
+	public long getSavedBytes () {
+		return savedBytes;
+	}
+
+	/**
+	 * Estimate the heap size of a string: the String object and its char
+	 * array, with 8-byte alignment
+	 */
+	static long estimateSize (String value) {
+		return 24L + ((16L + 2L * value.length () + 7L) & ~7L);
+	}
+
+	@Override
+	public String toString () {
+		return String.format (Locale.ROOT, "StringDictionary: %d entries, %d of %d lookups deduplicated, about %d bytes saved", getEntryCount (), hitCount, lookupCount, savedBytes);
+	}
+}
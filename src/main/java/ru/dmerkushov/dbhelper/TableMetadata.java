@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The columns and the primary key of a table, as read from
+ * {@link java.sql.DatabaseMetaData}. Immutable
+ *
+ * @author Dmitriy Merkushov
+ * @see SchemaMetadataCache
+ */
+public final class TableMetadata {
+
+	/**
+	 * A column of a table
+	 */
+	public static final class Column {
+
+		private final String name;
+		private final int sqlType;
+		private final String typeName;
+		private final int size;
+		private final int decimalDigits;
+		private final boolean nullable;
+
+		Column (String name, int sqlType, String typeName, int size, int decimalDigits, boolean nullable) {
+			this.name = name;
+			this.sqlType = sqlType;
+			this.typeName = typeName;
+			this.size = size;
+			this.decimalDigits = decimalDigits;
+			this.nullable = nullable;
+		}
+
+		/**
+		 * Get the name of the column, as stored by the database
+		 *
+		 * @return
+		 */
+		public String getName () {
+			return name;
+		}
+
+		/**
+		 * Get the SQL type of the column
+		 *
+		 * @return one of {@link java.sql.Types}
+		 */
+		public int getSqlType () {
+			return sqlType;
+		}
+
+		/**
+		 * Get the database-specific name of the type of the column
+		 *
+		 * @return
+		 */
+		public String getTypeName () {
+			return typeName;
+		}
+
+		/**
+		 * Get the size of the column: the precision of numbers, the length of
+		 * strings
+		 *
+		 * @return
+		 */
+		public int getSize () {
+			return size;
+		}
+
+		/**
+		 * Get the count of fractional digits of the column
+		 *
+		 * @return
+		 */
+		public int getDecimalDigits () {
+			return decimalDigits;
+		}
+
+		/**
+		 * Check if the column may be null. Columns of unknown nullability are
+		 * considered nullable
+		 *
+		 * @return
+		 */
+		public boolean isNullable () {
+			return nullable;
+		}
+
+		@Override
+		public String toString () {
+			return name + " " + typeName + (nullable ? "" : " NOT NULL");
+		}
+	}
+
+	private final String schema;
+	private final String table;
+	private final Map<String, Column> columns;
+	private final Map<String, Column> columnsByUpperCaseName;
+	private final String[] primaryKey;
+	private final long loadedNanos;
+
+	TableMetadata (String schema, String table, List<Column> columns, String[] primaryKey, long loadedNanos) {
+		this.schema = schema;
+		this.table = table;
+		this.primaryKey = primaryKey;
+		this.loadedNanos = loadedNanos;
+
+		Map<String, Column> columnMap = new LinkedHashMap<> ();
+		Map<String, Column> upperCaseMap = new LinkedHashMap<> ();
+		for (Column column : columns) {
+			columnMap.put (column.getName (), column);
+			upperCaseMap.put (column.getName ().toUpperCase (Locale.ROOT), column);
+		}
+		this.columns = Collections.unmodifiableMap (columnMap);
+		this.columnsByUpperCaseName = upperCaseMap;
+	}
+
+	/**
+	 * Get the schema of the table
+	 *
+	 * @return null if the table has been looked up without a schema
+	 */
+	public String getSchema () {
+		return schema;
+	}
+
+	/**
+	 * Get the name of the table, as stored by the database
+	 *
+	 * @return
+	 */
+	public String getTable () {
+		return table;
+	}
+
+	/**
+	 * Get the columns of the table, in their order in the table
+	 *
+	 * @return columns by name
+	 */
+	public Map<String, Column> getColumns () {
+		return columns;
+	}
+
+	/**
+	 * Get a column by its name, ignoring the case
+	 *
+	 * @param name
+	 * @return null if there is no such column
+	 */
+	public Column getColumn (String name) {
+		Column column = columns.get (name);
+		if (column == null && name != null) {
+			column = columnsByUpperCaseName.get (name.toUpperCase (Locale.ROOT));
+		}
+		return column;
+	}
+
+	/**
+	 * Get the columns of the primary key, in the order of the key
+	 *
+	 * @return an empty array if the table has no primary key
+	 */
+	public String[] getPrimaryKey () {
+		return primaryKey.clone ();
+	}
+
+	/**
+	 * Get the time the metadata was read
+	 *
+	 * @return in the terms of {@link System#nanoTime() }
+	 */
+	long getLoadedNanos () {
+		return loadedNanos;
+	}
+
+	@Override
+	public String toString () {
+		return "TableMetadata{" + (schema != null ? schema + "." : "") + table + ", columns=" + columns.values () + ", primaryKey=" + Arrays.toString (primaryKey) + '}';
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Watermarks stored in a database table with a unique (primary key) column
+ * <code>sync_name</code> and a character column <code>watermark</code>,
+ * written with {@link DbHelper#upsert(java.lang.String, java.lang.String[], java.util.Map) }.<br>
+ * <br>
+ * If the DbHelper is not in the auto-commit mode, the watermark is saved in
+ * the current transaction, so it can be committed together with the
+ * changes the consumer has written to the same database
+ *
+ * @author Dmitriy Merkushov
+ */
+public class TableWatermarkStore implements WatermarkStore {
+
+	static final String SYNC_NAME_COLUMN = "sync_name";
+	static final String WATERMARK_COLUMN = "watermark";
+
+	private final DbHelper dbHelper;
+	private final String table;
+	private final String loadSql;
+
+	/**
+	 *
+	 * @param dbHelper
+	 * @param table
+	 */
+	public TableWatermarkStore (DbHelper dbHelper, String table) {
+		if (dbHelper == null) {
+			throw new NullPointerException ("dbHelper");
+		}
+
+		this.dbHelper = dbHelper;
+		this.table = SqlIdentifiers.check (table);
+		this.loadSql = "SELECT " + WATERMARK_COLUMN + " FROM " + table + " WHERE " + SYNC_NAME_COLUMN + " = ?";
+	}
+
+	@Override
+	public String load (String syncName) throws DbHelperException {
+		Object watermark = dbHelper.performDbQuerySingleResult (loadSql, new Object[] {syncName}, 1);
+		return (watermark != null ? watermark.toString () : null);
+	}
+
+	@Override
+	public void save (String syncName, String watermark) throws DbHelperException {
+		Map<String, Object> values = new HashMap<> ();
+		values.put (SYNC_NAME_COLUMN, syncName);
+		values.put (WATERMARK_COLUMN, watermark);
+		dbHelper.upsert (table, new String[] {SYNC_NAME_COLUMN}, values);
+	}
+}
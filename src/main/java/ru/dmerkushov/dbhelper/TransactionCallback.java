@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+/**
+ * The work of a transaction run by {@link DbHelper#inTransaction(ru.dmerkushov.dbhelper.TransactionCallback) }
+ *
+ * @author Dmitriy Merkushov
+ * @param <T> type of the result
+ */
+public interface TransactionCallback<T> {
+
+	/**
+	 * Do the work of the transaction. The callback is called again if the
+	 * transaction is retried, so it should not change anything outside the
+	 * database, or should do it idempotently
+	 *
+	 * @param dbHelper the DbHelper running the transaction, to execute the
+	 * statements of the transaction
+	 * @return
+	 * @throws Exception to roll the transaction back
+	 */
+	T doInTransaction (DbHelper dbHelper) throws Exception;
+}
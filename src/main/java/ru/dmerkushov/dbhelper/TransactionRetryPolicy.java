@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failures of a transaction are worth retrying, how many times,
+ * and how long to wait in between.<br>
+ * <br>
+ * Deadlocks and serialization failures are retryable: the database has
+ * rolled the transaction back, and running it again is likely to succeed.
+ * These are the SQLStates of class 40 (transaction rollback), the deadlock
+ * and serialization codes of Oracle, and the ISAM deadlock and lock timeout
+ * codes of Informix, which both use their own SQLStates. Informix gives the
+ * ISAM code either as the error code or in the next exception.
+ * Everything else is fatal. Subclasses may override
+ * {@link #isRetryable(java.sql.SQLException) } for other vendors.<br>
+ * <br>
+ * The delay grows exponentially with the attempt, and half of it is
+ * random, so the transactions that have collided do not collide again.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class TransactionRetryPolicy {
+
+	/**
+	 * Run the transaction once, never retry
+	 */
+	public static final TransactionRetryPolicy NO_RETRY = new TransactionRetryPolicy (1, 0L, 0L);
+
+	/**
+	 * Up to 5 attempts, waiting 10 to 20 ms before the first retry, and at
+	 * most 1 s
+	 */
+	public static final TransactionRetryPolicy DEFAULT = new TransactionRetryPolicy (5, 20L, 1000L);
+
+	private static final int ORACLE_DEADLOCK = 60;
+	private static final int ORACLE_CANNOT_SERIALIZE = 8177;
+	private static final int INFORMIX_ISAM_DEADLOCK = -143;
+	private static final int INFORMIX_ISAM_LOCK_TIMEOUT = -154;
+
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+
+	/**
+	 *
+	 * @param maxAttempts attempts in total, including the first one
+	 * @param baseDelayMillis ceiling of the delay before the first retry,
+	 * doubled for every next retry
+	 * @param maxDelayMillis maximum ceiling of the delay
+	 */
+	public TransactionRetryPolicy (int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException ("maxAttempts must be positive: " + maxAttempts);
+		}
+		if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+			throw new IllegalArgumentException ("Delays must be 0 <= baseDelayMillis <= maxDelayMillis: " + baseDelayMillis + ", " + maxDelayMillis);
+		}
+
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Get the number of attempts in total, including the first one
+	 *
+	 * @return
+	 */
+	public int getMaxAttempts () {
+		return maxAttempts;
+	}
+
+	/**
+	 * Check if a transaction failed with an exception may be retried. The
+	 * chain of the exception is checked as well
+	 *
+	 * @param ex
+	 * @return
+	 */
+	public boolean isRetryable (SQLException ex) {
+		int depth = 0;
+		for (SQLException current = ex; current != null && depth < 16; current = current.getNextException (), depth++) {
+			if (current instanceof SQLTransactionRollbackException) {
+				return true;
+			}
+
+			String sqlState = current.getSQLState ();
+			if (sqlState != null && sqlState.startsWith ("40")) {
+				return true;
+			}
+			if (sqlState != null && (sqlState.equals ("61000") && current.getErrorCode () == ORACLE_DEADLOCK || sqlState.equals ("72000") && current.getErrorCode () == ORACLE_CANNOT_SERIALIZE)) {
+				return true;
+			}
+			if ((sqlState == null || sqlState.equals ("IX000")) && (current.getErrorCode () == INFORMIX_ISAM_DEADLOCK || current.getErrorCode () == INFORMIX_ISAM_LOCK_TIMEOUT)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the delay before a retry: half of the ceiling for the retry, plus a
+	 * random part up to the other half
+	 *
+	 * @param retry 1 for the first retry
+	 * @return milliseconds
+	 */
+	public long backoffMillis (int retry) {
+		long ceiling = maxDelayMillis;
+		int shift = retry - 1;
+		if (shift < 62 && baseDelayMillis <= (maxDelayMillis >> shift)) {
+			ceiling = baseDelayMillis << shift;
+		}
+
+		long half = ceiling / 2;
+		return half + ThreadLocalRandom.current ().nextLong (ceiling - half + 1);
+	}
+
+	@Override
+	public String toString () {
+		return "TransactionRetryPolicy{" + "maxAttempts=" + maxAttempts + ", baseDelayMillis=" + baseDelayMillis + ", maxDelayMillis=" + maxDelayMillis + '}';
+	}
+}
@@ -0,0 +1,573 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * A prepared statement with typed parameter binding, for tight loops. The
+ * parameters are kept in primitive arrays and set with the typed setters of
+ * {@link PreparedStatement}, so binding and executing allocate no
+ * parameter array and box no numbers, and the statement is prepared once
+ * and reused for every execution.<br>
+ * <br>
+ * The bindings stay until they are replaced or {@link #reset() reset}, so
+ * only the parameters that change need to be bound again. If the DbHelper
+ * re-creates its connection, the statement is prepared again on the new
+ * one and the bindings are re-applied.<br>
+ * <br>
+ * Like DbHelper, a TypedStatement must be used by one thread at a time;
+ * keep one per thread. It must be closed when no longer needed. For the
+ * sake of speed, the calls are not logged.
+ *
+ * @author Dmitriy Merkushov
+ * @see DbHelper#createTypedStatement(java.lang.String)
+ */
+public class TypedStatement implements AutoCloseable {
+
+	private static final byte UNBOUND = 0;
+	private static final byte NULL = 1;
+	private static final byte LONG = 2;
+	private static final byte INT = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte FLOAT = 5;
+	private static final byte BOOLEAN = 6;
+	private static final byte STRING = 7;
+	private static final byte BIG_DECIMAL = 8;
+	private static final byte TIMESTAMP = 9;
+	private static final byte TIME = 10;
+	private static final byte DATE = 11;
+	private static final byte BYTES = 12;
+
+	private final DbHelper dbHelper;
+	private final String sql;
+
+	private byte[] kinds = new byte[8];
+	private long[] primitives = new long[8];
+	private Object[] references = new Object[8];
+	private int parameterCount = 0;
+
+	private PreparedStatement ps = null;
+	private Connection preparedOn = null;
+	private boolean booleanAsString = false;
+	private int batchRowCount = 0;
+	private boolean closed = false;
+
+	TypedStatement (DbHelper dbHelper, String sql) {
+		if (sql == null) {
+			throw new NullPointerException ("sql");
+		}
+
+		this.dbHelper = dbHelper;
+		this.sql = sql;
+	}
+
+	/**
+	 * Get the SQL of the statement
+	 *
+	 * @return
+	 */
+	public String getSql () {
+		return sql;
+	}
+
+	/**
+	 * Bind a long parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value
+	 * @return this
+	 */
+	public TypedStatement bindLong (int index, long value) {
+		set (index, LONG, value, null);
+		return this;
+	}
+
+	/**
+	 * Bind an int parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value
+	 * @return this
+	 */
+	public TypedStatement bindInt (int index, int value) {
+		set (index, INT, value, null);
+		return this;
+	}
+
+	/**
+	 * Bind a double parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value
+	 * @return this
+	 */
+	public TypedStatement bindDouble (int index, double value) {
+		set (index, DOUBLE, Double.doubleToRawLongBits (value), null);
+		return this;
+	}
+
+	/**
+	 * Bind a float parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value
+	 * @return this
+	 */
+	public TypedStatement bindFloat (int index, float value) {
+		set (index, FLOAT, Float.floatToRawIntBits (value), null);
+		return this;
+	}
+
+	/**
+	 * Bind a boolean parameter. For Informix, it is sent as "t" or "f", like
+	 * the Boolean parameters of DbHelper
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value
+	 * @return this
+	 */
+	public TypedStatement bindBoolean (int index, boolean value) {
+		set (index, BOOLEAN, (value ? 1L : 0L), null);
+		return this;
+	}
+
+	/**
+	 * Bind a String parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value may be null
+	 * @return this
+	 */
+	public TypedStatement bindString (int index, String value) {
+		set (index, STRING, 0L, value);
+		return this;
+	}
+
+	/**
+	 * Bind a BigDecimal parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value may be null
+	 * @return this
+	 */
+	public TypedStatement bindBigDecimal (int index, BigDecimal value) {
+		set (index, BIG_DECIMAL, 0L, value);
+		return this;
+	}
+
+	/**
+	 * Bind a Timestamp parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value may be null
+	 * @return this
+	 */
+	public TypedStatement bindTimestamp (int index, Timestamp value) {
+		set (index, TIMESTAMP, 0L, value);
+		return this;
+	}
+
+	/**
+	 * Bind a Time parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value may be null
+	 * @return this
+	 */
+	public TypedStatement bindTime (int index, Time value) {
+		set (index, TIME, 0L, value);
+		return this;
+	}
+
+	/**
+	 * Bind a Date parameter
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value may be null
+	 * @return this
+	 */
+	public TypedStatement bindDate (int index, Date value) {
+		set (index, DATE, 0L, value);
+		return this;
+	}
+
+	/**
+	 * Bind a byte array parameter. The array is not copied
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param value may be null
+	 * @return this
+	 */
+	public TypedStatement bindBytes (int index, byte[] value) {
+		set (index, BYTES, 0L, value);
+		return this;
+	}
+
+	/**
+	 * Bind SQL NULL
+	 *
+	 * @param index the first parameter is 1, the second is 2, ...
+	 * @param sqlType the SQL type of the parameter, see {@link Types}
+	 * @return this
+	 */
+	public TypedStatement bindNull (int index, int sqlType) {
+		set (index, NULL, sqlType, null);
+		return this;
+	}
+
+	/**
+	 * Clear all the bindings, here and in the driver, to reuse the statement
+	 * with other parameters
+	 *
+	 * @return this
+	 */
+	public TypedStatement reset () {
+		Arrays.fill (kinds, 0, parameterCount, UNBOUND);
+		Arrays.fill (references, 0, parameterCount, null);
+		parameterCount = 0;
+
+		if (ps != null) {
+			try {
+				ps.clearParameters ();	// Leaves the rows added to the batch
+			} catch (SQLException ex) {
+				throw new IllegalStateException ("Received a SQLException when trying to clear the parameters for SQL: \"" + sql + "\".", ex);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Execute the statement as a query. The result set belongs to the
+	 * statement: it stays valid until the next execution or until the
+	 * statement is closed, and need not be closed by the caller
+	 *
+	 * @return
+	 * @throws DbHelperException
+	 */
+	public ResultSet executeQuery () throws DbHelperException {
+		PreparedStatement statement = prepare ();
+		long timeoutMillis = dbHelper.effectiveQueryTimeout (sql, dbHelper.defaultQueryTimeoutMillis);
+		ExecutionContext context = beforeExecute ();
+
+		dbHelper.setQueryTimeout (statement, sql, timeoutMillis);
+		StatementWatchdog watchdog = (timeoutMillis > 0 ? StatementWatchdog.arm (statement, timeoutMillis) : null);
+		try {
+			ResultSet rs = statement.executeQuery ();
+			afterExecute (context, -1L);
+			return rs;
+		} catch (SQLException ex) {
+			throw executionFailure (ex, watchdog, timeoutMillis, context);
+		} finally {
+			if (watchdog != null) {
+				watchdog.disarm ();
+			}
+		}
+	}
+
+	/**
+	 * Execute the statement as a query and check if it returns any row
+	 *
+	 * @return
+	 * @throws DbHelperException
+	 */
+	public boolean exists () throws DbHelperException {
+		ResultSet rs = executeQuery ();
+		try {
+			boolean exists = rs.next ();
+			rs.close ();
+			return exists;
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to read the result for SQL: \"" + sql + "\".", ex);
+		}
+	}
+
+	/**
+	 * Execute the statement as an update
+	 *
+	 * @return the row count
+	 * @throws DbHelperException
+	 */
+	public int executeUpdate () throws DbHelperException {
+		PreparedStatement statement = prepare ();
+		long timeoutMillis = dbHelper.effectiveQueryTimeout (sql, dbHelper.defaultQueryTimeoutMillis);
+		ExecutionContext context = beforeExecute ();
+
+		dbHelper.setQueryTimeout (statement, sql, timeoutMillis);
+		StatementWatchdog watchdog = (timeoutMillis > 0 ? StatementWatchdog.arm (statement, timeoutMillis) : null);
+		try {
+			int rowCount = statement.executeUpdate ();
+			afterExecute (context, rowCount);
+			return rowCount;
+		} catch (SQLException ex) {
+			throw executionFailure (ex, watchdog, timeoutMillis, context);
+		} finally {
+			if (watchdog != null) {
+				watchdog.disarm ();
+			}
+		}
+	}
+
+	/**
+	 * Add the current bindings to the batch. The bindings stay, so only the
+	 * parameters that change need to be bound for the next row
+	 *
+	 * @return this
+	 * @throws DbHelperException
+	 */
+	public TypedStatement addBatch () throws DbHelperException {
+		PreparedStatement statement = prepare ();
+		try {
+			statement.addBatch ();
+			batchRowCount++;
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to add a batch for SQL: \"" + sql + "\".", ex);
+		}
+		return this;
+	}
+
+	/**
+	 * Execute the rows added to the batch in one round trip
+	 *
+	 * @return the update counts, in the order of the rows
+	 * @throws DbHelperException
+	 */
+	public int[] executeBatch () throws DbHelperException {
+		if (batchRowCount == 0) {
+			return new int[0];
+		}
+
+		long timeoutMillis = dbHelper.effectiveQueryTimeout (sql, dbHelper.defaultQueryTimeoutMillis);
+		ExecutionContext context = beforeExecute ();
+
+		dbHelper.setQueryTimeout (ps, sql, timeoutMillis);
+		StatementWatchdog watchdog = (timeoutMillis > 0 ? StatementWatchdog.arm (ps, timeoutMillis) : null);
+		try {
+			int[] counts = ps.executeBatch ();
+			if (context != null) {
+				long rowCount = 0L;
+				for (int count : counts) {
+					rowCount += Math.max (count, 0);
+				}
+				afterExecute (context, rowCount);
+			}
+			return counts;
+		} catch (SQLException ex) {
+			throw executionFailure (ex, watchdog, timeoutMillis, context);
+		} finally {
+			batchRowCount = 0;
+			if (watchdog != null) {
+				watchdog.disarm ();
+			}
+		}
+	}
+
+	/**
+	 * Close the prepared statement
+	 */
+	@Override
+	public void close () {
+		closed = true;
+		batchRowCount = 0;
+		closeStatement ();
+	}
+
+	private void set (int index, byte kind, long primitive, Object reference) {
+		if (index < 1) {
+			throw new IllegalArgumentException ("Parameter index must be positive: " + index);
+		}
+		if (index > kinds.length) {
+			int capacity = Math.max (index, kinds.length * 2);
+			kinds = Arrays.copyOf (kinds, capacity);
+			primitives = Arrays.copyOf (primitives, capacity);
+			references = Arrays.copyOf (references, capacity);
+		}
+
+		kinds[index - 1] = kind;
+		primitives[index - 1] = primitive;
+		references[index - 1] = reference;
+		parameterCount = Math.max (parameterCount, index);
+	}
+
+	/**
+	 * Get the statement prepared on the current connection, with the
+	 * bindings applied
+	 */
+	private PreparedStatement prepare () throws DbHelperException {
+		if (closed) {
+			throw new DbHelperException ("The typed statement is closed, for SQL: \"" + sql + "\"");
+		}
+
+		dbHelper.openDbConnection ();
+
+		if (ps == null || preparedOn != dbHelper.dbConnection) {
+			if (batchRowCount > 0) {
+				batchRowCount = 0;
+				closeStatement ();
+				throw new DbHelperException ("The connection has been re-created, the rows added to the batch are lost, for SQL: \"" + sql + "\"");
+			}
+			closeStatement ();
+
+			DbHelper.getLoggerWrapper ().info ("Preparing a typed statement for SQL: \"" + sql + "\"");
+			try {
+				ps = dbHelper.dbConnection.prepareStatement (sql);
+				preparedOn = dbHelper.dbConnection;
+				booleanAsString = (dbHelper.getDialect () == DbDialect.INFORMIX);	// Informix JDBC driver has no direct support for setBoolean()
+			} catch (SQLException ex) {
+				throw new DbHelperException ("Received a SQLException when trying to prepare statement for SQL: \"" + sql + "\".", ex);
+			}
+
+			int fetchSize = dbHelper.fetchSizeAdvisor.adviseFetchSize (sql);
+			if (fetchSize > 0) {
+				try {
+					ps.setFetchSize (fetchSize);
+				} catch (SQLException ex) {
+					DbHelper.getLoggerWrapper ().warning ("Could not set fetch size of " + fetchSize + " for SQL: \"" + sql + "\": " + ex.getMessage ());
+				}
+			}
+		}
+
+		int index = 0;
+		try {
+			for (index = 1; index <= parameterCount; index++) {
+				applyBinding (index);
+			}
+		} catch (SQLException ex) {
+			throw new DbHelperException ("Received a SQLException when trying to set parameter #" + index + " for SQL: \"" + sql + "\".", ex);
+		}
+		return ps;
+	}
+
+	private void applyBinding (int index) throws SQLException {
+		long primitive = primitives[index - 1];
+		Object reference = references[index - 1];
+
+		switch (kinds[index - 1]) {
+			case NULL:
+				ps.setNull (index, (int) primitive);
+				break;
+			case LONG:
+				ps.setLong (index, primitive);
+				break;
+			case INT:
+				ps.setInt (index, (int) primitive);
+				break;
+			case DOUBLE:
+				ps.setDouble (index, Double.longBitsToDouble (primitive));
+				break;
+			case FLOAT:
+				ps.setFloat (index, Float.intBitsToFloat ((int) primitive));
+				break;
+			case BOOLEAN:
+				if (booleanAsString) {
+					ps.setString (index, (primitive != 0L ? "t" : "f"));
+				} else {
+					ps.setBoolean (index, primitive != 0L);
+				}
+				break;
+			case STRING:
+				ps.setString (index, (String) reference);
+				break;
+			case BIG_DECIMAL:
+				ps.setBigDecimal (index, (BigDecimal) reference);
+				break;
+			case TIMESTAMP:
+				ps.setTimestamp (index, (Timestamp) reference);
+				break;
+			case TIME:
+				ps.setTime (index, (Time) reference);
+				break;
+			case DATE:
+				ps.setDate (index, (Date) reference);
+				break;
+			case BYTES:
+				ps.setBytes (index, (byte[]) reference);
+				break;
+			default:
+				throw new SQLException ("Parameter #" + index + " is not bound");
+		}
+	}
+
+	private DbHelperException executionFailure (SQLException ex, StatementWatchdog watchdog, long timeoutMillis, ExecutionContext context) {
+		dbHelper.checkConnectionFailure (ex);
+		DbHelperException failure;
+		if ((watchdog != null && watchdog.disarm ()) || ex instanceof SQLTimeoutException) {
+			failure = new DbHelperTimeoutException ("Statement timed out after " + timeoutMillis + " ms for SQL: \"" + sql + "\".", ex);
+		} else {
+			failure = new DbHelperException ("Received a SQLException when trying to execute statement for SQL: \"" + sql + "\".", ex);
+		}
+		if (context != null) {
+			context.onError (failure);
+		}
+		return failure;
+	}
+
+	/**
+	 * Call the interceptors of the DbHelper before an execution. Typed
+	 * statements get only the execution hooks: their SQL is prepared once,
+	 * and their bindings are not objects
+	 *
+	 * @return null if there are no interceptors
+	 */
+	private ExecutionContext beforeExecute () throws DbHelperException {
+		StatementInterceptor[] chain = dbHelper.interceptors;
+		if (chain.length == 0) {
+			return null;
+		}
+
+		ExecutionContext context = new ExecutionContext (dbHelper, chain, ExecutionContext.Kind.TYPED, sql, null, null);
+		try {
+			context.beforeExecute ();
+		} catch (DbHelperException | RuntimeException ex) {
+			context.onError (ex);
+			throw ex;
+		}
+		return context;
+	}
+
+	private void afterExecute (ExecutionContext context, long rowCount) throws DbHelperException {
+		if (context == null) {
+			return;
+		}
+
+		context.setRowCount (rowCount);
+		try {
+			context.afterExecute ();
+		} catch (DbHelperException | RuntimeException ex) {
+			context.onError (ex);
+			throw ex;
+		}
+	}
+
+	private void closeStatement () {
+		if (ps != null) {
+			dbHelper.closeStatement (ps, sql);
+			ps = null;
+			preparedOn = null;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An upsert statement generated for a table, a key and a set of columns (the
+ * shape of the row). Statements are cached by shape, so the SQL of a shape is
+ * generated and its names are checked only once
+ *
+ * @author Dmitriy Merkushov
+ * @see DbDialect#upsert(java.lang.String, java.lang.String[], java.lang.String[])
+ */
+final class UpsertStatement {
+
+	/**
+	 * Count of statement shapes cached, beyond which the cache is cleared
+	 */
+	static final int MAX_CACHE_SIZE = 1024;
+
+	private static final ConcurrentMap<String, UpsertStatement> cache = new ConcurrentHashMap<> ();
+
+	private final String sql;
+	private final String[] columns;
+
+	private UpsertStatement (String sql, String[] columns) {
+		this.sql = sql;
+		this.columns = columns;
+	}
+
+	/**
+	 * Get the upsert statement for a shape of row, generating it if it has
+	 * not been generated yet
+	 *
+	 * @param dialect
+	 * @param table
+	 * @param keyColumns
+	 * @param columns all the columns to write, including the key columns, in
+	 * any order
+	 * @return
+	 * @throws IllegalArgumentException if a name is not valid, or a key
+	 * column is not among the columns
+	 */
+	static UpsertStatement get (DbDialect dialect, String table, String[] keyColumns, Collection<String> columns) {
+		if (keyColumns == null || keyColumns.length == 0) {
+			throw new IllegalArgumentException ("At least one key column must be given");
+		}
+
+		String[] sortedColumns = columns.toArray (new String[columns.size ()]);
+		Arrays.sort (sortedColumns);
+
+		StringBuilder shape = new StringBuilder (dialect.name ()).append ('\u0000').append (table);
+		for (String keyColumn : keyColumns) {
+			shape.append ('\u0000').append (keyColumn);
+		}
+		shape.append ('\u0000');
+		for (String column : sortedColumns) {
+			shape.append ('\u0000').append (column);
+		}
+		String shapeKey = shape.toString ();
+
+		UpsertStatement statement = cache.get (shapeKey);
+		if (statement == null) {
+			SqlIdentifiers.check (table);
+			for (String column : sortedColumns) {
+				SqlIdentifiers.check (column);
+			}
+			for (String keyColumn : keyColumns) {
+				if (Arrays.binarySearch (sortedColumns, keyColumn) < 0) {
+					throw new IllegalArgumentException ("No value for key column " + keyColumn);
+				}
+			}
+
+			statement = new UpsertStatement (dialect.upsert (table, keyColumns, sortedColumns), sortedColumns);
+			if (cache.size () >= MAX_CACHE_SIZE) {
+				cache.clear ();
+			}
+			UpsertStatement existing = cache.putIfAbsent (shapeKey, statement);
+			if (existing != null) {
+				statement = existing;
+			}
+		}
+		return statement;
+	}
+
+	/**
+	 * Get the SQL of the statement
+	 *
+	 * @return
+	 */
+	String getSql () {
+		return sql;
+	}
+
+	/**
+	 * Arrange the values of a row as positional parameters of the statement
+	 *
+	 * @param values
+	 * @return
+	 */
+	Object[] toParameterArray (Map<String, ?> values) {
+		Object[] params = new Object[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			params[i] = values.get (columns[i]);
+		}
+		return params;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How long every step of a {@link DbHelperWarmUp warm-up} took
+ *
+ * @author Dmitriy Merkushov
+ */
+public class WarmUpReport {
+
+	private final long driverLoadMillis;
+	private final long totalMillis;
+	private final List<ConnectionReport> connections;
+
+	WarmUpReport (long driverLoadMillis, long totalMillis, List<ConnectionReport> connections) {
+		this.driverLoadMillis = driverLoadMillis;
+		this.totalMillis = totalMillis;
+		this.connections = Collections.unmodifiableList (new ArrayList<> (connections));
+	}
+
+	/**
+	 * Get the time spent loading the JDBC driver
+	 *
+	 * @return milliseconds
+	 */
+	public long getDriverLoadMillis () {
+		return driverLoadMillis;
+	}
+
+	/**
+	 * Get the time the whole warm-up took
+	 *
+	 * @return milliseconds
+	 */
+	public long getTotalMillis () {
+		return totalMillis;
+	}
+
+	/**
+	 * Get the reports for every connection warmed up, in the order the
+	 * DbHelper instances were given
+	 *
+	 * @return
+	 */
+	public List<ConnectionReport> getConnections () {
+		return connections;
+	}
+
+	/**
+	 * Check if every step succeeded
+	 *
+	 * @return
+	 */
+	public boolean isSuccessful () {
+		for (ConnectionReport connection : connections) {
+			if (connection.getFailure () != null || !connection.getPrepareFailures ().isEmpty ()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString () {
+		StringBuilder sb = new StringBuilder ();
+		sb.append ("Warm-up took ").append (totalMillis).append (" ms, driver loading ").append (driverLoadMillis).append (" ms");
+		for (int i = 0; i < connections.size (); i++) {
+			sb.append ("\n Connection #").append (i).append (": ").append (connections.get (i));
+		}
+		return sb.toString ();
+	}
+
+	/**
+	 * How long warming up a single connection took
+	 */
+	public static class ConnectionReport {
+
+		long connectMillis = 0L;
+		long sessionInitMillis = 0L;
+		final Map<String, Long> prepareMillis = new LinkedHashMap<> ();
+		final Map<String, DbHelperException> prepareFailures = new LinkedHashMap<> ();
+		DbHelperException failure = null;
+
+		/**
+		 * Get the time spent opening the connection
+		 *
+		 * @return milliseconds, 0 if the connection was already open
+		 */
+		public long getConnectMillis () {
+			return connectMillis;
+		}
+
+		/**
+		 * Get the time spent initializing the session
+		 *
+		 * @return milliseconds, 0 if the connection was already open
+		 */
+		public long getSessionInitMillis () {
+			return sessionInitMillis;
+		}
+
+		/**
+		 * Get the time spent preparing every statement
+		 *
+		 * @return milliseconds by SQL, in the order of the manifest
+		 */
+		public Map<String, Long> getPrepareMillis () {
+			return Collections.unmodifiableMap (prepareMillis);
+		}
+
+		/**
+		 * Get the statements that could not be prepared
+		 *
+		 * @return exceptions by SQL
+		 */
+		public Map<String, DbHelperException> getPrepareFailures () {
+			return Collections.unmodifiableMap (prepareFailures);
+		}
+
+		/**
+		 * Get the exception that prevented opening the connection
+		 *
+		 * @return the exception, or null if the connection has been opened
+		 */
+		public DbHelperException getFailure () {
+			return failure;
+		}
+
+		@Override
+		public String toString () {
+			if (failure != null) {
+				return "failed: " + failure.getMessage ();
+			}
+			long totalPrepareMillis = 0L;
+			for (Long millis : prepareMillis.values ()) {
+				totalPrepareMillis += millis;
+			}
+			return "connect " + connectMillis + " ms, session init " + sessionInitMillis + " ms, "
+					+ prepareMillis.size () + " statements prepared in " + totalPrepareMillis + " ms"
+					+ (prepareFailures.isEmpty () ? "" : ", " + prepareFailures.size () + " failed: " + prepareFailures.keySet ());
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper;
+
+/**
+ * Persistent storage of the watermarks of {@link IncrementalSync}
+ *
+ * @author Dmitriy Merkushov
+ * @see FileWatermarkStore
+ * @see TableWatermarkStore
+ */
+public interface WatermarkStore {
+
+	/**
+	 * Load the watermark of a sync
+	 *
+	 * @param syncName
+	 * @return the watermark saved last, or null if none has been saved
+	 * @throws DbHelperException
+	 */
+	String load (String syncName) throws DbHelperException;
+
+	/**
+	 * Save the watermark of a sync, replacing the previous one atomically:
+	 * after a crash, either the previous or the new watermark must be loaded
+	 *
+	 * @param syncName
+	 * @param watermark
+	 * @throws DbHelperException
+	 */
+	void save (String syncName, String watermark) throws DbHelperException;
+}
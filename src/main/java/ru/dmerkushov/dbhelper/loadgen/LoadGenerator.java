@@ -0,0 +1,476 @@
+/*
+ * Copyright 2013-2014 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.dmerkushov.dbhelper.loadgen;
+
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import ru.dmerkushov.dbhelper.DbHelper;
+import ru.dmerkushov.dbhelper.DbHelperException;
+import ru.dmerkushov.dbhelper.DbQueryHandle;
+import ru.dmerkushov.dbhelper.LatencyHistogram;
+
+/**
+ * A command-line load generator replaying a mix of DbHelper calls
+ * ({@link DbHelper#performDbQuery(java.lang.String, java.lang.Object[]) performDbQuery},
+ * {@link DbHelper#performDbUpdate(java.lang.String, java.lang.Object[]) performDbUpdate}
+ * and {@link DbHelper#recordExists(java.lang.String, java.lang.Object[]) recordExists})
+ * from a number of threads, each with its own DbHelper and connection. Every
+ * interval it prints the throughput, the error count and the p50, p95, p99
+ * and p99.9 latencies of the interval, and a summary of the whole run at the
+ * end.<br>
+ * <br>
+ * Every question mark (?) of the SQL is bound to a random key from 1 to the
+ * key range. With <code>--embedded</code>, an in-memory H2 database with a
+ * table <code>loadgen (id, payload, counter)</code> of key range rows is
+ * created and used by the default SQL, so no database server is needed; the
+ * H2 driver must be on the class path then.<br>
+ * <br>
+ * Example:
+ * <pre>
+ * java -cp db-helper.jar:log-helper.jar:h2.jar ru.dmerkushov.dbhelper.loadgen.LoadGenerator --embedded --threads 16 --duration 60 --mix query=70,update=20,exists=10
+ * </pre>
+ *
+ * @author Dmitriy Merkushov
+ */
+public class LoadGenerator {
+
+	static final String EMBEDDED_DRIVER = "org.h2.Driver";
+	static final String EMBEDDED_URL = "jdbc:h2:mem:loadgen;DB_CLOSE_DELAY=-1";
+
+	/**
+	 * The kinds of calls in the mix
+	 */
+	public enum Operation {
+
+		QUERY,
+		UPDATE,
+		EXISTS
+	}
+
+	private String driverName = null;
+	private String connectionUrl = null;
+	private boolean embedded = false;
+	private int threadCount = 8;
+	private long durationSeconds = 30L;
+	private long intervalSeconds = 1L;
+	private long keyRange = 10000L;
+	private final Map<Operation, Integer> mix = new HashMap<> ();
+	private final Map<Operation, String> sqls = new HashMap<> ();
+
+	/**
+	 * Run the load generator from the command line
+	 *
+	 * @param args see {@link #usage(java.io.PrintStream) }
+	 */
+	public static void main (String[] args) {
+		LoadGenerator loadGenerator = new LoadGenerator ();
+		try {
+			loadGenerator.parseArguments (args);
+		} catch (IllegalArgumentException ex) {
+			System.err.println (ex.getMessage ());
+			usage (System.err);
+			System.exit (2);
+		}
+
+		try {
+			loadGenerator.run (System.out);
+		} catch (DbHelperException | InterruptedException ex) {
+			ex.printStackTrace (System.err);
+			System.exit (1);
+		}
+	}
+
+	/**
+	 * Print the command-line options
+	 *
+	 * @param out
+	 */
+	public static void usage (PrintStream out) {
+		out.println ("Usage: LoadGenerator (--driver CLASS --url JDBC_URL | --embedded) [options]");
+		out.println ("  --threads N         worker threads, each with its own connection (8)");
+		out.println ("  --duration SECONDS  length of the run (30)");
+		out.println ("  --interval SECONDS  reporting interval (1)");
+		out.println ("  --mix SPEC          weights of the calls, like query=70,update=20,exists=10");
+		out.println ("  --query SQL         SQL of performDbQuery");
+		out.println ("  --update SQL        SQL of performDbUpdate");
+		out.println ("  --exists SQL        SQL of recordExists");
+		out.println ("  --key-range N       every ? is bound to a random key from 1 to N (10000)");
+		out.println ("  --embedded          run against an in-memory H2 database (needs the H2 driver on the class path)");
+	}
+
+	/**
+	 * Parse the command-line options
+	 *
+	 * @param args
+	 * @throws IllegalArgumentException if the options are not valid
+	 */
+	public void parseArguments (String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals ("--embedded")) {
+				embedded = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException ("No value for option " + option);
+			}
+			String value = args[++i];
+			switch (option) {
+				case "--driver":
+					driverName = value;
+					break;
+				case "--url":
+					connectionUrl = value;
+					break;
+				case "--threads":
+					threadCount = parsePositive (option, value);
+					break;
+				case "--duration":
+					durationSeconds = parsePositive (option, value);
+					break;
+				case "--interval":
+					intervalSeconds = parsePositive (option, value);
+					break;
+				case "--key-range":
+					keyRange = parsePositive (option, value);
+					break;
+				case "--mix":
+					parseMix (value);
+					break;
+				case "--query":
+					sqls.put (Operation.QUERY, value);
+					break;
+				case "--update":
+					sqls.put (Operation.UPDATE, value);
+					break;
+				case "--exists":
+					sqls.put (Operation.EXISTS, value);
+					break;
+				default:
+					throw new IllegalArgumentException ("Unknown option " + option);
+			}
+		}
+
+		if (embedded) {
+			driverName = (driverName != null ? driverName : EMBEDDED_DRIVER);
+			connectionUrl = (connectionUrl != null ? connectionUrl : EMBEDDED_URL);
+			if (!sqls.containsKey (Operation.QUERY)) {
+				sqls.put (Operation.QUERY, "SELECT id, payload, counter FROM loadgen WHERE id = ?");
+			}
+			if (!sqls.containsKey (Operation.UPDATE)) {
+				sqls.put (Operation.UPDATE, "UPDATE loadgen SET counter = counter + 1 WHERE id = ?");
+			}
+			if (!sqls.containsKey (Operation.EXISTS)) {
+				sqls.put (Operation.EXISTS, "SELECT 1 FROM loadgen WHERE id = ?");
+			}
+		}
+		if (driverName == null || connectionUrl == null) {
+			throw new IllegalArgumentException ("Either --driver and --url, or --embedded must be given");
+		}
+
+		if (mix.isEmpty ()) {
+			for (Operation operation : sqls.keySet ()) {
+				mix.put (operation, 1);
+			}
+		}
+		for (Operation operation : mix.keySet ()) {
+			if (!sqls.containsKey (operation)) {
+				throw new IllegalArgumentException ("No SQL for " + operation.name ().toLowerCase (Locale.ROOT) + ", use --" + operation.name ().toLowerCase (Locale.ROOT));
+			}
+		}
+		if (mix.isEmpty ()) {
+			throw new IllegalArgumentException ("No calls to make, give at least one of --query, --update, --exists");
+		}
+	}
+
+	private void parseMix (String spec) {
+		mix.clear ();
+		for (String part : spec.split (",")) {
+			String[] weight = part.trim ().split ("=");
+			if (weight.length != 2) {
+				throw new IllegalArgumentException ("Not a valid mix: " + spec);
+			}
+			Operation operation;
+			try {
+				operation = Operation.valueOf (weight[0].trim ().toUpperCase (Locale.ROOT));
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException ("Unknown call in the mix: " + weight[0]);
+			}
+			int value;
+			try {
+				value = Integer.parseInt (weight[1].trim ());
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException ("Not a valid weight in the mix: " + part);
+			}
+			if (value < 0) {
+				throw new IllegalArgumentException ("Not a valid weight in the mix: " + part);
+			}
+			if (value > 0) {
+				mix.put (operation, value);
+			}
+		}
+	}
+
+	private static int parsePositive (String option, String value) {
+		int parsed;
+		try {
+			parsed = Integer.parseInt (value);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException ("Not a number for option " + option + ": " + value);
+		}
+		if (parsed <= 0) {
+			throw new IllegalArgumentException ("Option " + option + " must be positive: " + value);
+		}
+		return parsed;
+	}
+
+	/**
+	 * Run the load and print the report
+	 *
+	 * @param out
+	 * @throws DbHelperException if the embedded database cannot be set up
+	 * @throws InterruptedException
+	 */
+	public void run (PrintStream out) throws DbHelperException, InterruptedException {
+		if (embedded) {
+			setUpEmbeddedDatabase ();
+		}
+
+		Operation[] operations = mix.keySet ().toArray (new Operation[mix.size ()]);
+		Arrays.sort (operations);
+		int[] cumulativeWeights = new int[operations.length];
+		int totalWeight = 0;
+		for (int i = 0; i < operations.length; i++) {
+			totalWeight += mix.get (operations[i]);
+			cumulativeWeights[i] = totalWeight;
+		}
+
+		long startNanos = System.nanoTime ();
+		long endNanos = startNanos + TimeUnit.SECONDS.toNanos (durationSeconds);
+
+		List<Worker> workers = new ArrayList<> ();
+		CountDownLatch finished = new CountDownLatch (threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			Worker worker = new Worker (operations, cumulativeWeights, endNanos, finished);
+			workers.add (worker);
+			Thread thread = new Thread (worker, "LoadGenerator worker " + i);
+			thread.setDaemon (true);
+			thread.start ();
+		}
+
+		out.println (String.format (Locale.ROOT, "Running %s against %s with %d threads for %d s", mix, connectionUrl, threadCount, durationSeconds));
+		out.println (String.format (Locale.ROOT, "%8s %-7s %10s %8s %9s %9s %9s %9s %9s", "time_s", "call", "ops/s", "errors", "p50_ms", "p95_ms", "p99_ms", "p999_ms", "max_ms"));
+
+		Map<Operation, LatencyHistogram> previous = new HashMap<> ();
+		Map<Operation, Long> previousErrors = new HashMap<> ();
+		for (Operation operation : operations) {
+			previous.put (operation, new LatencyHistogram ());
+			previousErrors.put (operation, 0L);
+		}
+
+		long lastReportNanos = startNanos;
+		boolean done = false;
+		while (!done) {
+			done = finished.await (intervalSeconds, TimeUnit.SECONDS);
+			long nowNanos = System.nanoTime ();
+			double intervalSecondsElapsed = (double) (nowNanos - lastReportNanos) / TimeUnit.SECONDS.toNanos (1);
+			lastReportNanos = nowNanos;
+
+			for (Operation operation : operations) {
+				LatencyHistogram cumulative = merge (workers, operation);
+				long errors = errors (workers, operation);
+
+				LatencyHistogram interval = cumulative.copy ();
+				interval.subtract (previous.get (operation));
+				long intervalErrors = errors - previousErrors.get (operation);
+				previous.put (operation, cumulative);
+				previousErrors.put (operation, errors);
+
+				printLine (out, String.format (Locale.ROOT, "%8.1f", (double) (nowNanos - startNanos) / TimeUnit.SECONDS.toNanos (1)), operation, interval, intervalErrors, intervalSecondsElapsed);
+			}
+		}
+
+		double totalSeconds = (double) (System.nanoTime () - startNanos) / TimeUnit.SECONDS.toNanos (1);
+		out.println ();
+		out.println ("Summary:");
+		LatencyHistogram all = new LatencyHistogram ();
+		long allErrors = 0L;
+		for (Operation operation : operations) {
+			LatencyHistogram histogram = merge (workers, operation);
+			long errors = errors (workers, operation);
+			printLine (out, "total", operation, histogram, errors, totalSeconds);
+			all.add (histogram);
+			allErrors += errors;
+		}
+		out.println (String.format (Locale.ROOT, "%8s %-7s %10.1f %8d %9.3f %9.3f %9.3f %9.3f %9.3f", "total", "all", all.getTotalCount () / totalSeconds, allErrors, all.getMillisAtPercentile (50.0), all.getMillisAtPercentile (95.0), all.getMillisAtPercentile (99.0), all.getMillisAtPercentile (99.9), (double) all.getMaxValue () / TimeUnit.MILLISECONDS.toNanos (1)));
+		long calls = all.getTotalCount () + allErrors;
+		out.println (String.format (Locale.ROOT, "Error rate: %.3f%% of %d calls", (calls > 0 ? 100.0 * allErrors / calls : 0.0), calls));
+		for (Worker worker : workers) {
+			if (worker.lastError != null) {
+				out.println ("Last error: " + worker.lastError);
+				break;
+			}
+		}
+	}
+
+	private static void printLine (PrintStream out, String time, Operation operation, LatencyHistogram histogram, long errors, double seconds) {
+		out.println (String.format (Locale.ROOT, "%8s %-7s %10.1f %8d %9.3f %9.3f %9.3f %9.3f %9.3f", time, operation.name ().toLowerCase (Locale.ROOT), (seconds > 0 ? histogram.getTotalCount () / seconds : 0.0), errors, histogram.getMillisAtPercentile (50.0), histogram.getMillisAtPercentile (95.0), histogram.getMillisAtPercentile (99.0), histogram.getMillisAtPercentile (99.9), (double) histogram.getMaxValue () / TimeUnit.MILLISECONDS.toNanos (1)));
+	}
+
+	private static LatencyHistogram merge (List<Worker> workers, Operation operation) {
+		LatencyHistogram merged = new LatencyHistogram ();
+		for (Worker worker : workers) {
+			merged.add (worker.histograms[operation.ordinal ()]);
+		}
+		return merged;
+	}
+
+	private static long errors (List<Worker> workers, Operation operation) {
+		long errors = 0L;
+		for (Worker worker : workers) {
+			errors += worker.errors[operation.ordinal ()].get ();
+		}
+		return errors;
+	}
+
+	private void setUpEmbeddedDatabase () throws DbHelperException {
+		try {
+			Class.forName (driverName);
+		} catch (ClassNotFoundException ex) {
+			throw new DbHelperException ("The embedded database driver " + driverName + " is not on the class path", ex);
+		}
+
+		DbHelper dbHelper = new DbHelper (driverName, connectionUrl);
+		try {
+			dbHelper.performDbUpdate ("CREATE TABLE IF NOT EXISTS loadgen (id BIGINT PRIMARY KEY, payload VARCHAR(100), counter BIGINT)");
+			dbHelper.performDbUpdate ("DELETE FROM loadgen");
+			List<Object[]> rows = new ArrayList<> ();
+			for (long id = 1; id <= keyRange; id++) {
+				rows.add (new Object[] {id, "payload " + id, 0L});
+				if (rows.size () == 1000 || id == keyRange) {
+					dbHelper.performDbBatchUpdate ("INSERT INTO loadgen (id, payload, counter) VALUES (?, ?, ?)", rows);
+					rows.clear ();
+				}
+			}
+		} finally {
+			dbHelper.releaseConnection ();
+		}
+	}
+
+	private Object[] randomParameters (String sql, ThreadLocalRandom random) {
+		int count = 0;
+		for (int i = 0; i < sql.length (); i++) {
+			if (sql.charAt (i) == '?') {
+				count++;
+			}
+		}
+		Object[] params = new Object[count];
+		for (int i = 0; i < count; i++) {
+			params[i] = 1L + random.nextLong (keyRange);
+		}
+		return params;
+	}
+
+	private final class Worker implements Runnable {
+
+		final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values ().length];
+		final AtomicLong[] errors = new AtomicLong[Operation.values ().length];
+		volatile String lastError = null;
+
+		private final Operation[] operations;
+		private final int[] cumulativeWeights;
+		private final long endNanos;
+		private final CountDownLatch finished;
+
+		Worker (Operation[] operations, int[] cumulativeWeights, long endNanos, CountDownLatch finished) {
+			this.operations = operations;
+			this.cumulativeWeights = cumulativeWeights;
+			this.endNanos = endNanos;
+			this.finished = finished;
+			for (int i = 0; i < histograms.length; i++) {
+				histograms[i] = new LatencyHistogram ();
+				errors[i] = new AtomicLong ();
+			}
+		}
+
+		@Override
+		public void run () {
+			DbHelper dbHelper = new DbHelper (driverName, connectionUrl);
+			ThreadLocalRandom random = ThreadLocalRandom.current ();
+			int totalWeight = cumulativeWeights[cumulativeWeights.length - 1];
+			try {
+				while (System.nanoTime () - endNanos < 0) {
+					int pick = random.nextInt (totalWeight);
+					Operation operation = operations[0];
+					for (int i = 0; i < cumulativeWeights.length; i++) {
+						if (pick < cumulativeWeights[i]) {
+							operation = operations[i];
+							break;
+						}
+					}
+
+					String sql = sqls.get (operation);
+					Object[] params = randomParameters (sql, random);
+					long callStart = System.nanoTime ();
+					try {
+						call (dbHelper, operation, sql, params);
+						histograms[operation.ordinal ()].record (System.nanoTime () - callStart);
+					} catch (Exception ex) {
+						errors[operation.ordinal ()].incrementAndGet ();
+						lastError = operation + ": " + ex;
+					}
+				}
+			} finally {
+				try {
+					dbHelper.releaseConnection ();
+				} catch (DbHelperException ex) {
+					lastError = "release: " + ex;
+				}
+				finished.countDown ();
+			}
+		}
+
+		private void call (DbHelper dbHelper, Operation operation, String sql, Object[] params) throws Exception {
+			switch (operation) {
+				case QUERY:
+					try (DbQueryHandle handle = dbHelper.performDbQueryHandle (sql, params)) {
+						ResultSet rs = handle.getResultSet ();
+						while (rs.next ()) {
+							// Read the rows, as a caller would
+						}
+					}
+					break;
+				case UPDATE:
+					dbHelper.performDbUpdate (sql, params);
+					break;
+				case EXISTS:
+					dbHelper.recordExists (sql, params);
+					break;
+			}
+		}
+	}
+}